@@ -42,6 +42,13 @@ public interface ISyncManager {
 
     void unsubscribe(String id, Sync.EventListener listener);
 
+    /**
+     * Get told when the connection to the sync service changes. Does nothing unless the
+     * implementation tracks its connection.
+     */
+    default void setConnectionStateListener(@Nullable Sync.ConnectionStateListener listener) {
+    }
+
     void destroy();
 
 
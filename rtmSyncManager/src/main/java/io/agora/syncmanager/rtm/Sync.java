@@ -58,6 +58,18 @@ public final class Sync {
         mISyncManager.getScenes(callback);
     }
 
+    public void setConnectionStateListener(@Nullable ConnectionStateListener listener) {
+        mISyncManager.setConnectionStateListener(listener);
+    }
+
+    public enum ConnectionState {
+        CONNECTING, CONNECTED, RECONNECTING, DISCONNECTED
+    }
+
+    public interface ConnectionStateListener {
+        void onStateChanged(ConnectionState state);
+    }
+
     public interface EventListener {
         void onCreated(IObject item);
 
@@ -0,0 +1,309 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.agora.common.annotation.Nullable;
+import io.agora.rtm.RtmChannelAttribute;
+
+/**
+ * Stores values larger than an RTM attribute across several attributes of the same channel.
+ *
+ * A value over the chunk size goes to {@code key#0 .. key#n-1}, and {@code key} itself holds a
+ * manifest with the number of chunks, the length and the hash of the whole value. All of them are
+ * written in one call. A reader only joins the chunks when they add up to what the manifest
+ * promises, so it never hands out half of an old and half of a new value; chunks of a key that is
+ * present are never shown on their own.
+ *
+ * The number of chunks each key was last seen or written with is kept, so rewriting a key with a
+ * shorter value or deleting it also removes the chunks it no longer needs. A key never seen here
+ * has to have its manifest read first, see {@link #chunkCount}.
+ */
+class AttributeChunks {
+
+    static final String CHUNK_SIZE_PARAM = "attributeChunkSize";
+    // RTM takes at most 8 KB per attribute value
+    static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+    // and at most 32 bytes per attribute key
+    static final int MAX_KEY_BYTES = 32;
+
+    private static final char CHUNK_SEPARATOR = '#';
+    // a JSON value never starts with '#'
+    private static final String MANIFEST_PREFIX = "#chunks/";
+
+    static class Plan {
+        final List<RtmChannelAttribute> puts = new ArrayList<>();
+        final List<String> deletes = new ArrayList<>();
+    }
+
+    private final int chunkSize;
+
+    // guarded by this
+    // channel + '\0' + key -> number of chunks
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    /**
+     * @param chunkSize UTF-8 bytes per attribute value, 0 never splits
+     */
+    AttributeChunks(int chunkSize) {
+        this.chunkSize = Math.max(0, chunkSize);
+    }
+
+    /**
+     * Build from the {@code attributeChunkSize} init param, "false" never splits.
+     */
+    static AttributeChunks fromParams(Map<String, String> params) {
+        String value = params.get(CHUNK_SIZE_PARAM);
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        if ("false".equalsIgnoreCase(value)) {
+            chunkSize = 0;
+        } else if (value != null) {
+            try {
+                chunkSize = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        return new AttributeChunks(chunkSize);
+    }
+
+    /**
+     * @return the attributes to write for {@code key}, the key itself first, and the stale chunks
+     * to delete; null if the value needs chunks whose keys would be longer than RTM takes.
+     */
+    @Nullable
+    Plan write(String channel, String key, String value) {
+        Plan plan = new Plan();
+        List<String> parts = chunkSize == 0 || utf8Length(value) <= chunkSize
+                ? null : split(value, chunkSize);
+        int chunks = parts == null ? 0 : parts.size();
+        if (chunks > 0 && utf8Length(chunkKey(key, chunks - 1)) > MAX_KEY_BYTES) {
+            return null;
+        }
+        if (parts == null) {
+            plan.puts.add(attribute(key, value));
+        } else {
+            plan.puts.add(attribute(key, MANIFEST_PREFIX + chunks + '/' + value.length() + '/' + value.hashCode()));
+            for (int i = 0; i < chunks; i++) {
+                plan.puts.add(attribute(chunkKey(key, i), parts.get(i)));
+            }
+        }
+        int previous = swapCount(channel, key, chunks);
+        for (int i = chunks; i < previous; i++) {
+            plan.deletes.add(chunkKey(key, i));
+        }
+        return plan;
+    }
+
+    /**
+     * @return {@code key} and the chunks it is known to have, or null if it was never seen here
+     * and may have chunks: read its value and pass {@link #chunkCount} of it to
+     * {@link #keys}.
+     */
+    @Nullable
+    List<String> delete(String channel, String key) {
+        Integer chunks;
+        synchronized (this) {
+            chunks = counts.remove(channel + '\u0000' + key);
+        }
+        if (chunks == null && chunkSize > 0) {
+            return null;
+        }
+        return keys(key, chunks == null ? 0 : chunks);
+    }
+
+    /**
+     * @return {@code key} followed by the keys of its {@code chunks} chunks.
+     */
+    static List<String> keys(String key, int chunks) {
+        List<String> keys = new ArrayList<>(chunks + 1);
+        keys.add(key);
+        for (int i = 0; i < chunks; i++) {
+            keys.add(chunkKey(key, i));
+        }
+        return keys;
+    }
+
+    /**
+     * Turn the attributes of a channel into the values they hold: chunked values joined at the
+     * place of their manifest, chunks dropped. A value whose chunks do not match its manifest is
+     * left out until they do.
+     */
+    List<RtmChannelAttribute> read(String channel, List<RtmChannelAttribute> attributes) {
+        boolean chunked = false;
+        for (RtmChannelAttribute attribute : attributes) {
+            if (attribute.getKey().indexOf(CHUNK_SEPARATOR) >= 0 || isManifest(attribute.getValue())) {
+                chunked = true;
+                break;
+            }
+        }
+        if (!chunked) {
+            synchronized (this) {
+                for (RtmChannelAttribute attribute : attributes) {
+                    counts.put(channel + '\u0000' + attribute.getKey(), 0);
+                }
+            }
+            return attributes;
+        }
+        Map<String, String> values = new HashMap<>(attributes.size() * 2);
+        for (RtmChannelAttribute attribute : attributes) {
+            values.put(attribute.getKey(), attribute.getValue());
+        }
+        // chunks are only hidden behind a key that is there
+        Map<String, Integer> seen = new HashMap<>();
+        for (RtmChannelAttribute attribute : attributes) {
+            seen.put(attribute.getKey(), 0);
+        }
+        Set<String> hidden = new HashSet<>();
+        for (RtmChannelAttribute attribute : attributes) {
+            String key = attribute.getKey();
+            int at = key.lastIndexOf(CHUNK_SEPARATOR);
+            int index = at < 0 ? -1 : parseIndex(key, at + 1);
+            if (index >= 0 && values.containsKey(key.substring(0, at))) {
+                String base = key.substring(0, at);
+                hidden.add(key);
+                seen.remove(key);
+                seen.put(base, Math.max(seen.get(base), index + 1));
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Integer> entry : seen.entrySet()) {
+                counts.put(channel + '\u0000' + entry.getKey(), entry.getValue());
+            }
+        }
+        List<RtmChannelAttribute> result = new ArrayList<>(attributes.size() - hidden.size());
+        for (RtmChannelAttribute attribute : attributes) {
+            if (hidden.contains(attribute.getKey())) {
+                continue;
+            }
+            if (!isManifest(attribute.getValue())) {
+                result.add(attribute);
+                continue;
+            }
+            String value = join(attribute.getKey(), attribute.getValue(), values);
+            if (value != null) {
+                result.add(attribute(attribute.getKey(), value));
+            }
+        }
+        return result;
+    }
+
+    private synchronized int swapCount(String channel, String key, int chunks) {
+        Integer previous = counts.put(channel + '\u0000' + key, chunks);
+        return previous == null ? 0 : previous;
+    }
+
+    /**
+     * @return the number of chunks the manifest {@code value} promises, 0 for a plain value.
+     */
+    static int chunkCount(@Nullable String value) {
+        if (!isManifest(value)) {
+            return 0;
+        }
+        int end = value.indexOf('/', MANIFEST_PREFIX.length());
+        try {
+            return end < 0 ? 0 : Integer.parseInt(value.substring(MANIFEST_PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String join(String key, String manifest, Map<String, String> values) {
+        String[] fields = manifest.substring(MANIFEST_PREFIX.length()).split("/");
+        if (fields.length != 3) {
+            return null;
+        }
+        int chunks;
+        int length;
+        int hash;
+        try {
+            chunks = Integer.parseInt(fields[0]);
+            length = Integer.parseInt(fields[1]);
+            hash = Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < chunks; i++) {
+            String part = values.get(chunkKey(key, i));
+            if (part == null || value.length() + part.length() > length) {
+                return null;
+            }
+            value.append(part);
+        }
+        String joined = value.toString();
+        return joined.length() == length && joined.hashCode() == hash ? joined : null;
+    }
+
+    private static boolean isManifest(String value) {
+        return value != null && value.startsWith(MANIFEST_PREFIX);
+    }
+
+    private static String chunkKey(String key, int index) {
+        return key + CHUNK_SEPARATOR + index;
+    }
+
+    // the non-negative decimal number at the end of key, or -1
+    private static int parseIndex(String key, int from) {
+        if (from >= key.length() || key.length() - from > 9) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = from; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+
+    /**
+     * Cut {@code value} into parts of at most {@code maxBytes} UTF-8 bytes, never inside a
+     * surrogate pair.
+     */
+    static List<String> split(String value, int maxBytes) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        int bytes = 0;
+        for (int i = 0; i < value.length(); ) {
+            int codePoint = value.codePointAt(i);
+            int size = utf8Length(codePoint);
+            if (bytes + size > maxBytes && i > start) {
+                parts.add(value.substring(start, i));
+                start = i;
+                bytes = 0;
+            }
+            bytes += size;
+            i += Character.charCount(codePoint);
+        }
+        parts.add(value.substring(start));
+        return parts;
+    }
+
+    static int utf8Length(String value) {
+        int bytes = 0;
+        for (int i = 0; i < value.length(); ) {
+            int codePoint = value.codePointAt(i);
+            bytes += utf8Length(codePoint);
+            i += Character.charCount(codePoint);
+        }
+        return bytes;
+    }
+
+    private static int utf8Length(int codePoint) {
+        return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+    }
+
+    private static RtmChannelAttribute attribute(String key, String value) {
+        RtmChannelAttribute attribute = new RtmChannelAttribute();
+        attribute.setKey(key);
+        attribute.setValue(value);
+        return attribute;
+    }
+}
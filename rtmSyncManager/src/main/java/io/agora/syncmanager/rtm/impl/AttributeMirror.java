@@ -0,0 +1,355 @@
+package io.agora.syncmanager.rtm.impl;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.agora.rtm.RtmChannelAttribute;
+
+/**
+ * The attributes of one RTM channel as last seen, keyed by attribute key.
+ *
+ * RTM hands over the whole attribute list on every change. Diffing it against the mirror costs one
+ * lookup per attribute: the kept length and hash of each value tell most changes apart, and an
+ * unchanged update timestamp confirms the rest, so values are compared char by char only when an
+ * attribute was rewritten with the same value. Entries are updated in place instead of rebuilding a
+ * map and replacing the list each time.
+ *
+ * Deltas come out in the order the list-based diff produced them: updates and creations in list
+ * order, deletions in the iteration order of a {@link HashMap} filled with the previous list.
+ *
+ * A document is addressed either by its attribute key or by the {@code objectId} member of its
+ * JSON value. The mirror indexes the latter both ways, so {@link #keyOf} is a lookup instead of a
+ * search through the values.
+ *
+ * Each entry keeps the update timestamp and user RTM reported for it, and an update older than
+ * what the mirror holds is dropped. Writes this client applied itself ({@link #putLocal},
+ * {@link #removeLocal}) are not reported again when their echo arrives, and a list sent before the
+ * server saw such a write does not undo it: it is held until a newer list arrives or
+ * {@link #ECHO_GRACE_MS} passes.
+ */
+class AttributeMirror {
+
+    // how long a local write is kept against lists that may predate it, covers clock skew too
+    static final long ECHO_GRACE_MS = 5000;
+
+    static class Entry {
+        final String key;
+        String value;
+        // objectId member of the value, null if none
+        String documentId;
+        int hash;
+        int length;
+        long ts;
+        String userId;
+        // wall clock time of a local write the server has not echoed yet, 0 if none
+        long localAt;
+        // index in the list the entry was last seen in, keeps the previous list order
+        long position;
+        // generation of the last diff that saw the entry
+        long seen;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        void set(String value, long ts) {
+            this.value = value;
+            this.hash = value == null ? 0 : value.hashCode();
+            this.length = value == null ? 0 : value.length();
+            this.ts = ts;
+        }
+
+        boolean sameValue(String other, long otherTs) {
+            if (value == null || other == null) {
+                return value == other;
+            }
+            if (length != other.length() || hash != other.hashCode()) {
+                return false;
+            }
+            // two writes may share a millisecond, so the timestamp only settles a matching hash
+            return (ts != 0 && ts == otherTs) || value.equals(other);
+        }
+    }
+
+    static class Delta {
+        final List<Entry> updated = new ArrayList<>();
+        final List<Entry> created = new ArrayList<>();
+        final List<Entry> deleted = new ArrayList<>();
+
+        boolean isEmpty() {
+            return updated.isEmpty() && created.isEmpty() && deleted.isEmpty();
+        }
+    }
+
+    private static final Comparator<Entry> BY_POSITION = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.position < b.position ? -1 : (a.position == b.position ? 0 : 1);
+        }
+    };
+
+    // guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, String> keysByDocumentId = new HashMap<>();
+    // keys removed locally whose removal the server has not echoed yet -> wall clock time
+    private final Map<String, Long> removedAt = new HashMap<>();
+    private long generation;
+    private long nextPosition;
+
+    AttributeMirror(List<RtmChannelAttribute> attributes) {
+        reset(attributes);
+    }
+
+    /**
+     * Forget everything and mirror {@code attributes}, e.g. after a fresh read of the channel.
+     */
+    synchronized void reset(List<RtmChannelAttribute> attributes) {
+        entries.clear();
+        keysByDocumentId.clear();
+        removedAt.clear();
+        nextPosition = 0;
+        for (RtmChannelAttribute attribute : attributes) {
+            Entry entry = entries.get(attribute.getKey());
+            if (entry == null) {
+                entry = new Entry(attribute.getKey());
+                entry.position = nextPosition++;
+                entries.put(attribute.getKey(), entry);
+            }
+            set(entry, attribute.getValue(), attribute.getLastUpdateTs());
+            entry.userId = attribute.getLastUpdateUserId();
+        }
+    }
+
+    /**
+     * Add or replace one attribute, as a local write that succeeded.
+     *
+     * @return false if the mirror already held the value, e.g. its echo came first
+     */
+    synchronized boolean putLocal(String key, String value) {
+        removedAt.remove(key);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entry.position = nextPosition++;
+            entries.put(key, entry);
+        } else if (entry.sameValue(value, 0)) {
+            return false;
+        }
+        set(entry, value, 0);
+        entry.localAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Remove one attribute, as a local delete that succeeded.
+     *
+     * @return false if the mirror did not hold it, e.g. its echo came first
+     */
+    synchronized boolean removeLocal(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        unindex(entry);
+        removedAt.put(key, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * @return the key of the attribute holding document {@code documentId}, or null if the mirror
+     * has none.
+     */
+    synchronized String keyOf(String documentId) {
+        if (entries.containsKey(documentId)) {
+            return documentId;
+        }
+        return keysByDocumentId.get(documentId);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Bring the mirror to {@code attributes}, the full current list, and return what changed.
+     * Returned entries are snapshots and are not touched by later calls.
+     */
+    synchronized Delta apply(List<RtmChannelAttribute> attributes) {
+        Delta delta = new Delta();
+        long gen = ++generation;
+        int previousSize = entries.size();
+        int kept = 0;
+        long position = 0;
+        long now = System.currentTimeMillis();
+        long newest = 0;
+        if (!removedAt.isEmpty() || hasLocal()) {
+            for (RtmChannelAttribute attribute : attributes) {
+                newest = Math.max(newest, attribute.getLastUpdateTs());
+            }
+        }
+        List<String> stillRemoved = null;
+        for (RtmChannelAttribute attribute : attributes) {
+            String key = attribute.getKey();
+            String value = attribute.getValue();
+            long ts = attribute.getLastUpdateTs();
+            Entry entry = entries.get(key);
+            if (entry == null && !removedAt.isEmpty() && removedAt.containsKey(key)) {
+                if (holds(removedAt.get(key), newest, now)) {
+                    // a list from before our delete, the key is gone already
+                    if (stillRemoved == null) {
+                        stillRemoved = new ArrayList<>();
+                    }
+                    stillRemoved.add(key);
+                    continue;
+                }
+                removedAt.remove(key);
+            }
+            if (entry != null && entry.seen != gen && entry.ts != 0 && ts != 0 && ts < entry.ts) {
+                // older than what we hold, keep ours
+                kept++;
+                entry.seen = gen;
+                entry.position = position++;
+                continue;
+            }
+            if (entry != null && entry.seen == gen) {
+                // a key listed twice was reported as created the second time
+                set(entry, value, ts);
+                delta.created.add(snapshot(entry));
+            } else if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+                set(entry, value, ts);
+                delta.created.add(snapshot(entry));
+            } else {
+                kept++;
+                if (!entry.sameValue(value, ts)) {
+                    set(entry, value, ts);
+                    delta.updated.add(snapshot(entry));
+                } else {
+                    entry.ts = ts;
+                }
+            }
+            entry.userId = attribute.getLastUpdateUserId();
+            entry.localAt = 0;
+            if (entry.seen != gen) {
+                // a key listed twice keeps its first position, as a HashMap keeps its first insertion
+                entry.seen = gen;
+                entry.position = position++;
+            }
+        }
+        nextPosition = position;
+        // a removal is confirmed by the first list without the key
+        if (!removedAt.isEmpty()) {
+            if (stillRemoved == null) {
+                removedAt.clear();
+            } else {
+                removedAt.keySet().retainAll(stillRemoved);
+            }
+        }
+        if (kept < previousSize) {
+            collectDeleted(gen, previousSize, newest, now, delta.deleted);
+        }
+        return delta;
+    }
+
+    private boolean hasLocal() {
+        for (Entry entry : entries.values()) {
+            if (entry.localAt != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // whether a local write at localAt still stands against a list whose newest update is newest
+    static boolean holds(long localAt, long newest, long now) {
+        return newest < localAt && now - localAt < ECHO_GRACE_MS;
+    }
+
+    private void collectDeleted(long gen, int previousSize, long newest, long now, List<Entry> deleted) {
+        List<Entry> gone = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.seen != gen && (entry.localAt == 0 || !holds(entry.localAt, newest, now))) {
+                gone.add(entry);
+            }
+        }
+        if (gone.isEmpty()) {
+            return;
+        }
+        for (Entry entry : gone) {
+            entries.remove(entry.key);
+            unindex(entry);
+        }
+        if (gone.size() == 1) {
+            deleted.add(gone.get(0));
+            return;
+        }
+        // a HashMap of the same capacity, filled in the same order, iterates as the old one did
+        Collections.sort(gone, BY_POSITION);
+        int capacity = 16;
+        while (previousSize > capacity * 3 / 4) {
+            capacity <<= 1;
+        }
+        Map<String, Entry> order = new HashMap<>(capacity);
+        for (Entry entry : gone) {
+            order.put(entry.key, entry);
+        }
+        deleted.addAll(order.values());
+    }
+
+    private void set(Entry entry, String value, long ts) {
+        entry.set(value, ts);
+        unindex(entry);
+        entry.documentId = documentIdOf(value);
+        if (entry.documentId != null) {
+            keysByDocumentId.put(entry.documentId, entry.key);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        if (entry.documentId != null && entry.key.equals(keysByDocumentId.get(entry.documentId))) {
+            keysByDocumentId.remove(entry.documentId);
+        }
+        entry.documentId = null;
+    }
+
+    /**
+     * @return the top level {@code objectId} string of a JSON object, or null.
+     */
+    static String documentIdOf(String value) {
+        if (value == null || !value.contains("\"objectId\"")) {
+            return null;
+        }
+        try {
+            JsonReader reader = new JsonReader(new StringReader(value));
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("objectId".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+        } catch (IOException | IllegalStateException e) {
+            // not JSON, so no document id
+        }
+        return null;
+    }
+
+    private static Entry snapshot(Entry entry) {
+        Entry copy = new Entry(entry.key);
+        copy.value = entry.value;
+        return copy;
+    }
+}
@@ -0,0 +1,171 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Pending {@link RethinkSyncClient.CallbackHandler}s indexed by request id and channel name
+ * (exact and prefix).
+ *
+ * Lookups never take a global lock: each index bucket is a concurrent set, and a bucket is only
+ * locked while it is being retired, so routing an inbound frame or unsubscribing a scene costs
+ * O(log n + matches) instead of a scan over every pending request.
+ */
+class CallbackRegistry {
+
+    private final ConcurrentMap<String, RethinkSyncClient.CallbackHandler> byRequestId = new ConcurrentHashMap<>();
+
+    // sorted so that every channel sharing a prefix (scene id) is one contiguous range
+    private final ConcurrentSkipListMap<String, Set<RethinkSyncClient.CallbackHandler>> byChannel = new ConcurrentSkipListMap<>();
+
+    /**
+     * Register a handler. {@code handler.channelName} must be set before calling.
+     */
+    void put(RethinkSyncClient.CallbackHandler handler) {
+        RethinkSyncClient.CallbackHandler previous = byRequestId.put(handler.requestId, handler);
+        if (previous == handler) {
+            return;
+        }
+        if (previous != null) {
+            unindex(previous);
+        }
+        if (handler.channelName != null) {
+            addToBucket(byChannel, handler.channelName, handler);
+        }
+    }
+
+    RethinkSyncClient.CallbackHandler get(String requestId) {
+        if (requestId == null) {
+            return null;
+        }
+        return byRequestId.get(requestId);
+    }
+
+    /**
+     * @return true if the handler was still registered, i.e. the caller is the one removing it.
+     */
+    boolean remove(RethinkSyncClient.CallbackHandler handler) {
+        if (!byRequestId.remove(handler.requestId, handler)) {
+            return false;
+        }
+        unindex(handler);
+        return true;
+    }
+
+    /**
+     * @return every handler registered on exactly this channel.
+     */
+    List<RethinkSyncClient.CallbackHandler> channel(String channelName) {
+        if (channelName == null) {
+            return Collections.emptyList();
+        }
+        Set<RethinkSyncClient.CallbackHandler> bucket = byChannel.get(channelName);
+        return bucket == null ? Collections.<RethinkSyncClient.CallbackHandler>emptyList() : new ArrayList<>(bucket);
+    }
+
+    /**
+     * @return the subscribe handlers registered on exactly this channel.
+     */
+    List<RethinkSyncClient.CallbackHandler> subscribers(String channelName) {
+        if (channelName == null) {
+            return Collections.emptyList();
+        }
+        Set<RethinkSyncClient.CallbackHandler> bucket = byChannel.get(channelName);
+        if (bucket == null) {
+            return Collections.emptyList();
+        }
+        List<RethinkSyncClient.CallbackHandler> ret = new ArrayList<>(bucket.size());
+        for (RethinkSyncClient.CallbackHandler handler : bucket) {
+            if (handler.type == RethinkSyncClient.SocketType.subscribe) {
+                ret.add(handler);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return every handler whose channel name starts with the given prefix.
+     */
+    List<RethinkSyncClient.CallbackHandler> prefix(String prefix) {
+        List<RethinkSyncClient.CallbackHandler> ret = new ArrayList<>();
+        for (Map.Entry<String, Set<RethinkSyncClient.CallbackHandler>> entry : byChannel.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            ret.addAll(entry.getValue());
+        }
+        return ret;
+    }
+
+    /**
+     * @return every handler of the given type. This is a full scan and only meant for rare
+     * events such as re-subscribing after a reconnect.
+     */
+    List<RethinkSyncClient.CallbackHandler> all(RethinkSyncClient.SocketType type) {
+        List<RethinkSyncClient.CallbackHandler> ret = new ArrayList<>();
+        for (RethinkSyncClient.CallbackHandler handler : byRequestId.values()) {
+            if (handler.type == type) {
+                ret.add(handler);
+            }
+        }
+        return ret;
+    }
+
+    int size() {
+        return byRequestId.size();
+    }
+
+    void clear() {
+        byRequestId.clear();
+        byChannel.clear();
+    }
+
+    private void unindex(RethinkSyncClient.CallbackHandler handler) {
+        if (handler.channelName != null) {
+            removeFromBucket(byChannel, handler.channelName, handler);
+        }
+    }
+
+    private static <K> void addToBucket(ConcurrentMap<K, Set<RethinkSyncClient.CallbackHandler>> index,
+                                        K key,
+                                        RethinkSyncClient.CallbackHandler handler) {
+        while (true) {
+            Set<RethinkSyncClient.CallbackHandler> bucket = index.get(key);
+            if (bucket == null) {
+                Set<RethinkSyncClient.CallbackHandler> created =
+                        Collections.newSetFromMap(new ConcurrentHashMap<RethinkSyncClient.CallbackHandler, Boolean>());
+                bucket = index.putIfAbsent(key, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            synchronized (bucket) {
+                // the bucket may have been retired by a concurrent remove, retry with a fresh one
+                if (index.get(key) == bucket) {
+                    bucket.add(handler);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static <K> void removeFromBucket(ConcurrentMap<K, Set<RethinkSyncClient.CallbackHandler>> index,
+                                             K key,
+                                             RethinkSyncClient.CallbackHandler handler) {
+        Set<RethinkSyncClient.CallbackHandler> bucket = index.get(key);
+        if (bucket == null) {
+            return;
+        }
+        synchronized (bucket) {
+            if (bucket.remove(handler) && bucket.isEmpty()) {
+                index.remove(key, bucket);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.agora.syncmanager.rtm.SyncManagerException;
+import io.agora.syncmanager.rtm.utils.SyncLog;
+
+/**
+ * Last-writer-wins write queue keyed by object.
+ *
+ * At most one write per key is on the wire. While it is in flight, newer values for the same key
+ * replace the queued one instead of being sent; once the in-flight write is acked the latest
+ * queued value is written, and every caller it superseded completes with that winning write.
+ */
+class CoalescingWriteQueue<V, R> {
+    private static final String LOG_TAG = "CoalescingWriteQueue";
+
+
+    interface Writer<V, R> {
+        void write(String key, V value, Completion<R> completion);
+    }
+
+    interface Completion<R> {
+        void onSuccess(R result);
+
+        void onFailure(SyncManagerException exception);
+    }
+
+    private final Writer<V, R> writer;
+
+    // guarded by itself
+    private final Map<String, Slot<V, R>> slots = new HashMap<>();
+
+    private long coalesced;
+
+    CoalescingWriteQueue(Writer<V, R> writer) {
+        this.writer = writer;
+    }
+
+    void submit(String key, V value, Completion<R> completion) {
+        List<Completion<R>> waiters = null;
+        synchronized (slots) {
+            Slot<V, R> slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot<>();
+                slots.put(key, slot);
+                waiters = new ArrayList<>(1);
+                waiters.add(completion);
+            } else {
+                if (slot.hasPending) {
+                    coalesced++;
+                }
+                slot.pendingValue = value;
+                slot.hasPending = true;
+                slot.pendingWaiters.add(completion);
+            }
+        }
+        if (waiters != null) {
+            write(key, value, waiters);
+        }
+    }
+
+    /**
+     * @return number of submitted writes that were folded into a later one instead of being sent.
+     */
+    long getCoalescedCount() {
+        synchronized (slots) {
+            return coalesced;
+        }
+    }
+
+    private void write(String key, V value, List<Completion<R>> waiters) {
+        // completes once, even if the writer calls back and then throws
+        AtomicBoolean done = new AtomicBoolean();
+        Completion<R> completion = new Completion<R>() {
+            @Override
+            public void onSuccess(R result) {
+                if (!done.compareAndSet(false, true)) {
+                    return;
+                }
+                next(key);
+                for (Completion<R> waiter : waiters) {
+                    waiter.onSuccess(result);
+                }
+            }
+
+            @Override
+            public void onFailure(SyncManagerException exception) {
+                if (!done.compareAndSet(false, true)) {
+                    return;
+                }
+                next(key);
+                for (Completion<R> waiter : waiters) {
+                    waiter.onFailure(exception);
+                }
+            }
+        };
+        try {
+            writer.write(key, value, completion);
+        } catch (RuntimeException e) {
+            // a writer that throws would otherwise hold the slot of the key forever
+            SyncLog.e(LOG_TAG, "write of " + key + " threw", e);
+            completion.onFailure(new SyncManagerException(e));
+        }
+    }
+
+    private void next(String key) {
+        V value;
+        List<Completion<R>> waiters;
+        synchronized (slots) {
+            Slot<V, R> slot = slots.get(key);
+            if (slot == null) {
+                return;
+            }
+            if (!slot.hasPending) {
+                slots.remove(key);
+                return;
+            }
+            value = slot.pendingValue;
+            waiters = slot.pendingWaiters;
+            slot.pendingValue = null;
+            slot.hasPending = false;
+            slot.pendingWaiters = new ArrayList<>();
+        }
+        write(key, value, waiters);
+    }
+
+    private static class Slot<V, R> {
+        V pendingValue;
+        boolean hasPending;
+        List<Completion<R>> pendingWaiters = new ArrayList<>();
+    }
+}
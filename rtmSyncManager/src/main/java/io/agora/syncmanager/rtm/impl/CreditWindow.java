@@ -0,0 +1,145 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-flight window of outgoing writes, counted in unacknowledged requests and in their bytes.
+ *
+ * A write takes credit before it is handed to the socket and gives it back when its reply (or
+ * timeout, or failure) comes in. Since the socket only holds writes that were not acknowledged
+ * yet, the byte count also bounds what can pile up in its send buffer.
+ *
+ * Once full the window is unwritable, and turns writable again when both counts are back to half
+ * their limit, so a producer is not woken for every single reply.
+ */
+class CreditWindow {
+
+    interface Listener {
+        void onWritabilityChanged(boolean writable);
+    }
+
+    private final int maxRequests;
+    private final long maxBytes;
+    private final RethinkSyncClient.FlowControl policy;
+    private final long blockTimeoutNanos;
+    private final Listener listener;
+
+    // guarded by this
+    private int requests;
+    private long bytes;
+    private boolean writable = true;
+    private long rejected;
+
+    CreditWindow(int maxRequests, long maxBytes, RethinkSyncClient.FlowControl policy, long blockTimeout, TimeUnit unit,
+                 Listener listener) {
+        this.maxRequests = maxRequests;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+        this.listener = listener;
+    }
+
+    /**
+     * Take credit for a write of {@code size} bytes, following the policy when the window is full.
+     * A write larger than the whole window is let through on an empty window, or it would never go.
+     *
+     * @return false if the write must not be sent
+     */
+    boolean acquire(int size) throws InterruptedException {
+        boolean changed;
+        synchronized (this) {
+            if (!fits(size)) {
+                if (policy == RethinkSyncClient.FlowControl.REJECT) {
+                    rejected++;
+                    return false;
+                }
+                if (policy == RethinkSyncClient.FlowControl.BLOCK) {
+                    long deadline = System.nanoTime() + blockTimeoutNanos;
+                    while (!fits(size)) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            rejected++;
+                            return false;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            }
+            requests++;
+            bytes += size;
+            changed = writable && (requests >= maxRequests || bytes >= maxBytes);
+            if (changed) {
+                writable = false;
+            }
+        }
+        if (changed) {
+            listener.onWritabilityChanged(false);
+        }
+        return true;
+    }
+
+    /**
+     * Take credit whatever the window holds, for writes that were accepted earlier.
+     */
+    void force(int size) {
+        boolean changed;
+        synchronized (this) {
+            requests++;
+            bytes += size;
+            changed = writable && (requests >= maxRequests || bytes >= maxBytes);
+            if (changed) {
+                writable = false;
+            }
+        }
+        if (changed) {
+            listener.onWritabilityChanged(false);
+        }
+    }
+
+    void release(int size) {
+        boolean changed;
+        synchronized (this) {
+            requests--;
+            bytes -= size;
+            changed = !writable && requests <= maxRequests / 2 && bytes <= maxBytes / 2;
+            if (changed) {
+                writable = true;
+            }
+            notifyAll();
+        }
+        if (changed) {
+            listener.onWritabilityChanged(true);
+        }
+    }
+
+    synchronized boolean isWritable() {
+        return writable;
+    }
+
+    synchronized int getRequests() {
+        return requests;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    int getMaxRequests() {
+        return maxRequests;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private boolean fits(int size) {
+        if (requests == 0) {
+            return true;
+        }
+        return requests < maxRequests && bytes + size <= maxBytes;
+    }
+}
@@ -0,0 +1,79 @@
+package io.agora.syncmanager.rtm.impl;
+
+import org.java_websocket.extensions.ExtensionRequestData;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.Framedata;
+
+import java.util.zip.Deflater;
+
+/**
+ * permessage-deflate (RFC 7692) with the knobs {@link PerMessageDeflateExtension} does not keep.
+ *
+ * The stock extension always offers {@code client_no_context_takeover} and
+ * {@code server_no_context_takeover}, and forgets its threshold and level when the draft copies it
+ * for a connection. This one keeps them, and can offer context takeover: both ends then keep their
+ * 32KB window across messages, which is what makes small, repetitive frames compress well, at the
+ * cost of one deflate and one inflate context held per connection.
+ *
+ * {@code java.util.zip} has no window size parameter, so {@code max_window_bits} is never offered
+ * and the window is always the full 32KB.
+ */
+class DeflateExtension extends PerMessageDeflateExtension {
+
+    static final int DEFAULT_THRESHOLD = 1024;
+
+    private final int level;
+    private final boolean contextTakeover;
+
+    /**
+     * @param threshold       payloads shorter than this many bytes are sent uncompressed
+     * @param level           {@link Deflater} level, -1 for the zlib default
+     * @param contextTakeover keep the compression window across messages
+     */
+    DeflateExtension(int threshold, int level, boolean contextTakeover) {
+        this.level = level;
+        this.contextTakeover = contextTakeover;
+        setThreshold(threshold);
+        // the stock extension resets its deflater after each message when this is set
+        setServerNoContextTakeover(!contextTakeover);
+        setDeflater(new Deflater(level, true));
+    }
+
+    @Override
+    public void encodeFrame(Framedata inputFrame) {
+        // a reset deflater comes back at the default level
+        getDeflater().setLevel(level);
+        super.encodeFrame(inputFrame);
+    }
+
+    @Override
+    public String getProvidedExtensionAsClient() {
+        return contextTakeover ? "permessage-deflate" : super.getProvidedExtensionAsClient();
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsClient(String inputExtension) {
+        for (String extension : inputExtension.split(",")) {
+            ExtensionRequestData data = ExtensionRequestData.parseExtensionRequest(extension);
+            if ("permessage-deflate".equalsIgnoreCase(data.getExtensionName())) {
+                // the server may still ask us to reset our window after each message
+                if (data.getExtensionParameters().containsKey("client_no_context_takeover")) {
+                    setServerNoContextTakeover(true);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public IExtension copyInstance() {
+        return new DeflateExtension(getThreshold(), level, contextTakeover);
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateExtension{threshold=" + getThreshold() + ", level=" + level + ", contextTakeover=" + contextTakeover + "}";
+    }
+}
@@ -0,0 +1,114 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.syncmanager.rtm.utils.UUIDUtil;
+
+/**
+ * Collects outgoing write ops for a short window and sends them as one multi-op frame.
+ *
+ * A batch frame shares the {@code appId} envelope and carries every op unchanged in {@code ops};
+ * each op keeps its own {@code requestId}, so the server still replies per op. A window holding a
+ * single op is sent as a plain frame, which keeps the protocol unchanged for idle rooms.
+ */
+class FrameBatcher {
+
+    static final String ACTION_BATCH = "batch";
+
+    interface Sink {
+        /**
+         * @param frame      encoded frame
+         * @param requestIds request ids of the ops carried by the frame
+         */
+        void send(String frame, List<String> requestIds);
+    }
+
+    private final MessageEncoder encoder;
+    private final HashedWheelTimer timer;
+    private final Sink sink;
+
+    private final int maxOps;
+    private final int maxBytes;
+    private final long windowMs;
+
+    private final Object lock = new Object();
+    private List<MessageEncoder.Op> ops = new ArrayList<>();
+    private int pendingBytes;
+    private HashedWheelTimer.Timeout flushTimeout;
+
+    private long framesSent;
+    private long opsSent;
+
+    FrameBatcher(MessageEncoder encoder, HashedWheelTimer timer, Sink sink, int maxOps, int maxBytes, long window, TimeUnit unit) {
+        this.encoder = encoder;
+        this.timer = timer;
+        this.sink = sink;
+        this.maxOps = Math.max(1, maxOps);
+        this.maxBytes = maxBytes;
+        this.windowMs = unit.toMillis(window);
+    }
+
+    /**
+     * Queue one op. The {@code appId} envelope is added when the frame is sealed.
+     */
+    void offer(String appId, MessageEncoder.Op op) {
+        synchronized (lock) {
+            ops.add(op);
+            pendingBytes += op.estimateBytes();
+            if (ops.size() >= maxOps || (maxBytes > 0 && pendingBytes >= maxBytes)) {
+                sendLocked(appId);
+            } else if (flushTimeout == null) {
+                flushTimeout = timer.newTimeout(() -> flush(appId), windowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Send whatever is queued right away, e.g. before a frame that must not overtake the batch.
+     */
+    void flush(String appId) {
+        synchronized (lock) {
+            if (!ops.isEmpty()) {
+                sendLocked(appId);
+            }
+        }
+    }
+
+    long getFramesSent() {
+        synchronized (lock) {
+            return framesSent;
+        }
+    }
+
+    long getOpsSent() {
+        synchronized (lock) {
+            return opsSent;
+        }
+    }
+
+    // sending under the lock keeps frames in the order their ops were offered
+    private void sendLocked(String appId) {
+        String frame;
+        if (ops.size() == 1) {
+            frame = encoder.encode(appId, ops.get(0));
+        } else {
+            frame = encoder.encodeBatch(appId, UUIDUtil.uuid(), ACTION_BATCH, ops);
+        }
+        framesSent++;
+        opsSent += ops.size();
+        List<String> sentIds = new ArrayList<>(ops.size());
+        for (MessageEncoder.Op op : ops) {
+            sentIds.add(op.requestId);
+        }
+
+        ops = new ArrayList<>();
+        pendingBytes = 0;
+        if (flushTimeout != null) {
+            flushTimeout.cancel();
+            flushTimeout = null;
+        }
+        sink.send(frame, sentIds);
+    }
+}
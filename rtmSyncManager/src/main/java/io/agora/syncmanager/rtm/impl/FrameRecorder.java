@@ -0,0 +1,68 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * The latest frames sent and received on the socket, kept as fields rather than text.
+ *
+ * Recording a frame stores a few references and numbers into preallocated arrays, nothing is
+ * formatted or allocated; the text is only built when the records are dumped, e.g. when a bug is
+ * reported. Once full, the oldest records are overwritten.
+ */
+class FrameRecorder {
+
+    static final byte SENT = 0;
+    static final byte RECEIVED = 1;
+
+    private final byte[] directions;
+    private final String[] actions;
+    private final String[] channels;
+    private final int[] sizes;
+    private final long[] timestamps;
+
+    // guarded by this, total frames recorded so far
+    private long count;
+
+    FrameRecorder(int capacity) {
+        directions = new byte[capacity];
+        actions = new String[capacity];
+        channels = new String[capacity];
+        sizes = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    synchronized void record(byte direction, String action, String channelName, int size) {
+        int slot = (int) (count++ % directions.length);
+        directions[slot] = direction;
+        actions[slot] = action;
+        channels[slot] = channelName;
+        sizes[slot] = size;
+        timestamps[slot] = System.currentTimeMillis();
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Write the kept records, oldest first, one per line: time, direction, action, channel and
+     * size in characters.
+     */
+    synchronized void dump(StringBuilder out) {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        long first = Math.max(0, count - directions.length);
+        for (long i = first; i < count; i++) {
+            int slot = (int) (i % directions.length);
+            out.append(format.format(new Date(timestamps[slot])))
+                    .append(directions[slot] == SENT ? " > " : " < ")
+                    .append(actions[slot])
+                    .append(' ')
+                    .append(channels[slot])
+                    .append(' ')
+                    .append(sizes[slot])
+                    .append('\n');
+        }
+    }
+}
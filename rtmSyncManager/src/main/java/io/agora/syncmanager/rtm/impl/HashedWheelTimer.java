@@ -0,0 +1,205 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.agora.syncmanager.rtm.utils.SyncLog;
+
+/**
+ * A hashed timing wheel for deadlines that are usually cancelled before they fire, such as
+ * request timeouts. Scheduling and cancelling are O(1) and never block; the single worker
+ * thread only runs while there is something scheduled.
+ */
+class HashedWheelTimer {
+    private static final String LOG_TAG = "HashedWheelTimer";
+
+    interface Timeout {
+        /**
+         * @return true if the task will no longer run.
+         */
+        boolean cancel();
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final List<WheelTimeout>[] wheel;
+    private final int mask;
+
+    private final Queue<WheelTimeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Object lock = new Object();
+
+    private Thread worker;
+    private volatile boolean stopped;
+    private long startTime;
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickNanos = Math.max(unit.toNanos(tickDuration), TimeUnit.MILLISECONDS.toNanos(1));
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+    }
+
+    Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() + unit.toNanos(delay));
+        if (stopped) {
+            timeout.state.set(WheelTimeout.ST_CANCELLED);
+            return timeout;
+        }
+        pending.incrementAndGet();
+        incoming.add(timeout);
+        synchronized (lock) {
+            if (worker == null) {
+                startTime = System.nanoTime();
+                tick = 0;
+                worker = new Thread(this::run, name);
+                worker.setDaemon(true);
+                worker.start();
+            } else {
+                lock.notifyAll();
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * @return number of scheduled tasks that have neither run nor been cancelled.
+     */
+    int pendingTimeouts() {
+        return pending.get();
+    }
+
+    void stop() {
+        stopped = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            if (!awaitWork()) {
+                return;
+            }
+            long deadline = startTime + tickNanos * (tick + 1);
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos), (int) (sleepNanos % 1000000));
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        return;
+                    }
+                }
+            }
+            transferIncoming();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Park the worker while nothing is scheduled, and skip the ticks that passed meanwhile.
+     */
+    private boolean awaitWork() {
+        if (pending.get() > 0) {
+            return true;
+        }
+        synchronized (lock) {
+            boolean idled = false;
+            while (!stopped && pending.get() == 0) {
+                idled = true;
+                try {
+                    lock.wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            if (idled) {
+                // only cancelled entries can be left in the buckets, so fast-forwarding is safe
+                tick = (System.nanoTime() - startTime) / tickNanos;
+            }
+        }
+        return !stopped;
+    }
+
+    private void transferIncoming() {
+        WheelTimeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.state.get() == WheelTimeout.ST_CANCELLED) {
+                continue;
+            }
+            long ticks = (timeout.deadline - startTime) / tickNanos;
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            // a deadline already in the past fires on the current tick
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<WheelTimeout> bucket) {
+        Iterator<WheelTimeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            WheelTimeout timeout = iterator.next();
+            if (timeout.state.get() == WheelTimeout.ST_CANCELLED) {
+                iterator.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                iterator.remove();
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    private final class WheelTimeout implements Timeout {
+        static final int ST_INIT = 0;
+        static final int ST_CANCELLED = 1;
+        static final int ST_EXPIRED = 2;
+
+        final Runnable task;
+        final long deadline;
+        final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        // only touched by the worker thread
+        long remainingRounds;
+
+        WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                return state.get() == ST_CANCELLED;
+            }
+            pending.decrementAndGet();
+            return true;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                SyncLog.e(LOG_TAG, "timeout task threw", t);
+            }
+        }
+    }
+}
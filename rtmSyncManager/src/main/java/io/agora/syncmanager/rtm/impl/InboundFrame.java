@@ -0,0 +1,326 @@
+package io.agora.syncmanager.rtm.impl;
+
+import android.text.TextUtils;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A frame received from the Rethink server, decoded on demand.
+ *
+ * {@link #parse(String)} only reads the routing header ({@code action}, {@code requestId},
+ * {@code channelName}, {@code code}, {@code msg}) and skips {@code data} without building it, so
+ * pings and frames nobody waits for cost one scan and no tree. The {@code data} block, and within
+ * it {@code props}, are decoded the first time a handler asks for them.
+ *
+ * A frame is meant to be handled by one thread at a time; the lazy parts are not synchronized.
+ */
+class InboundFrame {
+
+    final String message;
+    final String action;
+    final String requestId;
+    final String channelName;
+    final int code;
+    final String msg;
+
+    private boolean dataDecoded;
+    private boolean hasData;
+    private boolean hasProps;
+    private String dataAction = "";
+    private String propsUpdate = "";
+    private List<String> propsDel;
+    private long seq;
+    private long headSeq;
+    private boolean snapshot;
+    private List<RethinkSyncClient.Attribute> attributes;
+
+    private InboundFrame(String message, String action, String requestId, String channelName, int code, String msg) {
+        this.message = message;
+        this.action = action;
+        this.requestId = requestId;
+        this.channelName = channelName;
+        this.code = code;
+        this.msg = msg;
+    }
+
+    /**
+     * Read the routing header of a frame. Missing members read as "" (or 0 for {@code code}),
+     * null ones as "null".
+     *
+     * @throws JsonParseException if the message is not a JSON object
+     */
+    static InboundFrame parse(String message) {
+        String action = "";
+        String requestId = "";
+        String channelName = "";
+        int code = 0;
+        String msg = "";
+        try {
+            JsonReader reader = new JsonReader(new StringReader(message));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("action".equals(name)) {
+                    action = readString(reader);
+                } else if ("requestId".equals(name)) {
+                    requestId = readString(reader);
+                } else if ("channelName".equals(name)) {
+                    channelName = readString(reader);
+                } else if ("code".equals(name)) {
+                    code = readInt(reader);
+                } else if ("msg".equals(name)) {
+                    msg = readString(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonParseException("malformed frame: " + message, e);
+        }
+        return new InboundFrame(message, action, requestId, channelName, code, msg);
+    }
+
+    boolean hasData() {
+        decodeData();
+        return hasData;
+    }
+
+    /**
+     * @return true if {@code data.props} is an object.
+     */
+    boolean hasProps() {
+        decodeData();
+        return hasProps;
+    }
+
+    /**
+     * @return {@code data.action}, or "" if absent.
+     */
+    String dataAction() {
+        decodeData();
+        return dataAction;
+    }
+
+    /**
+     * @return {@code data.propsUpdate} as sent, a JSON object encoded as a string, or "" if absent.
+     */
+    String propsUpdate() {
+        decodeData();
+        return propsUpdate;
+    }
+
+    /**
+     * @return {@code data.propsDel}, or null if absent.
+     */
+    List<String> propsDel() {
+        decodeData();
+        return propsDel;
+    }
+
+    /**
+     * @return {@code data.seq}, the per-channel sequence number of an event, or 0 if the server
+     * does not number its events.
+     */
+    long seq() {
+        decodeData();
+        return seq;
+    }
+
+    /**
+     * @return {@code data.headSeq}, the latest sequence number of the channel as reported by a
+     * subscribe reply, or 0 if absent.
+     */
+    long headSeq() {
+        decodeData();
+        return headSeq;
+    }
+
+    /**
+     * @return true if {@code propsUpdate} holds the complete current state of the channel rather
+     * than a change, sent when the server can no longer replay what a subscriber missed.
+     */
+    boolean isSnapshot() {
+        decodeData();
+        return snapshot;
+    }
+
+    /**
+     * @return the non-empty members of {@code data.props} in document order.
+     */
+    List<RethinkSyncClient.Attribute> attributes() {
+        if (attributes == null) {
+            attributes = hasProps() ? decodeProps() : Collections.<RethinkSyncClient.Attribute>emptyList();
+        }
+        return attributes;
+    }
+
+    /**
+     * Decode the members of a JSON object carried as a string, such as {@link #propsUpdate()}.
+     *
+     * @throws JsonParseException if the value is not a JSON object
+     */
+    static List<RethinkSyncClient.Attribute> decodeObject(String json) {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            return readAttributes(reader, false);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonParseException("malformed object: " + json, e);
+        }
+    }
+
+    private void decodeData() {
+        if (dataDecoded) {
+            return;
+        }
+        dataDecoded = true;
+        try {
+            JsonReader reader = new JsonReader(new StringReader(message));
+            if (!enterData(reader)) {
+                return;
+            }
+            hasData = true;
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("props".equals(name)) {
+                    hasProps = reader.peek() == JsonToken.BEGIN_OBJECT;
+                    reader.skipValue();
+                } else if ("action".equals(name)) {
+                    dataAction = readString(reader);
+                } else if ("propsUpdate".equals(name)) {
+                    propsUpdate = readString(reader);
+                } else if ("seq".equals(name)) {
+                    seq = readLong(reader);
+                } else if ("headSeq".equals(name)) {
+                    headSeq = readLong(reader);
+                } else if ("snapshot".equals(name) && reader.peek() == JsonToken.BOOLEAN) {
+                    snapshot = reader.nextBoolean();
+                } else if ("propsDel".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    List<String> ids = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        ids.add(readString(reader));
+                    }
+                    reader.endArray();
+                    propsDel = ids;
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // the header already parsed, so the frame is well formed up to here
+            throw new JsonParseException("malformed frame data: " + message, e);
+        }
+    }
+
+    private List<RethinkSyncClient.Attribute> decodeProps() {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(message));
+            enterData(reader);
+            while (reader.hasNext()) {
+                if ("props".equals(reader.nextName())) {
+                    return readAttributes(reader, true);
+                }
+                reader.skipValue();
+            }
+            return Collections.emptyList();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonParseException("malformed frame props: " + message, e);
+        }
+    }
+
+    /**
+     * Position the reader inside the top level {@code data} object.
+     *
+     * @return false if there is no such object
+     */
+    private static boolean enterData(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                return true;
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    private static List<RethinkSyncClient.Attribute> readAttributes(JsonReader reader, boolean skipEmpty) throws IOException {
+        List<RethinkSyncClient.Attribute> ret = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            String value = readString(reader);
+            if (!skipEmpty || !TextUtils.isEmpty(value)) {
+                ret.add(new RethinkSyncClient.Attribute(key, value));
+            }
+        }
+        reader.endObject();
+        return ret;
+    }
+
+    /**
+     * Read any value as a string the way Android's {@code JSONObject.optString} did: strings as
+     * is, other values as their JSON text, so a JSON null reads as "null".
+     */
+    private static String readString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return "null";
+            default:
+                return JsonParser.parseReader(reader).toString();
+        }
+    }
+
+    private static long readLong(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+            case STRING:
+                try {
+                    return Long.parseLong(reader.nextString());
+                } catch (NumberFormatException ignored) {
+                    return 0;
+                }
+            default:
+                reader.skipValue();
+                return 0;
+        }
+    }
+
+    private static int readInt(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+            case STRING:
+                String value = reader.nextString();
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    try {
+                        return (int) Double.parseDouble(value);
+                    } catch (NumberFormatException ignored) {
+                        return 0;
+                    }
+                }
+            default:
+                reader.skipValue();
+                return 0;
+        }
+    }
+}
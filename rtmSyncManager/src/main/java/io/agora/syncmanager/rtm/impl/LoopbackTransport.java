@@ -0,0 +1,341 @@
+package io.agora.syncmanager.rtm.impl;
+
+import android.text.TextUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.agora.common.annotation.Nullable;
+import io.agora.syncmanager.rtm.Sync;
+import io.agora.syncmanager.rtm.SyncManagerException;
+
+/**
+ * A {@link SyncTransport} without a server: every transport attached to the same {@link Hub} sees
+ * the others' writes as if they shared a sync server, all inside one process.
+ *
+ * Values are encoded the way {@link RethinkSyncClient} sends them, so what listeners get is what
+ * they would get from the server. Writes are applied and fanned out under the hub lock, so every
+ * subscriber sees them in the same order; with a dispatcher of 0 threads the callbacks run before
+ * the write returns, which makes the order of events in a test fully deterministic.
+ */
+class LoopbackTransport implements SyncTransport {
+
+    /**
+     * The shared store, one per simulated server.
+     */
+    static class Hub {
+
+        static final Hub SHARED = new Hub();
+
+        // guarded by this
+        // channel -> object id -> value, in the order the objects were first written
+        private final Map<String, Map<String, String>> channels = new LinkedHashMap<>();
+        private final Set<LoopbackTransport> transports = new LinkedHashSet<>();
+        private long writes;
+
+        synchronized int getObjectCount(String channelName) {
+            Map<String, String> objects = channels.get(channelName);
+            return objects == null ? 0 : objects.size();
+        }
+
+        /**
+         * @return number of adds, updates and deletes applied so far.
+         */
+        synchronized long getWriteCount() {
+            return writes;
+        }
+
+        synchronized int getTransportCount() {
+            return transports.size();
+        }
+
+        /**
+         * Drop every stored object, e.g. between tests.
+         */
+        synchronized void clear() {
+            channels.clear();
+        }
+    }
+
+    private final static Gson gson = new Gson();
+
+    private final MessageEncoder encoder = new MessageEncoder(gson);
+    private final Hub hub;
+    private final StripedExecutor dispatcher;
+
+    // guarded by hub
+    private final Map<String, List<RethinkSyncClient.SubscribeListener>> subscriptions = new LinkedHashMap<>();
+    private boolean attached;
+
+    private volatile Sync.ConnectionStateListener connectionStateListener;
+
+    /**
+     * @param dispatcher runs the callbacks, keyed by channel name
+     */
+    LoopbackTransport(Hub hub, StripedExecutor dispatcher) {
+        this.hub = hub;
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void init(String appId, String channelName, RethinkSyncClient.ICallback<Integer> complete) {
+        synchronized (hub) {
+            attached = true;
+            hub.transports.add(this);
+        }
+        Sync.ConnectionStateListener listener = connectionStateListener;
+        if (listener != null) {
+            dispatcher.execute(channelName, () -> listener.onStateChanged(Sync.ConnectionState.CONNECTED));
+        }
+        if (complete != null) {
+            dispatcher.execute(channelName, () -> complete.onCallback(0));
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (hub) {
+            if (!attached) {
+                return;
+            }
+            attached = false;
+            hub.transports.remove(this);
+            subscriptions.clear();
+        }
+        Sync.ConnectionStateListener listener = connectionStateListener;
+        if (listener != null) {
+            dispatcher.execute(null, () -> listener.onStateChanged(Sync.ConnectionState.DISCONNECTED));
+        }
+        dispatcher.shutdown();
+    }
+
+    @Override
+    public void add(String channelName, Object data, String objectId,
+                    RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onSuccess,
+                    RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        write(channelName, data, objectId, onSuccess, onError);
+    }
+
+    @Override
+    public void update(String channelName, Object data, String objectId,
+                       RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onSuccess,
+                       RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        write(channelName, data, objectId, onSuccess, onError);
+    }
+
+    @Override
+    public void query(String channelName,
+                      RethinkSyncClient.ICallback<List<RethinkSyncClient.Attribute>> onSuccess,
+                      RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        List<RethinkSyncClient.Attribute> ret = new ArrayList<>();
+        synchronized (hub) {
+            if (!attached) {
+                fail(onError);
+                return;
+            }
+            Map<String, String> objects = hub.channels.get(channelName);
+            if (objects != null) {
+                for (Map.Entry<String, String> entry : objects.entrySet()) {
+                    ret.add(new RethinkSyncClient.Attribute(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        if (onSuccess != null) {
+            dispatcher.execute(channelName, () -> onSuccess.onCallback(ret));
+        }
+    }
+
+    @Override
+    public void subscribe(String channelName,
+                          RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onCreate,
+                          RethinkSyncClient.ICallback<List<RethinkSyncClient.Attribute>> onUpdate,
+                          RethinkSyncClient.ICallback<List<String>> onDelete,
+                          RethinkSyncClient.ICallback<SyncManagerException> onError,
+                          Object tag) {
+        synchronized (hub) {
+            if (!attached) {
+                fail(onError);
+                return;
+            }
+            List<RethinkSyncClient.SubscribeListener> listeners = subscriptions.get(channelName);
+            if (listeners == null) {
+                listeners = new ArrayList<>();
+                subscriptions.put(channelName, listeners);
+            }
+            listeners.add(new RethinkSyncClient.SubscribeListener(onCreate, onUpdate, onDelete, onError, tag));
+        }
+    }
+
+    @Override
+    public void unsubscribe(String channelName, Object tag) {
+        synchronized (hub) {
+            List<String> scope = new ArrayList<>();
+            for (String channel : subscriptions.keySet()) {
+                if (channel.startsWith(channelName)) {
+                    scope.add(channel);
+                }
+            }
+            if (scope.isEmpty()) {
+                if (tag == null) {
+                    return;
+                }
+                scope.addAll(subscriptions.keySet());
+            }
+            for (String channel : scope) {
+                List<RethinkSyncClient.SubscribeListener> listeners = subscriptions.get(channel);
+                if (tag != null) {
+                    Iterator<RethinkSyncClient.SubscribeListener> iterator = listeners.iterator();
+                    while (iterator.hasNext()) {
+                        if (iterator.next().tag == tag) {
+                            iterator.remove();
+                        }
+                    }
+                }
+                if (tag == null || listeners.isEmpty()) {
+                    subscriptions.remove(channel);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void delete(String channelName, List<String> objectIds,
+                       RethinkSyncClient.ICallback<Void> onSuccess,
+                       RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        List<String> ids = Collections.unmodifiableList(new ArrayList<>(objectIds));
+        synchronized (hub) {
+            if (!attached) {
+                fail(onError);
+                return;
+            }
+            Map<String, String> objects = hub.channels.get(channelName);
+            if (objects != null) {
+                for (String id : ids) {
+                    objects.remove(id);
+                }
+                if (objects.isEmpty()) {
+                    hub.channels.remove(channelName);
+                }
+            }
+            hub.writes++;
+            if (onSuccess != null) {
+                dispatcher.execute(channelName, () -> onSuccess.onCallback(null));
+            }
+            for (LoopbackTransport transport : hub.transports) {
+                transport.deliverDelete(channelName, ids);
+            }
+        }
+    }
+
+    @Override
+    public void setConnectionStateListener(@Nullable Sync.ConnectionStateListener listener) {
+        connectionStateListener = listener;
+    }
+
+    /**
+     * @return always true, nothing waits for a server.
+     */
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    @Override
+    public void setWritabilityListener(@Nullable RethinkSyncClient.WritabilityListener listener) {
+        // never changes
+    }
+
+    private void write(String channelName, Object data, String objectId,
+                       RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onSuccess,
+                       RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        // the same props id and value RethinkSyncClient would send
+        String propsId = objectId;
+        String propsValue = "";
+        if (data instanceof String) {
+            if (TextUtils.isEmpty(objectId)) {
+                propsId = channelName;
+            }
+            propsValue = (String) data;
+        } else if (data != null) {
+            JsonElement tree = gson.toJsonTree(data);
+            if (!tree.isJsonObject()) {
+                if (onError != null) {
+                    SyncManagerException error = new SyncManagerException(RethinkSyncClient.ERROR_JSON_PARSE,
+                            "Json parse error, params=" + data);
+                    dispatcher.execute(channelName, () -> onError.onCallback(error));
+                }
+                return;
+            }
+            if (TextUtils.isEmpty(objectId)) {
+                propsValue = encoder.encodeProps(tree.getAsJsonObject(), channelName);
+                propsId = channelName;
+            } else {
+                propsValue = encoder.encodeProps(tree.getAsJsonObject(), null);
+            }
+        }
+        RethinkSyncClient.Attribute attribute = new RethinkSyncClient.Attribute(propsId, propsValue);
+        List<RethinkSyncClient.Attribute> update = Collections.singletonList(attribute);
+        synchronized (hub) {
+            if (!attached) {
+                fail(onError);
+                return;
+            }
+            Map<String, String> objects = hub.channels.get(channelName);
+            if (objects == null) {
+                objects = new LinkedHashMap<>();
+                hub.channels.put(channelName, objects);
+            }
+            objects.put(propsId, propsValue);
+            hub.writes++;
+            if (onSuccess != null) {
+                dispatcher.execute(channelName, () -> onSuccess.onCallback(attribute));
+            }
+            for (LoopbackTransport transport : hub.transports) {
+                transport.deliverUpdate(channelName, update);
+            }
+        }
+    }
+
+    // guarded by hub
+    private void deliverUpdate(String channelName, List<RethinkSyncClient.Attribute> update) {
+        List<RethinkSyncClient.SubscribeListener> listeners = subscriptions.get(channelName);
+        if (listeners == null) {
+            return;
+        }
+        for (RethinkSyncClient.SubscribeListener listener : listeners) {
+            if (listener.onUpdate != null) {
+                dispatcher.execute(channelName, () -> listener.onUpdate.onCallback(update));
+            }
+        }
+    }
+
+    // guarded by hub
+    private void deliverDelete(String channelName, List<String> ids) {
+        List<RethinkSyncClient.SubscribeListener> listeners = subscriptions.get(channelName);
+        if (listeners == null) {
+            return;
+        }
+        for (RethinkSyncClient.SubscribeListener listener : listeners) {
+            if (listener.onDelete != null) {
+                dispatcher.execute(channelName, () -> listener.onDelete.onCallback(ids));
+            }
+        }
+    }
+
+    // the dispatcher is shut down with the transport, so the caller hears it on its own thread
+    private static void fail(RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        if (onError != null) {
+            onError.onCallback(new SyncManagerException(RethinkSyncClient.ERROR_SOCKET_CLOSED,
+                    "loopback transport is released"));
+        }
+    }
+}
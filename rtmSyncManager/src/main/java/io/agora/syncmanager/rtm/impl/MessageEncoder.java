@@ -0,0 +1,194 @@
+package io.agora.syncmanager.rtm.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming encoder for outgoing Rethink frames.
+ *
+ * Frames are written with a {@link JsonWriter} into one reusable buffer, without the
+ * toJson/JSONObject/HashMap round trips the client used to do. Members are written in the order
+ * the former {@code gson.toJson(HashMap)} produced, so the wire output is unchanged for flat data.
+ */
+class MessageEncoder {
+
+    // buffers grown beyond this by an unusually large value are dropped instead of retained
+    private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    /**
+     * One outgoing op. Either {@code propsValue} (keyed by {@code propsId}) or {@code propsIds}
+     * is set, never both. {@code sinceSeq} is only set on a subscribe that resumes a
+     * subscription.
+     */
+    static class Op {
+        final String requestId;
+        final String action;
+        final String channelName;
+        final String propsId;
+        final String propsValue;
+        final List<String> propsIds;
+        final long sinceSeq;
+
+        Op(String requestId, String action, String channelName, String propsId, String propsValue) {
+            this(requestId, action, channelName, propsId, propsValue, null, 0);
+        }
+
+        Op(String requestId, String action, String channelName, List<String> propsIds) {
+            this(requestId, action, channelName, null, null, propsIds, 0);
+        }
+
+        Op(String requestId, String action, String channelName, long sinceSeq) {
+            this(requestId, action, channelName, null, null, null, sinceSeq);
+        }
+
+        private Op(String requestId, String action, String channelName, String propsId, String propsValue,
+                   List<String> propsIds, long sinceSeq) {
+            this.requestId = requestId;
+            this.action = action;
+            this.channelName = channelName;
+            this.propsId = propsId;
+            this.propsValue = propsValue;
+            this.propsIds = propsIds;
+            this.sinceSeq = sinceSeq;
+        }
+
+        /**
+         * @return approximate encoded size, without encoding anything.
+         */
+        int estimateBytes() {
+            int bytes = 64 + length(requestId) + length(action) + length(channelName);
+            if (propsValue != null) {
+                bytes += length(propsId) + propsValue.length();
+            }
+            if (propsIds != null) {
+                for (String id : propsIds) {
+                    bytes += length(id) + 3;
+                }
+            }
+            return bytes;
+        }
+
+        private static int length(String value) {
+            return value == null ? 0 : value.length();
+        }
+    }
+
+    private final Gson gson;
+    private StringWriter buffer = new StringWriter(256);
+
+    MessageEncoder(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * Encode the props value of a write: the members of {@code props}, plus {@code objectId} set
+     * to {@code defaultObjectId} when given and absent.
+     */
+    synchronized String encodeProps(JsonObject props, String defaultObjectId) {
+        // iterate in HashMap order, which is the order the value has always been written in
+        Map<String, JsonElement> members = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : props.entrySet()) {
+            members.put(entry.getKey(), entry.getValue());
+        }
+        if (defaultObjectId != null && !members.containsKey("objectId")) {
+            members.put("objectId", new JsonPrimitive(defaultObjectId));
+        }
+        try {
+            JsonWriter writer = newWriter();
+            writer.beginObject();
+            for (Map.Entry<String, JsonElement> entry : members.entrySet()) {
+                writer.name(entry.getKey());
+                gson.toJson(entry.getValue(), writer);
+            }
+            writer.endObject();
+            return drain();
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    /**
+     * @param appId null to leave the envelope out, e.g. for an op inside a batch.
+     */
+    synchronized String encode(String appId, Op op) {
+        try {
+            JsonWriter writer = newWriter();
+            writeOp(writer, appId, op);
+            return drain();
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    synchronized String encodeBatch(String appId, String requestId, String action, List<Op> ops) {
+        try {
+            JsonWriter writer = newWriter();
+            writer.beginObject();
+            writer.name("ops").beginArray();
+            for (Op op : ops) {
+                writeOp(writer, null, op);
+            }
+            writer.endArray();
+            writer.name("requestId").value(requestId);
+            writer.name("appId").value(appId);
+            writer.name("action").value(action);
+            writer.endObject();
+            return drain();
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    private void writeOp(JsonWriter writer, String appId, Op op) throws IOException {
+        writer.beginObject();
+        writer.name("requestId").value(op.requestId);
+        if (appId != null) {
+            writer.name("appId").value(appId);
+        }
+        writer.name("action").value(op.action);
+        writer.name("channelName").value(op.channelName);
+        if (op.sinceSeq > 0) {
+            writer.name("sinceSeq").value(op.sinceSeq);
+        }
+        if (op.propsIds != null) {
+            writer.name("props").beginArray();
+            for (String id : op.propsIds) {
+                writer.value(id);
+            }
+            writer.endArray();
+        } else if (op.propsValue != null && op.propsValue.length() > 0) {
+            writer.name("props").beginObject();
+            writer.name(op.propsId).value(op.propsValue);
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+
+    private JsonWriter newWriter() {
+        buffer.getBuffer().setLength(0);
+        JsonWriter writer = new JsonWriter(buffer);
+        // same settings as a default Gson instance
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    private String drain() {
+        StringBuffer chars = buffer.getBuffer();
+        String ret = chars.toString();
+        if (chars.capacity() > MAX_RETAINED_CHARS) {
+            buffer = new StringWriter(256);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,349 @@
+package io.agora.syncmanager.rtm.impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.agora.syncmanager.rtm.utils.SyncLog;
+
+/**
+ * Writes waiting for the socket, in the order they were made.
+ *
+ * Entries stay until the server acknowledges them, so a write that was flushed but not
+ * acknowledged before the link dropped again is sent again on the next connection, under the same
+ * request id. A new write to the same key as a queued one replaces it and moves to the end of the
+ * queue, which keeps the final value of every key while sending it once.
+ *
+ * Memory is bounded by an entry count and an approximate byte size. With a journal file, every
+ * entry and every acknowledgement is appended to it through a {@link FileChannel}, so the queue
+ * survives a process restart; the file is compacted down to the live entries when it is opened
+ * and whenever most of it is dead. Records are not forced to the device one by one, a crash of
+ * the process loses nothing but a power cut may lose the latest ones.
+ */
+class Outbox {
+
+    private static final String LOG_TAG = "RethinkSyncOutbox";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int COMPACT_MIN_DEAD_RECORDS = 256;
+
+    static class Entry {
+        final String key;
+        final MessageEncoder.Op op;
+        final RethinkSyncClient.CallbackHandler handler;
+        final int bytes;
+
+        // generation of the connection the write was last sent on, guarded by the outbox
+        int sentOn;
+
+        Entry(String key, MessageEncoder.Op op, RethinkSyncClient.CallbackHandler handler) {
+            this.key = key;
+            this.op = op;
+            this.handler = handler;
+            this.bytes = op.estimateBytes();
+        }
+    }
+
+    private final MessageEncoder encoder;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // guarded by this, in queue order
+    private final LinkedHashMap<String, Entry> byRequestId = new LinkedHashMap<>();
+    private final Map<String, Entry> byKey = new HashMap<>();
+    private long bytes;
+
+    private final File journalFile;
+    private FileChannel journal;
+    private int deadRecords;
+
+    /**
+     * @param journalFile where to keep the queue across restarts, or null to keep it in memory only
+     */
+    Outbox(MessageEncoder encoder, int maxEntries, long maxBytes, File journalFile) {
+        this.encoder = encoder;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Open the journal and return the writes it still holds, oldest first. Their handlers are
+     * created by {@code handlers} since the callbacks of a previous process are gone.
+     */
+    synchronized List<Entry> open(HandlerFactory handlers) {
+        if (journalFile == null) {
+            return new ArrayList<>();
+        }
+        List<Entry> restored = new ArrayList<>();
+        try {
+            for (Entry entry : readJournal(handlers)) {
+                if (byRequestId.size() < maxEntries && bytes + entry.bytes <= maxBytes) {
+                    add(entry);
+                    restored.add(entry);
+                } else {
+                    SyncLog.e(LOG_TAG, "outbox full, dropping journaled write " + entry.op.requestId);
+                }
+            }
+            compact();
+        } catch (IOException e) {
+            SyncLog.e(LOG_TAG, "outbox journal unavailable, keeping writes in memory only", e);
+            closeJournal();
+        }
+        return restored;
+    }
+
+    interface HandlerFactory {
+        RethinkSyncClient.CallbackHandler create(MessageEncoder.Op op);
+    }
+
+    /**
+     * Queue a write. A queued write with the same non-null key that has not been sent on the
+     * connection of generation {@code gen} is dropped in favour of this one and added to
+     * {@code superseded}, so the caller can complete it along with its replacement.
+     *
+     * @return false if the outbox is full
+     */
+    synchronized boolean offer(Entry entry, int gen, List<Entry> superseded) {
+        Entry previous = entry.key == null ? null : byKey.get(entry.key);
+        if (previous != null && previous.sentOn == gen) {
+            // already on the wire, its reply is on the way
+            previous = null;
+        }
+        long freed = previous == null ? 0 : previous.bytes;
+        int count = byRequestId.size() - (previous == null ? 0 : 1);
+        if (count >= maxEntries || bytes - freed + entry.bytes > maxBytes) {
+            return false;
+        }
+        if (previous != null) {
+            remove(previous.op.requestId);
+            superseded.add(previous);
+        }
+        add(entry);
+        append("+\t" + (entry.key == null ? "" : entry.key) + "\t" + encoder.encode(null, entry.op) + "\n");
+        return true;
+    }
+
+    /**
+     * Drop an acknowledged or abandoned write.
+     */
+    synchronized void remove(String requestId) {
+        Entry entry = byRequestId.remove(requestId);
+        if (entry == null) {
+            return;
+        }
+        if (entry.key != null && byKey.get(entry.key) == entry) {
+            byKey.remove(entry.key);
+        }
+        bytes -= entry.bytes;
+        if (journal != null) {
+            append("-\t" + requestId + "\n");
+            deadRecords += 2;
+            if (deadRecords >= COMPACT_MIN_DEAD_RECORDS && deadRecords > 4 * byRequestId.size()) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    SyncLog.e(LOG_TAG, "outbox journal compaction failed, keeping writes in memory only", e);
+                    closeJournal();
+                }
+            }
+        }
+    }
+
+    synchronized boolean contains(String requestId) {
+        return byRequestId.containsKey(requestId);
+    }
+
+    /**
+     * @return true if some write has not been sent on the connection of generation {@code gen}.
+     */
+    synchronized boolean hasUnsent(int gen) {
+        for (Entry entry : byRequestId.values()) {
+            if (entry.sentOn != gen) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the writes not yet sent on the connection of generation {@code gen}, oldest first,
+     * now marked as sent on it.
+     */
+    synchronized List<Entry> takeUnsent(int gen) {
+        List<Entry> ret = new ArrayList<>();
+        for (Entry entry : byRequestId.values()) {
+            if (entry.sentOn != gen) {
+                entry.sentOn = gen;
+                ret.add(entry);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the queued writes, oldest first.
+     */
+    synchronized List<Entry> entries() {
+        return new ArrayList<>(byRequestId.values());
+    }
+
+    synchronized boolean isEmpty() {
+        return byRequestId.isEmpty();
+    }
+
+    synchronized int size() {
+        return byRequestId.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized void close() {
+        closeJournal();
+    }
+
+    private void add(Entry entry) {
+        byRequestId.put(entry.op.requestId, entry);
+        if (entry.key != null) {
+            byKey.put(entry.key, entry);
+        }
+        bytes += entry.bytes;
+    }
+
+    private void append(String record) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(UTF_8));
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+        } catch (IOException e) {
+            SyncLog.e(LOG_TAG, "outbox journal write failed, keeping writes in memory only", e);
+            closeJournal();
+        }
+    }
+
+    private List<Entry> readJournal(HandlerFactory handlers) throws IOException {
+        LinkedHashMap<String, Entry> live = new LinkedHashMap<>();
+        if (!journalFile.exists()) {
+            return new ArrayList<>();
+        }
+        String content;
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "r")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            content = new String(buffer.array(), 0, buffer.position(), UTF_8);
+        }
+        // a torn last line from a crash mid-append has no newline and is ignored
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            String line = content.substring(start, end);
+            start = end + 1;
+            String[] fields = line.split("\t", 3);
+            if ("+".equals(fields[0]) && fields.length == 3) {
+                MessageEncoder.Op op;
+                try {
+                    op = decode(fields[2]);
+                } catch (JsonParseException | IllegalStateException e) {
+                    SyncLog.e(LOG_TAG, "skipping unreadable outbox record " + line);
+                    continue;
+                }
+                String key = fields[1].isEmpty() ? null : fields[1];
+                if (key != null) {
+                    Iterator<Entry> iterator = live.values().iterator();
+                    while (iterator.hasNext()) {
+                        if (key.equals(iterator.next().key)) {
+                            iterator.remove();
+                        }
+                    }
+                }
+                live.put(op.requestId, new Entry(key, op, handlers.create(op)));
+            } else if ("-".equals(fields[0]) && fields.length == 2) {
+                live.remove(fields[1]);
+            }
+        }
+        return new ArrayList<>(live.values());
+    }
+
+    // rewrite the journal with the live entries only, then append to the new file
+    private void compact() throws IOException {
+        closeJournal();
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            for (Entry entry : byRequestId.values()) {
+                ByteBuffer buffer = ByteBuffer.wrap(("+\t" + (entry.key == null ? "" : entry.key) + "\t"
+                        + encoder.encode(null, entry.op) + "\n").getBytes(UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(true);
+        }
+        if (!tmp.renameTo(journalFile)) {
+            throw new IOException("cannot replace " + journalFile);
+        }
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        journal = file.getChannel();
+        journal.position(journal.size());
+        deadRecords = 0;
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Read back a write encoded without envelope by {@link MessageEncoder#encode}.
+     */
+    static MessageEncoder.Op decode(String frame) {
+        JsonObject object = JsonParser.parseString(frame).getAsJsonObject();
+        String requestId = object.get("requestId").getAsString();
+        String action = object.get("action").getAsString();
+        String channelName = object.get("channelName").getAsString();
+        JsonElement props = object.get("props");
+        if (props != null && props.isJsonArray()) {
+            JsonArray array = props.getAsJsonArray();
+            List<String> ids = new ArrayList<>(array.size());
+            for (JsonElement id : array) {
+                ids.add(id.getAsString());
+            }
+            return new MessageEncoder.Op(requestId, action, channelName, ids);
+        }
+        if (props != null && props.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> member : props.getAsJsonObject().entrySet()) {
+                return new MessageEncoder.Op(requestId, action, channelName, member.getKey(), member.getValue().getAsString());
+            }
+        }
+        return new MessageEncoder.Op(requestId, action, channelName, null, null);
+    }
+}
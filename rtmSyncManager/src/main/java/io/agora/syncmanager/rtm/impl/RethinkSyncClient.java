@@ -2,78 +2,561 @@ package io.agora.syncmanager.rtm.impl;
 
 import android.os.Build;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
 import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ServerHandshake;
-import org.java_websocket.util.NamedThreadFactory;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLParameters;
 
 import io.agora.common.annotation.NonNull;
+import io.agora.common.annotation.Nullable;
 import io.agora.syncmanager.rtm.IObject;
+import io.agora.syncmanager.rtm.Sync;
 import io.agora.syncmanager.rtm.SyncManagerException;
+import io.agora.syncmanager.rtm.utils.SyncLog;
 import io.agora.syncmanager.rtm.utils.UUIDUtil;
 
-public class RethinkSyncClient {
+public class RethinkSyncClient implements SyncTransport {
     private static final String LOG_TAG = "RethinkSyncClient";
     private static final String SOCKET_HOST_NAME = "rethinkdb-msg.bj2.agoralab.co";
     private static final String SOCKET_URL = "wss://" + SOCKET_HOST_NAME;
 
-    private static final int ERROR_JSON_PARSE = -1001;
-    private static final int ERROR_SOCKET_CLOSED = -1002;
+    // dispatcher key of connection state events, keeps them in order
+    private static final String CONNECTION_STATE_KEY = "";
+    private static final String BATCH_ACTION = "batch";
+    private static final int FRAME_RECORDS = 512;
+
+    static final int ERROR_JSON_PARSE = -1001;
+    static final int ERROR_SOCKET_CLOSED = -1002;
     private static final int ERROR_SERVER_DATA = -1003;
-    private static final int ERROR_CALLBACK_EXPIRED = -1004;
+    private static final int ERROR_REQUEST_TIMEOUT = -1004;
+    private static final int ERROR_OUTBOX_FULL = -1005;
+    private static final int ERROR_WINDOW_FULL = -1006;
+
+    /**
+     * Operations that wait for a server reply and therefore carry a timeout.
+     */
+    public enum Operation {
+        ADD, UPDATE, QUERY, DELETE
+    }
+
+    /**
+     * What a write does when the in-flight window is full.
+     */
+    public enum FlowControl {
+        /**
+         * Wait for room, up to a timeout, then fail. Never use it on the main thread.
+         */
+        BLOCK,
+        /**
+         * Fail right away with error -1006.
+         */
+        REJECT,
+        /**
+         * Send anyway and report the window as unwritable, the producer is expected to pause
+         * until it is writable again.
+         */
+        SIGNAL
+    }
+
+    public interface WritabilityListener {
+        /**
+         * @param writable false once the in-flight window fills up, true when writes may resume
+         */
+        void onWritabilityChanged(boolean writable);
+    }
 
     private String appId;
     private String channelName;
 
-    private WebSocketClient socketClient;
+    private volatile WebSocketClient socketClient;
+    private volatile String socketUrl = SOCKET_URL;
+
+    private final Object connectLock = new Object();
+    // written under connectLock
+    private volatile int generation;
+    private volatile Sync.ConnectionState connectionState = Sync.ConnectionState.DISCONNECTED;
+    private volatile Sync.ConnectionStateListener connectionStateListener;
+    private ICallback<Integer> initCallback;
+    private HashedWheelTimer.Timeout reconnectTimeout;
+    private boolean released;
+    private boolean everConnected;
+    private int failedAttempts;
+    private long lastAttemptNanos;
+    private volatile long connectAttempts;
+
+    private volatile long reconnectBaseDelayMs = 500;
+    private volatile long reconnectMaxDelayMs = TimeUnit.SECONDS.toMillis(30);
+    private volatile long reconnectMinIntervalMs = 1000;
+    private final Random random = new Random();
 
-    private ScheduledExecutorService heartTimer;
-    private ScheduledFuture<?> heartFuture;
     private final Object heartTimerLock = new Object();
-    private volatile long heartLastPong = 0;
+    // guarded by heartTimerLock
+    private HashedWheelTimer.Timeout heartTimeout;
+    private final ArrayDeque<PingInFlight> pingsInFlight = new ArrayDeque<>();
+    private volatile long heartbeatIntervalMs = TimeUnit.SECONDS.toMillis(10);
+    private volatile int heartbeatMaxMissed = 2;
+    private final RttHistogram rtt = new RttHistogram();
+
+    private final CallbackRegistry callbackHandlers = new CallbackRegistry();
+
+    // one server subscription per channel, guarded by itself
+    private final Map<String, Subscription> subscriptions = new HashMap<>();
 
-    public final Map<String, CallbackHandler> callbackHandlers = new ConcurrentHashMap<>();
+    private final HashedWheelTimer timer = new HashedWheelTimer("RethinkSyncTimer", 20, TimeUnit.MILLISECONDS, 512);
+    private final Map<Operation, Long> requestTimeouts = new EnumMap<>(Operation.class);
+
+    private volatile FrameBatcher batcher;
+
+    // null when compression is off
+    private volatile DeflateExtension compression;
+
+    private volatile StripedExecutor dispatcher = new StripedExecutor("RethinkSyncDispatch",
+            StripedExecutor.DEFAULT_THREADS, StripedExecutor.DEFAULT_QUEUE_CAPACITY);
+
+    private final CoalescingWriteQueue<UpdateRequest, Attribute> updateQueue =
+            new CoalescingWriteQueue<>((key, request, completion) -> sendUpdate(request, completion));
+
+    {
+        for (Operation operation : Operation.values()) {
+            requestTimeouts.put(operation, TimeUnit.SECONDS.toMillis(10));
+        }
+    }
 
     private final static Gson gson = new Gson();
 
+    private final MessageEncoder encoder = new MessageEncoder(gson);
+
+    // the latest socket frames, dumped on demand
+    private final FrameRecorder frames = new FrameRecorder(FRAME_RECORDS);
+
+    // null when flow control is off
+    private volatile CreditWindow window;
+    private volatile WritabilityListener writabilityListener;
+    // last state given to the listener, only touched on the dispatcher under CONNECTION_STATE_KEY
+    private boolean reportedWritable = true;
+
+    // writes made while the socket is down, null when disabled
+    private volatile Outbox outbox;
+    private final Object outboxFlushLock = new Object();
+
+    /**
+     * Start connecting and return right away. {@code complete} is called once, with 0 when the
+     * first connection opens; after that, connection losses are retried with backoff and only
+     * reported through {@link #setConnectionStateListener}.
+     */
+    @Override
     public void init(String appId, String channelName, ICallback<Integer> complete) {
         this.appId = appId;
         this.channelName = channelName;
-        connect(complete, true);
+        synchronized (connectLock) {
+            released = false;
+            initCallback = complete;
+        }
+        connect();
     }
 
+    @Override
     public void release() {
-        disconnect();
-        synchronized (callbackHandlers) {
-            callbackHandlers.clear();
+        synchronized (connectLock) {
+            released = true;
+            generation++;
+            if (reconnectTimeout != null) {
+                reconnectTimeout.cancel();
+                reconnectTimeout = null;
+            }
+            disconnect();
+            setState(Sync.ConnectionState.DISCONNECTED);
+        }
+        timer.stop();
+        dispatcher.shutdown();
+        callbackHandlers.clear();
+        Outbox outbox = this.outbox;
+        if (outbox != null) {
+            outbox.close();
+        }
+        synchronized (subscriptions) {
+            subscriptions.clear();
+        }
+    }
+
+    /**
+     * Override the server endpoint, e.g. {@code ws://10.0.2.2:8080} for a local server. Takes
+     * effect on the next connection attempt.
+     */
+    public void setSocketUrl(String socketUrl) {
+        this.socketUrl = socketUrl;
+    }
+
+    /**
+     * Configure reconnect backoff. After a connection loss the n-th attempt waits a random delay
+     * between half and all of {@code min(maxDelay, initialDelay * 2^(n-1))}, and two attempts are
+     * never closer than {@code minInterval}, which caps the attempt rate during an outage.
+     */
+    public void setReconnectPolicy(long initialDelay, long maxDelay, long minInterval, TimeUnit unit) {
+        reconnectBaseDelayMs = Math.max(1, unit.toMillis(initialDelay));
+        reconnectMaxDelayMs = Math.max(reconnectBaseDelayMs, unit.toMillis(maxDelay));
+        reconnectMinIntervalMs = Math.max(0, unit.toMillis(minInterval));
+    }
+
+    /**
+     * Configure the application heartbeat. A ping goes out every {@code interval} while connected,
+     * and the connection is dropped and re-established once {@code maxMissedPongs} pings in a row
+     * are unanswered. A zero interval disables the heartbeat. Takes effect on the next connection.
+     */
+    public void setHeartbeat(long interval, TimeUnit unit, int maxMissedPongs) {
+        heartbeatIntervalMs = unit.toMillis(interval);
+        heartbeatMaxMissed = Math.max(1, maxMissedPongs);
+    }
+
+    /**
+     * @return smoothed heartbeat round-trip time, or -1 before the first pong.
+     */
+    public long getRtt(TimeUnit unit) {
+        return rtt.getSmoothed(unit);
+    }
+
+    /**
+     * @return upper bound in ms of the heartbeat round-trip time at the given percentile, e.g. 99,
+     * or -1 before the first pong.
+     */
+    public long getRttPercentileMillis(double percentile) {
+        return rtt.getPercentileMillis(percentile);
+    }
+
+    /**
+     * @return the latest frames sent and received, oldest first, one per line: time, direction,
+     * action, channel and size. Payloads are not kept.
+     */
+    public String dumpFrames() {
+        StringBuilder out = new StringBuilder();
+        frames.dump(out);
+        return out.toString();
+    }
+
+    /**
+     * @return heartbeat round-trip time sample counts in power-of-two millisecond buckets: under
+     * 1ms, [1, 2), [2, 4) and so on, the last bucket open ended.
+     */
+    public long[] getRttHistogram() {
+        return rtt.getBuckets();
+    }
+
+    @Override
+    public void setConnectionStateListener(Sync.ConnectionStateListener listener) {
+        connectionStateListener = listener;
+    }
+
+    public Sync.ConnectionState getConnectionState() {
+        return connectionState;
+    }
+
+    /**
+     * @return number of connection attempts made, the first one included.
+     */
+    public long getConnectAttempts() {
+        return connectAttempts;
+    }
+
+    /**
+     * Set how long an operation waits for its server reply before failing with a timeout error.
+     * A value of zero or less disables the timeout.
+     */
+    public void setRequestTimeout(Operation operation, long timeout, TimeUnit unit) {
+        requestTimeouts.put(operation, unit.toMillis(timeout));
+    }
+
+    /**
+     * Batch outgoing add/update/delete ops into multi-op frames. A batch is sent once it holds
+     * {@code maxOps} ops or roughly {@code maxBytes} bytes, or when {@code window} has passed since
+     * its first op. Each op still gets its own reply and callback.
+     *
+     * @param maxOps ops per frame, 1 or less disables batching (the default)
+     */
+    public void setBatchPolicy(int maxOps, int maxBytes, long window, TimeUnit unit) {
+        FrameBatcher previous = batcher;
+        batcher = maxOps > 1 ? new FrameBatcher(encoder, timer, this::sendBatch, maxOps, maxBytes, window, unit) : null;
+        if (previous != null) {
+            previous.flush(appId);
+        }
+    }
+
+    /**
+     * Queue add, update and delete while the socket is down instead of failing them, and send
+     * them in order once it is back. Call before {@link #init}. Off by default: writes made while
+     * the socket is down fail right away with {@code ERROR_SOCKET_CLOSED}.
+     *
+     * @param maxEntries writes to hold, 0 disables the outbox
+     * @param maxBytes   approximate size of the writes to hold
+     * @param journal    file to keep the queue in across restarts, or null for memory only.
+     *                   Writes it still holds are sent on the next connection, and since their
+     *                   callers are gone with the previous process, a failure is only logged.
+     *                   One file per client, two clients must not share it.
+     */
+    public void setOutbox(int maxEntries, long maxBytes, @Nullable File journal) {
+        Outbox previous = outbox;
+        if (previous != null) {
+            previous.close();
         }
+        if (maxEntries <= 0) {
+            outbox = null;
+            return;
+        }
+        Outbox created = new Outbox(encoder, maxEntries, maxBytes, journal);
+        List<Outbox.Entry> restored = created.open(op -> {
+            CallbackHandler handler = new CallbackHandler(op.requestId, SocketType.valueOf(op.action), requestTimeouts.get(Operation.UPDATE)) {
+                @Override
+                boolean handleResult(int code, String message) {
+                    if (code != 0) {
+                        SyncLog.e(LOG_TAG, "journaled write " + op.requestId + " failed, code=" + code + " " + message);
+                    }
+                    return true;
+                }
+
+                @Override
+                boolean handleAttrs(SocketType type, InboundFrame frame) {
+                    return true;
+                }
+            };
+            handler.channelName = op.channelName;
+            return new QueuedHandler(handler);
+        });
+        if (!restored.isEmpty()) {
+            SyncLog.d(LOG_TAG, () -> "outbox restored " + restored.size() + " writes from " + journal);
+        }
+        outbox = created;
+    }
+
+    /**
+     * @return number of writes waiting in the outbox, including those sent but not yet acknowledged.
+     */
+    public int getOutboxDepth() {
+        Outbox outbox = this.outbox;
+        return outbox == null ? 0 : outbox.size();
+    }
+
+    /**
+     * @return approximate size in bytes of the writes waiting in the outbox.
+     */
+    public long getOutboxBytes() {
+        Outbox outbox = this.outbox;
+        return outbox == null ? 0 : outbox.bytes();
+    }
+
+    /**
+     * Bound the writes (add, update, delete) that are sent but not yet acknowledged, by count and
+     * by size. Off by default, every write is sent as it comes. Writes waiting in the outbox
+     * while the socket is down are not counted until they are sent.
+     *
+     * @param maxRequests  unacknowledged writes, 0 disables flow control
+     * @param maxBytes     approximate size of the unacknowledged writes
+     * @param blockTimeout how long {@link FlowControl#BLOCK} waits for room
+     */
+    public void setFlowControl(int maxRequests, long maxBytes, FlowControl policy, long blockTimeout, TimeUnit unit) {
+        window = maxRequests > 0 ? newWindow(maxRequests, maxBytes, policy, blockTimeout, unit) : null;
+    }
+
+    @Override
+    public void setWritabilityListener(@Nullable WritabilityListener listener) {
+        writabilityListener = listener;
+    }
+
+    /**
+     * @return false while the in-flight window is full.
+     */
+    @Override
+    public boolean isWritable() {
+        CreditWindow window = this.window;
+        return window == null || window.isWritable();
+    }
+
+    /**
+     * @return number of writes sent and not yet acknowledged.
+     */
+    public int getInFlightRequestCount() {
+        CreditWindow window = this.window;
+        return window == null ? 0 : window.getRequests();
+    }
+
+    /**
+     * @return approximate size of the writes sent and not yet acknowledged.
+     */
+    public long getInFlightBytes() {
+        CreditWindow window = this.window;
+        return window == null ? 0 : window.getBytes();
+    }
+
+    /**
+     * @return the window size in writes, 0 if flow control is off.
+     */
+    public int getMaxInFlightRequests() {
+        CreditWindow window = this.window;
+        return window == null ? 0 : window.getMaxRequests();
+    }
+
+    /**
+     * @return the window size in bytes, 0 if flow control is off.
+     */
+    public long getMaxInFlightBytes() {
+        CreditWindow window = this.window;
+        return window == null ? 0 : window.getMaxBytes();
+    }
+
+    /**
+     * @return number of writes failed because the window stayed full.
+     */
+    public long getRejectedWriteCount() {
+        CreditWindow window = this.window;
+        return window == null ? 0 : window.getRejectedCount();
+    }
+
+    private CreditWindow newWindow(int maxRequests, long maxBytes, FlowControl policy, long blockTimeout, TimeUnit unit) {
+        return new CreditWindow(maxRequests, maxBytes, policy, blockTimeout, unit,
+                writable -> dispatcher.execute(CONNECTION_STATE_KEY, this::reportWritability));
+    }
+
+    // runs on the dispatcher, reports the current state so that racing changes cannot end on a stale one
+    private void reportWritability() {
+        boolean writable = isWritable();
+        WritabilityListener listener = writabilityListener;
+        if (writable != reportedWritable) {
+            reportedWritable = writable;
+            if (listener != null) {
+                listener.onWritabilityChanged(writable);
+            }
+        }
+    }
+
+    /**
+     * Take window credit for a write about to be sent, or fail it.
+     *
+     * @return false if the write was failed
+     */
+    private boolean acquireCredit(CallbackHandler handler, MessageEncoder.Op op) {
+        CreditWindow window = this.window;
+        if (window == null) {
+            return true;
+        }
+        int size = op.estimateBytes();
+        boolean granted;
+        try {
+            granted = window.acquire(size);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            granted = false;
+        }
+        if (!granted) {
+            handler.handleResult(ERROR_WINDOW_FULL, "too many writes in flight: " + window.getRequests()
+                    + " requests, " + window.getBytes() + " bytes");
+            return false;
+        }
+        handler.creditWindow = window;
+        handler.credit.set(size);
+        return true;
+    }
+
+    private void forceCredit(CallbackHandler handler, MessageEncoder.Op op) {
+        CreditWindow window = this.window;
+        if (window != null && handler.credit.get() == 0) {
+            int size = op.estimateBytes();
+            window.force(size);
+            handler.creditWindow = window;
+            handler.credit.set(size);
+        }
+    }
+
+    private static void releaseCredit(CallbackHandler handler) {
+        int size = handler.credit.getAndSet(0);
+        if (size > 0) {
+            handler.creditWindow.release(size);
+        }
+    }
+
+    /**
+     * Negotiate permessage-deflate on the socket, off by default. Servers without it are talked to
+     * uncompressed. Takes effect on the next connection.
+     *
+     * @param threshold       frames shorter than this many bytes are sent uncompressed
+     * @param level           deflate level from 0 to 9, -1 for the default
+     * @param contextTakeover keep the compression window across messages: much better ratios on
+     *                        small repetitive frames, for about 300KB of zlib state per connection
+     */
+    public void setCompression(boolean enabled, int threshold, int level, boolean contextTakeover) {
+        compression = enabled ? new DeflateExtension(threshold, level, contextTakeover) : null;
+    }
+
+    /**
+     * Replace the executor that runs callbacks. Replies, events and timeouts of one channel keep
+     * their order; different channels are handled in parallel.
+     */
+    void setDispatcher(StripedExecutor dispatcher) {
+        StripedExecutor previous = this.dispatcher;
+        this.dispatcher = dispatcher;
+        previous.shutdown();
+    }
+
+    /**
+     * @return number of callbacks waiting to be dispatched.
+     */
+    public int getDispatchQueueDepth() {
+        return dispatcher.getQueueDepth();
+    }
+
+    /**
+     * @return number of times a transport thread waited because the dispatch queue was full.
+     */
+    public long getDispatchBlockedCount() {
+        return dispatcher.getBlockedCount();
+    }
+
+    /**
+     * @return number of frames sent by the batcher since batching was enabled.
+     */
+    public long getBatchFramesSent() {
+        FrameBatcher batcher = this.batcher;
+        return batcher == null ? 0 : batcher.getFramesSent();
+    }
+
+    /**
+     * @return number of write ops sent by the batcher since batching was enabled.
+     */
+    public long getBatchOpsSent() {
+        FrameBatcher batcher = this.batcher;
+        return batcher == null ? 0 : batcher.getOpsSent();
     }
 
+    /**
+     * @return number of requests still waiting for a server reply, subscriptions included.
+     */
+    public int getPendingRequestCount() {
+        return callbackHandlers.size();
+    }
+
+    @Override
     public void add(String channelName,
                     Object data,
                     String objectId,
@@ -81,7 +564,7 @@ public class RethinkSyncClient {
                     ICallback<SyncManagerException> onError) {
         String uuid = UUIDUtil.uuid();
         writeData(uuid, channelName, data, objectId, SocketType.send, true,
-                new CallbackHandler(uuid, SocketType.send) {
+                new CallbackHandler(uuid, SocketType.send, requestTimeouts.get(Operation.ADD)) {
                     @Override
                     boolean handleResult(int code, String message) {
                         if (code != 0) {
@@ -97,49 +580,77 @@ public class RethinkSyncClient {
                     }
 
                     @Override
-                    boolean handleAttrs(SocketType type, JSONObject data, List<Attribute> attributes) {
+                    boolean handleAttrs(SocketType type, InboundFrame frame) {
                         return true;
                     }
                 });
     }
 
+    /**
+     * Updates to the same object are coalesced: while one is in flight only the latest of the
+     * following values is sent, and every superseded caller completes with that winning write.
+     */
+    @Override
     public void update(String channelName,
                        Object data,
                        String objectId,
                        ICallback<Attribute> onSuccess,
                        ICallback<SyncManagerException> onError
     ) {
+        updateQueue.submit(channelName + '\u0000' + objectId, new UpdateRequest(channelName, data, objectId),
+                new CoalescingWriteQueue.Completion<Attribute>() {
+                    @Override
+                    public void onSuccess(Attribute result) {
+                        if (onSuccess != null) {
+                            onSuccess.onCallback(result);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(SyncManagerException exception) {
+                        if (onError != null) {
+                            onError.onCallback(exception);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @return number of updates that were superseded by a newer value before being sent.
+     */
+    public long getCoalescedUpdateCount() {
+        return updateQueue.getCoalescedCount();
+    }
+
+    private void sendUpdate(UpdateRequest request, CoalescingWriteQueue.Completion<Attribute> completion) {
         String uuid = UUIDUtil.uuid();
-        writeData(uuid, channelName, data, objectId, SocketType.send, false,
-                new CallbackHandler(uuid, SocketType.send) {
+        writeData(uuid, request.channelName, request.data, request.objectId, SocketType.send, false,
+                new CallbackHandler(uuid, SocketType.send, requestTimeouts.get(Operation.UPDATE)) {
                     @Override
                     boolean handleResult(int code, String message) {
                         if (code != 0) {
-                            if (onError != null) {
-                                onError.onCallback(new SyncManagerException(code, message));
-                            }
+                            completion.onFailure(new SyncManagerException(code, message));
                         } else {
-                            if (onSuccess != null) {
-                                onSuccess.onCallback(new Attribute(propsId, propsValue));
-                            }
+                            completion.onSuccess(new Attribute(propsId, propsValue));
                         }
                         return true;
                     }
 
                     @Override
-                    boolean handleAttrs(SocketType type, JSONObject data, List<Attribute> attributes) {
+                    boolean handleAttrs(SocketType type, InboundFrame frame) {
                         return true;
                     }
                 });
     }
 
 
+    @Override
     public void query(String channelName,
                       ICallback<List<Attribute>> onSuccess,
                       ICallback<SyncManagerException> onError) {
         String uuid = UUIDUtil.uuid();
         writeData(uuid, channelName, null, "", SocketType.query, false,
-                new CallbackHandler(uuid, SocketType.query) {
+                new CallbackHandler(uuid, SocketType.query, requestTimeouts.get(Operation.QUERY)) {
                     @Override
                     boolean handleResult(int code, String message) {
                         if (code != 0) {
@@ -152,245 +663,336 @@ public class RethinkSyncClient {
                     }
 
                     @Override
-                    boolean handleAttrs(SocketType type, JSONObject data, List<Attribute> attributes) {
+                    boolean handleAttrs(SocketType type, InboundFrame frame) {
                         if (onSuccess != null) {
-                            onSuccess.onCallback(attributes);
+                            onSuccess.onCallback(frame.attributes());
                         }
                         return true;
                     }
                 });
     }
 
+    /**
+     * Listen to a channel. All listeners of a channel share one server subscription: the first
+     * one sends {@code subscribe}, later ones only join the local fan-out.
+     */
+    @Override
     public void subscribe(String channelName,
                           ICallback<Attribute> onCreate,
                           ICallback<List<Attribute>> onUpdate,
                           ICallback<List<String>> onDelete,
                           ICallback<SyncManagerException> onError,
                           Object tag) {
-        String requestId = UUIDUtil.uuid();
-        writeData(requestId, channelName, null, "", SocketType.subscribe, false,
-                new CallbackHandler(requestId, SocketType.subscribe, tag, -1) {
-                    @Override
-                    void handleLocalCreate(Attribute attribute) {
-                        super.handleLocalCreate(attribute);
-                        if (onCreate != null) {
-                            onCreate.onCallback(attribute);
-                        }
-                    }
-
-                    @Override
-                    void handleLocalDelete(Attribute attribute) {
-                        super.handleLocalDelete(attribute);
-                        if (onDelete != null) {
-                            onDelete.onCallback(Collections.singletonList(attribute.key));
-                        }
-                    }
-
-                    @Override
-                    boolean handleResult(int code, String message) {
-                        if (code != 0 && code != ERROR_SERVER_DATA) {
-                            if (onError != null) {
-                                onError.onCallback(new SyncManagerException(code, message));
-                            }
-                            return true;
-                        }
-                        return false;
-                    }
-
-                    @Override
-                    boolean handleAttrs(SocketType type, JSONObject data, List<Attribute> attributes) {
-                        if (type == SocketType.send) {
-                            String propsUpdate = data.optString("propsUpdate");
-                            if (!TextUtils.isEmpty(propsUpdate) && onUpdate != null) {
-                                try {
-                                    JSONObject jsonObject = new JSONObject(propsUpdate);
-                                    List<Attribute> ret = new ArrayList<>();
-
-                                    JSONArray names = jsonObject.names();
-                                    if (names != null) {
-                                        for (int i = 0; i < names.length(); i++) {
-                                            String key = names.optString(i);
-                                            String value = jsonObject.optString(key);
-                                            ret.add(new Attribute(key, value));
-                                        }
-                                    }
-                                    onUpdate.onCallback(ret);
-                                } catch (JSONException e) {
-                                    handleResult(ERROR_JSON_PARSE, "propsUpdate parse error");
-                                }
-                            }
-                        } else if (type == SocketType.deleteProp) {
-                            JSONArray propsDel = data.optJSONArray("propsDel");
-                            if (propsDel != null && onDelete != null) {
-                                List<String> objIds = new ArrayList<>();
-                                for (int i = 0; i < propsDel.length(); i++) {
-                                    objIds.add(propsDel.optString(i));
-                                }
-                                onDelete.onCallback(objIds);
-                            }
-                        }
-                        return false;
-                    }
-                });
+        SubscribeListener listener = new SubscribeListener(onCreate, onUpdate, onDelete, onError, tag);
+        Subscription subscription;
+        synchronized (subscriptions) {
+            subscription = subscriptions.get(channelName);
+            if (subscription != null) {
+                subscription.listeners.add(listener);
+                return;
+            }
+            subscription = new Subscription(UUIDUtil.uuid(), channelName);
+            subscription.listeners.add(listener);
+            subscriptions.put(channelName, subscription);
+        }
+        writeData(subscription.requestId, channelName, null, "", SocketType.subscribe, false, subscription);
     }
 
+    /**
+     * Stop listening. On the channels {@code channelName} prefixes, e.g. all channels of a scene,
+     * the listeners registered with {@code tag} are dropped, or every listener if {@code tag} is
+     * null; if no subscribed channel has that prefix, the listeners registered with {@code tag}
+     * are dropped wherever they are. {@code unsubsribe} is only sent for a channel once its last
+     * listener is gone.
+     */
+    @Override
     public void unsubscribe(String channelName, Object tag) {
+        unsubscribe(channelName, tag, true);
+    }
 
-
-        List<String> keys = new ArrayList<>();
-        List<String> channelNames = new ArrayList<>();
-
-        synchronized (callbackHandlers) {
-            for (String key : callbackHandlers.keySet()) {
-                CallbackHandler handler = callbackHandlers.get(key);
-                if (handler != null && !TextUtils.isEmpty(handler.channelName) && handler.channelName.startsWith(channelName)) {
-                    keys.add(key);
+    /**
+     * {@link #unsubscribe(String, Object)}, where {@code anywhere} says whether the listeners of
+     * {@code tag} are dropped from every channel when none has the prefix. A pool passes false
+     * first, so a prefix matching a channel on another connection leaves this one alone.
+     *
+     * @return true if some subscribed channel has the prefix.
+     */
+    boolean unsubscribe(String channelName, Object tag, boolean anywhere) {
+        List<Subscription> emptied = new ArrayList<>();
+        boolean matched;
+        synchronized (subscriptions) {
+            List<Subscription> scope = new ArrayList<>();
+            for (CallbackHandler handler : callbackHandlers.prefix(channelName)) {
+                if (handler instanceof Subscription && subscriptions.get(handler.channelName) == handler) {
+                    scope.add((Subscription) handler);
                 }
             }
-            if (keys.size() == 0) {
-                for (String key : callbackHandlers.keySet()) {
-                    CallbackHandler handler = callbackHandlers.get(key);
-                    if (handler != null && handler.tag == tag) {
-                        keys.add(key);
+            matched = !scope.isEmpty();
+            if (!matched) {
+                if (tag == null || !anywhere) {
+                    return false;
+                }
+                scope.addAll(subscriptions.values());
+            }
+            for (Subscription subscription : scope) {
+                if (tag == null) {
+                    subscription.listeners.clear();
+                } else {
+                    for (SubscribeListener listener : subscription.listeners) {
+                        if (listener.tag == tag) {
+                            subscription.listeners.remove(listener);
+                        }
                     }
                 }
+                if (subscription.listeners.isEmpty()) {
+                    subscriptions.remove(subscription.channelName);
+                    emptied.add(subscription);
+                }
             }
+        }
 
-
-            for (String key : keys) {
-                CallbackHandler remove = callbackHandlers.remove(key);
-                if (remove != null) {
-                    channelNames.add(remove.channelName);
-                }
+        // pending writes and queries of these channels are left to complete on their own
+        for (Subscription subscription : emptied) {
+            if (completeHandler(subscription)) {
+                writeData(UUIDUtil.uuid(), subscription.channelName, null, "", SocketType.unsubsribe, false, null);
             }
         }
+        return matched;
+    }
 
+    /**
+     * @return the number of channels with a server subscription.
+     */
+    public int getSubscriptionCount() {
+        synchronized (subscriptions) {
+            return subscriptions.size();
+        }
+    }
 
-        for (String name : channelNames) {
-            String requestId = UUIDUtil.uuid();
-            writeData(requestId, name, null, "", SocketType.unsubsribe, false, null);
+    /**
+     * @return the number of listeners sharing the subscription of a channel.
+     */
+    public int getSubscriberCount(String channelName) {
+        synchronized (subscriptions) {
+            Subscription subscription = subscriptions.get(channelName);
+            return subscription == null ? 0 : subscription.listeners.size();
         }
     }
 
+    @Override
     public void delete(String channelName,
                        List<String> objectIds,
                        ICallback<Void> onSuccess,
                        ICallback<SyncManagerException> onError) {
 
         String requestId = UUIDUtil.uuid();
-
-        Map<String, Object> socketMsg = new HashMap<>();
-        socketMsg.put("appId", appId);
-        socketMsg.put("channelName", channelName);
-        socketMsg.put("action", SocketType.deleteProp.name());
-        socketMsg.put("requestId", requestId);
-        socketMsg.put("props", objectIds);
-
-        if (socketClient != null && socketClient.isOpen()) {
-            CallbackHandler handler = new CallbackHandler(requestId, SocketType.deleteProp) {
-                @Override
-                boolean handleResult(int code, String message) {
-                    if (code != 0) {
-                        if (onError != null) {
-                            onError.onCallback(new SyncManagerException(code, message));
-                        }
-                    } else {
-                        if (onSuccess != null) {
-                            onSuccess.onCallback(null);
-                        }
+        MessageEncoder.Op op = new MessageEncoder.Op(requestId, SocketType.deleteProp.name(), channelName, objectIds);
+        CallbackHandler handler = new CallbackHandler(requestId, SocketType.deleteProp, requestTimeouts.get(Operation.DELETE)) {
+            @Override
+            boolean handleResult(int code, String message) {
+                if (code != 0) {
+                    if (onError != null) {
+                        onError.onCallback(new SyncManagerException(code, message));
+                    }
+                } else {
+                    if (onSuccess != null) {
+                        onSuccess.onCallback(null);
                     }
-                    return true;
                 }
+                return true;
+            }
 
-                @Override
-                boolean handleAttrs(SocketType type, JSONObject data, List<Attribute> attributes) {
-                    return true;
-                }
-            };
-            handler.channelName = channelName;
-            synchronized (callbackHandlers) {
-                callbackHandlers.put(requestId, handler);
+            @Override
+            boolean handleAttrs(SocketType type, InboundFrame frame) {
+                return true;
             }
+        };
+        handler.channelName = channelName;
 
-            String text = gson.toJson(socketMsg);
-            Log.d(LOG_TAG, "WebSocketClient send message=" + text);
-            socketClient.send(text);
+        if (enqueue(null, op, handler)) {
+            return;
+        }
+        if (socketClient != null && socketClient.isOpen()) {
+            if (!acquireCredit(handler, op)) {
+                return;
+            }
+            registerHandler(handler);
+            sendMessage(op, true);
         } else {
-            if (onError != null) {
-                onError.onCallback(new SyncManagerException(ERROR_SOCKET_CLOSED, "socket client is closed. " + socketClient));
+            handler.handleResult(ERROR_SOCKET_CLOSED, "socket client is closed. " + socketClient);
+        }
+    }
+
+    /**
+     * Put a write in the outbox if the socket is down, or if earlier writes are still waiting
+     * there so it must not overtake them.
+     *
+     * @return true if the outbox took care of the write, failed included
+     */
+    private boolean enqueue(String key, MessageEncoder.Op op, CallbackHandler handler) {
+        Outbox outbox = this.outbox;
+        if (outbox == null) {
+            return false;
+        }
+        WebSocketClient client = socketClient;
+        boolean open = client != null && client.isOpen();
+        int gen = generation;
+        if (open && (outbox.isEmpty() || !outbox.hasUnsent(gen))) {
+            return false;
+        }
+        QueuedHandler queued = new QueuedHandler(handler);
+        List<Outbox.Entry> superseded = new ArrayList<>(1);
+        if (!outbox.offer(new Outbox.Entry(key, op, queued), gen, superseded)) {
+            handler.handleResult(ERROR_OUTBOX_FULL, "outbox full, " + outbox.size() + " writes waiting");
+            return true;
+        }
+        for (Outbox.Entry entry : superseded) {
+            queued.absorb((QueuedHandler) entry.handler);
+        }
+        if (open) {
+            flushOutbox(gen);
+        }
+        return true;
+    }
+
+    /**
+     * Send what the outbox holds on the connection of generation {@code gen}, oldest first. With
+     * a batch policy the writes go out as multi-op frames.
+     */
+    private void flushOutbox(int gen) {
+        Outbox outbox = this.outbox;
+        if (outbox == null) {
+            return;
+        }
+        synchronized (outboxFlushLock) {
+            WebSocketClient client = socketClient;
+            if (gen != generation || client == null || !client.isOpen()) {
+                return;
+            }
+            List<Outbox.Entry> entries = outbox.takeUnsent(gen);
+            if (entries.isEmpty()) {
+                return;
+            }
+            SyncLog.d(LOG_TAG, () -> "outbox flush " + entries.size() + " writes");
+            for (Outbox.Entry entry : entries) {
+                // accepted long ago, so never refused, but counted
+                forceCredit(entry.handler, entry.op);
+                registerHandler(entry.handler);
+                sendMessage(entry.op, true);
+            }
+            FrameBatcher batcher = this.batcher;
+            if (batcher != null) {
+                batcher.flush(appId);
             }
         }
     }
 
+    /**
+     * Take the flushed but unacknowledged writes of a lost connection off the wire: they wait in
+     * the outbox for the next one instead of timing out.
+     */
+    private void requeueOutbox() {
+        Outbox outbox = this.outbox;
+        if (outbox == null) {
+            return;
+        }
+        for (Outbox.Entry entry : outbox.entries()) {
+            CallbackHandler handler = entry.handler;
+            synchronized (handler) {
+                if (callbackHandlers.remove(handler) && handler.timeout != null) {
+                    handler.timeout.cancel();
+                    handler.timeout = null;
+                }
+                releaseCredit(handler);
+            }
+        }
+    }
 
-    private void connect(ICallback<Integer> complete, boolean lock) {
-        disconnect();
 
-        URI msgUri = null;
+    private void connect() {
+        URI msgUri;
         try {
-            msgUri = new URI(SOCKET_URL);
+            msgUri = new URI(socketUrl);
         } catch (URISyntaxException e) {
+            ICallback<Integer> complete = takeInitCallback();
             if (complete != null) {
                 complete.onCallback(-1);
             }
             return;
         }
 
-        CountDownLatch latch = new CountDownLatch(1);
+        WebSocketClient client;
+        synchronized (connectLock) {
+            if (released) {
+                return;
+            }
+            reconnectTimeout = null;
+            disconnect();
+            int gen = ++generation;
+            lastAttemptNanos = System.nanoTime();
+            connectAttempts++;
+            client = newSocketClient(msgUri, gen);
+            socketClient = client;
+            setState(everConnected ? Sync.ConnectionState.RECONNECTING : Sync.ConnectionState.CONNECTING);
+        }
+        client.connect();
+        SyncLog.i(LOG_TAG, "WebSocketClient connect url=" + socketUrl);
+    }
 
-        socketClient = new WebSocketClient(msgUri) {
+    private WebSocketClient newSocketClient(URI msgUri, int gen) {
+        DeflateExtension deflate = compression;
+        Draft draft = deflate == null ? new Draft_6455() : new Draft_6455(deflate.copyInstance());
+        WebSocketClient client = new WebSocketClient(msgUri, draft) {
             @Override
             public void onOpen(ServerHandshake handshakedata) {
-                Log.d(LOG_TAG, "WebSocketClient onOpen status=" + handshakedata.getHttpStatus());
-                //startHeartTimer(10);
-
-                synchronized (callbackHandlers) {
-                    for (String key : callbackHandlers.keySet()) {
-                        CallbackHandler handler = callbackHandlers.get(key);
-                        if (handler != null && handler.type == SocketType.subscribe) {
-                            writeData(handler.requestId, handler.channelName, null, "", SocketType.subscribe, false, handler);
-                        }
+                SyncLog.i(LOG_TAG, "WebSocketClient onOpen status=" + handshakedata.getHttpStatus());
+                synchronized (connectLock) {
+                    if (gen != generation) {
+                        return;
                     }
+                    failedAttempts = 0;
+                    everConnected = true;
+                    setState(Sync.ConnectionState.CONNECTED);
                 }
+                startHeartTimer(gen);
 
-                if (complete != null) {
-                    complete.onCallback(0);
+                for (CallbackHandler handler : callbackHandlers.all(SocketType.subscribe)) {
+                    writeData(handler.requestId, handler.channelName, null, "", SocketType.subscribe, false, handler);
                 }
+                flushOutbox(gen);
 
-                if(latch.getCount() != 0){
-                    latch.countDown();
+                ICallback<Integer> complete = takeInitCallback();
+                if (complete != null) {
+                    complete.onCallback(0);
                 }
             }
 
             @Override
             public void onMessage(String message) {
-                if (!message.contains("ping")) {
-                    Log.d(LOG_TAG, "WebSocketClient onMessage message=" + message);
+                if (gen != generation) {
+                    return;
                 }
-
                 try {
                     dealSocketMessage(message);
-                } catch (JSONException e) {
-                    Log.e(LOG_TAG, "", e);
+                } catch (JsonParseException e) {
+                    SyncLog.e(LOG_TAG, "", e);
                 }
             }
 
             @Override
             public void onClose(int code, String reason, boolean remote) {
-                stopHeartTimer();
+                SyncLog.i(LOG_TAG, "WebSocketClient onClose code=" + code + ", reason=" + reason + ", remote=" + remote);
                 if (code == CloseFrame.ABNORMAL_CLOSE) {
-                    RethinkSyncClient.this.connect(complete, false);
+                    connectionLost(gen);
+                } else {
+                    connectionClosed(gen);
                 }
             }
 
             @Override
             public void onError(Exception ex) {
-                stopHeartTimer();
-                Log.e(LOG_TAG, "", ex);
-                if(latch.getCount() != 0){
-                    latch.countDown();
-                }
-                RethinkSyncClient.this.connect(complete, false);
+                SyncLog.e(LOG_TAG, "", ex);
+                connectionLost(gen);
             }
 
             @Override
@@ -401,21 +1003,82 @@ public class RethinkSyncClient {
             }
         };
         // close webclient inner heart detect
-        socketClient.setConnectionLostTimeout(-1);
-        socketClient.connect();
-        Log.d(LOG_TAG, "WebSocketClient connect url=" + SOCKET_URL);
-
-        if (lock) {
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                if (complete != null) {
-                    complete.onCallback(-11);
-                }
+        client.setConnectionLostTimeout(-1);
+        return client;
+    }
+
+    /**
+     * Schedule the next attempt after the socket of generation {@code gen} failed or closed.
+     * A failing socket reports both onError and onClose; only the first one schedules, and
+     * sockets we closed ourselves are of an older generation and ignored.
+     */
+    private void connectionLost(int gen) {
+        synchronized (connectLock) {
+            if (released || gen != generation || reconnectTimeout != null) {
+                return;
             }
+            stopHeartTimer();
+            requeueOutbox();
+            failedAttempts++;
+            long delayMs = nextReconnectDelayMs();
+            SyncLog.i(LOG_TAG, "WebSocketClient reconnect in " + delayMs + "ms, failed attempts=" + failedAttempts);
+            setState(Sync.ConnectionState.RECONNECTING);
+            reconnectTimeout = timer.newTimeout(this::connect, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The socket of generation {@code gen} was closed with a close handshake, e.g. by the server
+     * going away on purpose. Unlike a lost connection this is not retried; the client stays
+     * disconnected and keeps its outbox for the next {@link #init}.
+     */
+    private void connectionClosed(int gen) {
+        synchronized (connectLock) {
+            if (released || gen != generation || reconnectTimeout != null) {
+                return;
+            }
+            stopHeartTimer();
+            requeueOutbox();
+            socketClient = null;
+            setState(Sync.ConnectionState.DISCONNECTED);
         }
     }
 
+    /**
+     * Capped exponential backoff with equal jitter: a random delay in [ceiling / 2, ceiling],
+     * where the ceiling doubles per failed attempt up to the max delay. Attempts are never closer
+     * than the min interval, however the connection was lost.
+     */
+    private long nextReconnectDelayMs() {
+        int exponent = Math.min(failedAttempts - 1, 30);
+        long ceiling = reconnectBaseDelayMs > (reconnectMaxDelayMs >> exponent)
+                ? reconnectMaxDelayMs : reconnectBaseDelayMs << exponent;
+        long delay = ceiling / 2 + (long) (random.nextDouble() * (ceiling - ceiling / 2));
+        long sinceLastAttempt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastAttemptNanos);
+        return Math.max(delay, reconnectMinIntervalMs - sinceLastAttempt);
+    }
+
+    private ICallback<Integer> takeInitCallback() {
+        synchronized (connectLock) {
+            ICallback<Integer> complete = initCallback;
+            initCallback = null;
+            return complete;
+        }
+    }
+
+    // guarded by connectLock
+    private void setState(Sync.ConnectionState state) {
+        if (connectionState == state) {
+            return;
+        }
+        connectionState = state;
+        Sync.ConnectionStateListener listener = connectionStateListener;
+        if (listener != null) {
+            dispatcher.execute(CONNECTION_STATE_KEY, () -> listener.onStateChanged(state));
+        }
+    }
+
+    // guarded by connectLock
     private void disconnect() {
         stopHeartTimer();
         if (socketClient != null) {
@@ -424,99 +1087,168 @@ public class RethinkSyncClient {
         }
     }
 
-    private void dealSocketMessage(String message) throws JSONException {
-        JSONObject dict = new JSONObject(message);
-        String action = dict.optString("action");
+    private void dealSocketMessage(String message) {
+        InboundFrame frame = InboundFrame.parse(message);
+        frames.record(FrameRecorder.RECEIVED, frame.action, frame.channelName, message.length());
 
-        if (action.equals(SocketType.ping.name())) {
-            synchronized (heartTimerLock){
-                heartLastPong = System.nanoTime();
-            }
+        if (frame.action.equals(SocketType.ping.name())) {
+            onPong(frame.requestId);
             return;
         }
 
-        String requestId = dict.optString("requestId");
-        String channelName = dict.optString("channelName");
-        int code = dict.optInt("code");
-        String msg = dict.optString("msg");
-
-        List<CallbackHandler> handlers = new ArrayList<>();
-
-        synchronized (callbackHandlers) {
-            CallbackHandler cb = callbackHandlers.get(requestId);
-            if (cb != null && channelName.equals(cb.channelName) ) {
-                handlers.add(cb);
-            } else {
-                for (String key : callbackHandlers.keySet()) {
-                    CallbackHandler h = callbackHandlers.get(key);
-                    if (h != null && channelName.equals(h.channelName) && h.type == SocketType.subscribe) {
-                        handlers.add(h);
+        List<CallbackHandler> handlers;
+        CallbackHandler cb = callbackHandlers.get(frame.requestId);
+        if (cb != null && frame.channelName.equals(cb.channelName)) {
+            // the reply frees its window credit right away, not once a callback thread gets to it
+            releaseCredit(cb);
+            handlers = Collections.singletonList(cb);
+        } else {
+            handlers = callbackHandlers.subscribers(frame.channelName);
+        }
+        if (handlers.isEmpty()) {
+            // nobody waits for it, e.g. a late reply to a request that timed out
+            return;
+        }
+        SyncLog.d(LOG_TAG, () -> "WebSocketClient onMessage message=" + message);
+
+        // listeners run on the dispatcher so a slow one cannot stall the socket read thread
+        dispatcher.execute(frame.channelName, () -> {
+            for (CallbackHandler handler : handlers) {
+                // the handler lock serializes a reply against a concurrent timeout of the same request
+                synchronized (handler) {
+                    if (callbackHandlers.get(handler.requestId) != handler) {
+                        continue;
                     }
+                    dealHandlerMessage(handler, frame);
                 }
             }
+        });
+    }
 
+    private void dealHandlerMessage(CallbackHandler handler, InboundFrame frame) {
+        if (handler.handleResult(frame.code, frame.msg)) {
+            completeHandler(handler);
+            return;
         }
 
-        for (CallbackHandler handler : handlers) {
+        if (handler.type == SocketType.subscribe && !acceptSequence(handler, frame)) {
+            return;
+        }
 
-            if (handler.handleResult(code, msg)) {
-                synchronized (callbackHandlers) {
-                    callbackHandlers.remove(handler.requestId);
-                }
-                continue;
+        if (!frame.hasData()) {
+            if (handler.handleResult(ERROR_SERVER_DATA, "server not data return. msg: " + frame.message)) {
+                completeHandler(handler);
             }
-            if (handler.isExpired() && handler.handleResult(ERROR_CALLBACK_EXPIRED, "callback has been expired")) {
-                synchronized (callbackHandlers) {
-                    callbackHandlers.remove(handler.requestId);
-                }
-                continue;
+            return;
+        }
+
+        if (!frame.hasProps()) {
+            if (handler.handleResult(ERROR_SERVER_DATA, "server not data props return. msg: " + frame.message)) {
+                completeHandler(handler);
             }
+            return;
+        }
 
-            JSONObject data = dict.optJSONObject("data");
+        SocketType type = null;
+        try {
+            type = SocketType.valueOf(frame.dataAction());
+        } catch (IllegalArgumentException e) {
+            type = SocketType.send;
+        }
 
-            if (data == null) {
-                if (handler.handleResult(ERROR_SERVER_DATA, "server not data return. msg: " + message)) {
-                    synchronized (callbackHandlers) {
-                        callbackHandlers.remove(handler.requestId);
-                    }
-                }
-                continue;
-            }
+        if (handler.handleAttrs(type, frame)) {
+            completeHandler(handler);
+        }
+    }
 
-            JSONObject props = data.optJSONObject("props");
-            if (props == null) {
-                if (handler.handleResult(ERROR_SERVER_DATA, "server not data props return. msg: " + message)) {
-                    synchronized (callbackHandlers) {
-                        callbackHandlers.remove(handler.requestId);
-                    }
-                }
-                continue;
+    /**
+     * Order the events of a subscription by {@code data.seq}.
+     *
+     * The subscribe reply reports the channel's {@code headSeq}: a fresh subscription starts from
+     * there, a resumed one expects to have caught up to it. Events apply only in sequence; a
+     * duplicate (from a replay) is dropped, and a gap drops the event and resumes the subscription
+     * from the last applied one, so the server replays the missing events in order. A snapshot
+     * replaces everything and restarts the count. Servers that do not number events are
+     * unaffected.
+     *
+     * @return true if the frame should be handled
+     */
+    private boolean acceptSequence(CallbackHandler handler, InboundFrame frame) {
+        if (!frame.hasData()) {
+            return true;
+        }
+        long headSeq = frame.headSeq();
+        if (headSeq > 0 && frame.requestId.equals(handler.requestId)) {
+            if (handler.lastSeq == 0 || frame.isSnapshot()) {
+                handler.lastSeq = headSeq;
+            } else if (headSeq > handler.lastSeq) {
+                resume(handler);
+                return false;
             }
+            handler.catchingUp = false;
+            return true;
+        }
+        long seq = frame.seq();
+        if (seq <= 0) {
+            return true;
+        }
+        if (frame.isSnapshot() || handler.lastSeq == 0 || seq == handler.lastSeq + 1) {
+            handler.lastSeq = seq;
+            handler.catchingUp = false;
+            return true;
+        }
+        if (seq > handler.lastSeq + 1) {
+            SyncLog.d(LOG_TAG, () -> "sequence gap on " + handler.channelName + ", expected " + (handler.lastSeq + 1) + " got " + seq);
+            resume(handler);
+        }
+        return false;
+    }
 
-            List<Attribute> attributes = new ArrayList<>();
-            Iterator<String> keys = props.keys();
-            while (keys.hasNext()) {
-                String key = keys.next();
-                String value = props.optString(key);
-                if (!TextUtils.isEmpty(value)) {
-                    attributes.add(new Attribute(key, value));
-                }
-            }
+    // called with the handler monitor held
+    private void resume(CallbackHandler handler) {
+        if (handler.catchingUp) {
+            return;
+        }
+        handler.catchingUp = true;
+        writeData(handler.requestId, handler.channelName, null, "", SocketType.subscribe, false, handler);
+    }
 
-            String realAction = data.optString("action");
+    private void registerHandler(CallbackHandler handler) {
+        callbackHandlers.put(handler);
+        if (handler.timeoutMs > 0 && handler.timeout == null) {
+            handler.timeout = timer.newTimeout(() -> dispatcher.execute(handler.channelName, () -> expireHandler(handler)),
+                    handler.timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
 
+    /**
+     * @return true if the handler was still pending and is now removed.
+     */
+    private boolean completeHandler(CallbackHandler handler) {
+        if (!callbackHandlers.remove(handler)) {
+            return false;
+        }
+        if (handler.timeout != null) {
+            handler.timeout.cancel();
+        }
+        releaseCredit(handler);
+        forgetQueued(handler);
+        return true;
+    }
 
-            SocketType type = null;
-            try {
-                type = SocketType.valueOf(realAction);
-            } catch (IllegalArgumentException e) {
-                type = SocketType.send;
-            }
+    private void forgetQueued(CallbackHandler handler) {
+        Outbox outbox = this.outbox;
+        if (outbox != null && handler instanceof QueuedHandler) {
+            outbox.remove(handler.requestId);
+        }
+    }
 
-            if (handler.handleAttrs(type, data, attributes)) {
-                synchronized (callbackHandlers) {
-                    callbackHandlers.remove(handler.requestId);
-                }
+    private void expireHandler(CallbackHandler handler) {
+        synchronized (handler) {
+            if (callbackHandlers.remove(handler)) {
+                releaseCredit(handler);
+                forgetQueued(handler);
+                handler.handleResult(ERROR_REQUEST_TIMEOUT, "request timeout after " + handler.timeoutMs + "ms, action=" + handler.type);
             }
         }
     }
@@ -531,58 +1263,51 @@ public class RethinkSyncClient {
         String propsId = objectId;
         String propsValues = "";
 
-        if (params != null) {
-            try {
-                Map<String, Object> propsValuesMap = new HashMap<>();
-                JSONObject jo = new JSONObject(gson.toJson(params));
-                Iterator<String> keys = jo.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    propsValuesMap.put(key, jo.opt(key));
-                }
-
-                if (TextUtils.isEmpty(objectId)) {
-                    boolean contain = propsValuesMap.containsKey("objectId");
-                    if (!contain) {
-                        propsValuesMap.put("objectId", channelName);
-                    }
-                    propsId = channelName;
-                }
-                propsValues = gson.toJson(propsValuesMap);
-
-
-            } catch (JSONException e) {
-                if (params instanceof String) {
-                    if (TextUtils.isEmpty(objectId)) {
-                        propsId = channelName;
-                    }
-                    propsValues = (String) params;
-                } else {
-                    if (handler != null) {
-                        handler.handleResult(ERROR_JSON_PARSE, "Json parse error, params=" + params);
-                    }
-                    return;
+        if (params instanceof String) {
+            if (TextUtils.isEmpty(objectId)) {
+                propsId = channelName;
+            }
+            propsValues = (String) params;
+        } else if (params != null) {
+            JsonElement tree = gson.toJsonTree(params);
+            if (!tree.isJsonObject()) {
+                if (handler != null) {
+                    handler.handleResult(ERROR_JSON_PARSE, "Json parse error, params=" + params);
                 }
+                return;
+            }
+            if (TextUtils.isEmpty(objectId)) {
+                propsValues = encoder.encodeProps(tree.getAsJsonObject(), channelName);
+                propsId = channelName;
+            } else {
+                propsValues = encoder.encodeProps(tree.getAsJsonObject(), null);
             }
         }
 
-        Map<String, Object> socketMsg = new HashMap<>();
-        socketMsg.put("appId", appId);
-        socketMsg.put("channelName", channelName);
-        socketMsg.put("action", type.name());
-        socketMsg.put("requestId", requestId);
-
-        if (!TextUtils.isEmpty(propsValues)) {
-            Map<String, Object> props = new HashMap<>();
-            props.put(propsId, propsValues);
-            socketMsg.put("props", props);
+        // remove subscribe data
+        boolean hasProps = type != SocketType.subscribe
+                && type != SocketType.unsubsribe
+                && type != SocketType.query;
+        MessageEncoder.Op op;
+        if (type == SocketType.subscribe && handler != null && handler.lastSeq > 0) {
+            // resume from the last applied event instead of starting over
+            op = new MessageEncoder.Op(requestId, type.name(), channelName, handler.lastSeq);
+        } else {
+            op = new MessageEncoder.Op(requestId, type.name(), channelName, propsId, hasProps ? propsValues : null);
         }
 
-        // remove subscribe data
-        if (type == SocketType.subscribe
-                || type == SocketType.unsubsribe
-                || type == SocketType.query) {
-            socketMsg.remove("props");
+        if (type == SocketType.send && handler != null) {
+            handler.channelName = channelName;
+            handler.propsId = propsId;
+            handler.propsValue = propsValues;
+            if (enqueue(channelName + '\u0000' + propsId, op, handler)) {
+                if (isAdd) {
+                    for (CallbackHandler ch : callbackHandlers.channel(channelName)) {
+                        ch.handleLocalCreate(new Attribute(propsId, propsValues));
+                    }
+                }
+                return;
+            }
         }
 
         if (socketClient != null && socketClient.isOpen()) {
@@ -590,22 +1315,16 @@ public class RethinkSyncClient {
                 handler.channelName = channelName;
                 handler.propsId = propsId;
                 handler.propsValue = propsValues;
-                synchronized (callbackHandlers) {
-                    callbackHandlers.put(requestId, handler);
+                if (type == SocketType.send && !acquireCredit(handler, op)) {
+                    return;
                 }
+                registerHandler(handler);
             }
-            String text = gson.toJson(socketMsg);
-            Log.d(LOG_TAG, "WebSocketClient send message=" + text);
-            socketClient.send(text);
+            sendMessage(op, type == SocketType.send);
 
             if (isAdd) {
-                synchronized (callbackHandlers) {
-                    for (String key : callbackHandlers.keySet()) {
-                        CallbackHandler ch = callbackHandlers.get(key);
-                        if (ch != null && channelName.equals(ch.channelName)) {
-                            ch.handleLocalCreate(new Attribute(propsId, propsValues));
-                        }
-                    }
+                for (CallbackHandler ch : callbackHandlers.channel(channelName)) {
+                    ch.handleLocalCreate(new Attribute(propsId, propsValues));
                 }
             }
 
@@ -618,57 +1337,308 @@ public class RethinkSyncClient {
 
     }
 
-    private void startHeartTimer(long intervalS) {
-        long connectionLostTimeout = TimeUnit.SECONDS.toNanos(intervalS);
+    private void sendMessage(MessageEncoder.Op op, boolean batchable) {
+        FrameBatcher batcher = this.batcher;
+        if (batcher != null) {
+            if (batchable) {
+                batcher.offer(appId, op);
+                return;
+            }
+            // control frames such as query must not overtake queued writes
+            batcher.flush(appId);
+        }
+        String text = encoder.encode(appId, op);
+        SyncLog.d(LOG_TAG, () -> "WebSocketClient send message=" + text);
+        frames.record(FrameRecorder.SENT, op.action, op.channelName, text.length());
+        WebSocketClient client = socketClient;
+        // the socket may have been dropped since the caller checked it, the request then times out
+        if (client != null) {
+            client.send(text);
+        }
+    }
+
+    private void sendBatch(String frame, List<String> requestIds) {
+        WebSocketClient client = socketClient;
+        if (client != null && client.isOpen()) {
+            SyncLog.d(LOG_TAG, () -> "WebSocketClient send message=" + frame);
+            frames.record(FrameRecorder.SENT, BATCH_ACTION, "", frame.length());
+            client.send(frame);
+            return;
+        }
+        for (String requestId : requestIds) {
+            CallbackHandler handler = callbackHandlers.get(requestId);
+            if (handler == null) {
+                continue;
+            }
+            if (handler instanceof QueuedHandler) {
+                // stays in the outbox for the next connection
+                continue;
+            }
+            synchronized (handler) {
+                if (completeHandler(handler)) {
+                    handler.handleResult(ERROR_SOCKET_CLOSED, "socketClient status error : " + client);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start pinging the socket of generation {@code gen} every heartbeat interval. Each tick first
+     * checks the pongs: once {@code heartbeatMaxMissed} pings in a row are unanswered the link is
+     * declared dead and closed, which triggers a reconnect, so a silent half-open connection is
+     * detected within {@code (maxMissed + 1) * interval}.
+     */
+    private void startHeartTimer(int gen) {
         synchronized (heartTimerLock) {
             stopHeartTimer();
-            heartLastPong = System.nanoTime();
-            heartTimer = Executors
-                    .newSingleThreadScheduledExecutor(new NamedThreadFactory("connectionLostChecker"));
-            heartFuture = heartTimer
-                    .scheduleAtFixedRate(
-                            () -> {
-                                long minimumPongTime;
-                                synchronized (heartTimerLock) {
-                                    minimumPongTime = (long) (System.nanoTime() - (connectionLostTimeout * 1.5));
-                                }
-                                if (socketClient == null) {
-                                    return;
-                                }
-                                if (heartLastPong < minimumPongTime) {
-                                    socketClient.closeConnection(CloseFrame.ABNORMAL_CLOSE,
-                                            "The connection was closed because the other endpoint did not respond with a pong in time.");
-                                } else {
-                                    if (socketClient.isOpen()) {
-                                        HashMap<Object, Object> params = new HashMap<>();
-                                        params.put("action", SocketType.ping.name());
-                                        params.put("appId", appId);
-                                        params.put("channelName", channelName);
-                                        params.put("requestId", UUID.randomUUID().toString());
-
-                                        String text = gson.toJson(params);
-                                        Log.d(LOG_TAG, "WebSocketClient send message=" + text);
-                                        socketClient.send(text);
-                                    } else {
-                                        Log.e(LOG_TAG, "Trying to ping a non open connection: {}");
-                                    }
-                                }
-                            },
-                            connectionLostTimeout,
-                            connectionLostTimeout,
-                            TimeUnit.NANOSECONDS);
+            long intervalMs = heartbeatIntervalMs;
+            if (intervalMs > 0) {
+                heartTimeout = timer.newTimeout(() -> heartbeat(gen), intervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
 
+    private void heartbeat(int gen) {
+        WebSocketClient client = socketClient;
+        String requestId = UUIDUtil.uuid();
+        boolean dead;
+        synchronized (heartTimerLock) {
+            if (gen != generation || heartTimeout == null || client == null) {
+                return;
+            }
+            dead = pingsInFlight.size() >= heartbeatMaxMissed;
+            if (dead) {
+                stopHeartTimer();
+            } else {
+                pingsInFlight.addLast(new PingInFlight(requestId, System.nanoTime()));
+                heartTimeout = timer.newTimeout(() -> heartbeat(gen), heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (dead) {
+            SyncLog.e(LOG_TAG, "WebSocketClient missed " + heartbeatMaxMissed + " pongs, closing the connection");
+            client.closeConnection(CloseFrame.ABNORMAL_CLOSE,
+                    "The connection was closed because the other endpoint did not respond with a pong in time.");
+            return;
+        }
+        if (client.isOpen()) {
+            MessageEncoder.Op ping = new MessageEncoder.Op(requestId, SocketType.ping.name(), channelName, null, null);
+            client.send(encoder.encode(appId, ping));
+        } else {
+            SyncLog.e(LOG_TAG, "Trying to ping a non open connection");
+        }
+    }
+
+    private void onPong(String requestId) {
+        long now = System.nanoTime();
+        synchronized (heartTimerLock) {
+            // match the echoed request id, or the oldest ping if the server does not echo it;
+            // older pings than the matched one will never be answered
+            PingInFlight matched = null;
+            for (PingInFlight ping : pingsInFlight) {
+                if (ping.requestId.equals(requestId)) {
+                    matched = ping;
+                    break;
+                }
+            }
+            if (matched == null) {
+                matched = pingsInFlight.peekFirst();
+            }
+            if (matched == null) {
+                return;
+            }
+            while (pingsInFlight.pollFirst() != matched) {
+                // drop the unanswered ones before it
+            }
+            rtt.record(now - matched.sentNanos);
         }
     }
 
     private void stopHeartTimer() {
-        if (heartTimer != null) {
-            heartTimer.shutdownNow();
-            heartTimer = null;
+        synchronized (heartTimerLock) {
+            if (heartTimeout != null) {
+                heartTimeout.cancel();
+                heartTimeout = null;
+            }
+            pingsInFlight.clear();
+        }
+    }
+
+    private static class PingInFlight {
+        final String requestId;
+        final long sentNanos;
+
+        PingInFlight(String requestId, long sentNanos) {
+            this.requestId = requestId;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    /**
+     * The server subscription of one channel, fanned out to every local listener of it. Listeners
+     * are added and removed under the {@link #subscriptions} lock; events are delivered to a
+     * snapshot of them.
+     */
+    private class Subscription extends CallbackHandler {
+
+        final List<SubscribeListener> listeners = new CopyOnWriteArrayList<>();
+
+        // ids seen through events, to tell deletions from a snapshot
+        private final Set<String> knownIds = new HashSet<>();
+
+        Subscription(String requestId, String channelName) {
+            super(requestId, SocketType.subscribe, 0);
+            this.channelName = channelName;
+        }
+
+        @Override
+        void handleLocalCreate(Attribute attribute) {
+            for (SubscribeListener listener : listeners) {
+                if (listener.onCreate != null) {
+                    listener.onCreate.onCallback(attribute);
+                }
+            }
+        }
+
+        @Override
+        void handleLocalDelete(Attribute attribute) {
+            deliverDelete(Collections.singletonList(attribute.key));
+        }
+
+        @Override
+        boolean handleResult(int code, String message) {
+            if (code == 0 || code == ERROR_SERVER_DATA) {
+                return false;
+            }
+            // the subscription is over, a later subscribe to the channel starts a new one
+            List<SubscribeListener> failed;
+            synchronized (subscriptions) {
+                if (subscriptions.get(channelName) == this) {
+                    subscriptions.remove(channelName);
+                }
+                failed = new ArrayList<>(listeners);
+                listeners.clear();
+            }
+            // also when the subscribe could not be sent, so it is not replayed on reconnect
+            completeHandler(this);
+            SyncManagerException error = new SyncManagerException(code, message);
+            for (SubscribeListener listener : failed) {
+                if (listener.onError != null) {
+                    listener.onError.onCallback(error);
+                }
+            }
+            return true;
         }
-        if (heartFuture != null) {
-            heartFuture.cancel(false);
-            heartFuture = null;
+
+        @Override
+        boolean handleAttrs(SocketType type, InboundFrame frame) {
+            if (type == SocketType.send) {
+                String propsUpdate = frame.propsUpdate();
+                if (!TextUtils.isEmpty(propsUpdate)) {
+                    List<Attribute> ret;
+                    try {
+                        ret = InboundFrame.decodeObject(propsUpdate);
+                    } catch (JsonParseException e) {
+                        handleResult(ERROR_JSON_PARSE, "propsUpdate parse error");
+                        return false;
+                    }
+                    if (frame.isSnapshot()) {
+                        // whatever the snapshot no longer holds was deleted meanwhile
+                        Set<String> gone = new HashSet<>(knownIds);
+                        knownIds.clear();
+                        for (Attribute attribute : ret) {
+                            gone.remove(attribute.key);
+                        }
+                        if (!gone.isEmpty()) {
+                            deliverDelete(new ArrayList<>(gone));
+                        }
+                    }
+                    for (Attribute attribute : ret) {
+                        knownIds.add(attribute.key);
+                    }
+                    for (SubscribeListener listener : listeners) {
+                        if (listener.onUpdate != null) {
+                            listener.onUpdate.onCallback(ret);
+                        }
+                    }
+                }
+            } else if (type == SocketType.deleteProp) {
+                List<String> propsDel = frame.propsDel();
+                if (propsDel != null) {
+                    knownIds.removeAll(propsDel);
+                    deliverDelete(propsDel);
+                }
+            }
+            return false;
+        }
+
+        private void deliverDelete(List<String> ids) {
+            for (SubscribeListener listener : listeners) {
+                if (listener.onDelete != null) {
+                    listener.onDelete.onCallback(ids);
+                }
+            }
+        }
+    }
+
+    /**
+     * The handler of a write kept in the outbox. It answers for the writes it superseded too,
+     * which complete with the result of this one.
+     */
+    private static class QueuedHandler extends CallbackHandler {
+
+        private final CallbackHandler delegate;
+        private final List<QueuedHandler> superseded = new ArrayList<>(0);
+
+        QueuedHandler(CallbackHandler delegate) {
+            super(delegate.requestId, delegate.type, delegate.timeoutMs);
+            this.delegate = delegate;
+            this.channelName = delegate.channelName;
+            this.propsId = delegate.propsId;
+            this.propsValue = delegate.propsValue;
+        }
+
+        void absorb(QueuedHandler previous) {
+            // its caller gets the value that was actually written
+            previous.delegate.propsId = propsId;
+            previous.delegate.propsValue = propsValue;
+            superseded.add(previous);
+        }
+
+        @Override
+        boolean handleResult(int code, String message) {
+            for (QueuedHandler previous : superseded) {
+                previous.handleResult(code, message);
+            }
+            return delegate.handleResult(code, message);
+        }
+
+        @Override
+        boolean handleAttrs(SocketType type, InboundFrame frame) {
+            for (QueuedHandler previous : superseded) {
+                previous.handleAttrs(type, frame);
+            }
+            return delegate.handleAttrs(type, frame);
+        }
+    }
+
+    static class SubscribeListener {
+        final ICallback<Attribute> onCreate;
+        final ICallback<List<Attribute>> onUpdate;
+        final ICallback<List<String>> onDelete;
+        final ICallback<SyncManagerException> onError;
+        // save tag in order to unsubscribe
+        final Object tag;
+
+        SubscribeListener(ICallback<Attribute> onCreate,
+                          ICallback<List<Attribute>> onUpdate,
+                          ICallback<List<String>> onDelete,
+                          ICallback<SyncManagerException> onError,
+                          Object tag) {
+            this.onCreate = onCreate;
+            this.onUpdate = onUpdate;
+            this.onDelete = onDelete;
+            this.onError = onError;
+            this.tag = tag;
         }
     }
 
@@ -678,41 +1648,51 @@ public class RethinkSyncClient {
 
         final SocketType type;
 
-        // save tag in order to unsubscribe
-        final Object tag;
+        // how long to wait for the server reply, 0 means forever
+        final long timeoutMs;
 
-        // use to check if the callback is expired or not
-        final long ts;
+        HashedWheelTimer.Timeout timeout;
 
-        String channelName, propsId, propsValue;
+        // window credit held while the write is unacknowledged
+        final AtomicInteger credit = new AtomicInteger();
+        volatile CreditWindow creditWindow;
 
-        CallbackHandler(String requestId, SocketType type) {
-            this(requestId, type, null);
-        }
+        String channelName, propsId, propsValue;
 
-        CallbackHandler(String requestId, SocketType type, Object tag) {
-            this(requestId, type, tag, System.currentTimeMillis());
-        }
+        // subscriptions only: last applied event sequence number, 0 until the server reports one
+        volatile long lastSeq;
+        // subscriptions only: a resume is in flight, guarded by the handler monitor
+        boolean catchingUp;
 
-        CallbackHandler(String requestId, SocketType type, Object tag, long ts) {
+        CallbackHandler(String requestId, SocketType type, long timeoutMs) {
             this.requestId = requestId;
             this.type = type;
-            this.tag = tag;
-            this.ts = ts;
+            this.timeoutMs = timeoutMs;
         }
 
         abstract boolean handleResult(int code, String message);
 
-        abstract boolean handleAttrs(SocketType type, JSONObject data, List<Attribute> attributes);
+        /**
+         * @param frame the reply or event, its {@code data} is decoded on first access
+         */
+        abstract boolean handleAttrs(SocketType type, InboundFrame frame);
 
         void handleLocalCreate(Attribute attribute) {
         }
 
         void handleLocalDelete(Attribute attribute) {
         }
+    }
+
+    static class UpdateRequest {
+        final String channelName;
+        final Object data;
+        final String objectId;
 
-        boolean isExpired() {
-            return ts > 0 && (System.currentTimeMillis() - ts) > 2 * 60 * 1000; // 2min
+        UpdateRequest(String channelName, Object data, String objectId) {
+            this.channelName = channelName;
+            this.data = data;
+            this.objectId = objectId;
         }
     }
 
@@ -0,0 +1,325 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.common.annotation.Nullable;
+import io.agora.syncmanager.rtm.Sync;
+import io.agora.syncmanager.rtm.SyncManagerException;
+
+/**
+ * Spreads channels over several {@link RethinkSyncClient} connections.
+ *
+ * With a single connection every scene shares one TCP stream and one read thread, so a large
+ * query reply delays the presence events of all other scenes queued behind it. Here each channel
+ * is bound to one connection by consistent hashing, so its requests and events stay in order while
+ * other channels travel in parallel, and adding a connection only moves about 1/N of the channels.
+ *
+ * Every connection keeps its own subscriptions, outbox and heartbeat and reconnects on its own.
+ * The pool reports itself connected once all of them are.
+ */
+class RethinkSyncClientPool implements SyncTransport {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // points per connection on the ring, enough to keep the share of each within a few percent
+    private static final int VIRTUAL_NODES = 160;
+
+    private final RethinkSyncClient[] connections;
+    private final int[] ringHashes;
+    private final int[] ringOwners;
+
+    // guarded by this
+    private final Sync.ConnectionState[] states;
+    private final boolean[] writable;
+    private Sync.ConnectionState reportedState;
+    private boolean reportedWritable = true;
+    private Sync.ConnectionStateListener connectionStateListener;
+    private RethinkSyncClient.WritabilityListener writabilityListener;
+
+    RethinkSyncClientPool(int size) {
+        connections = new RethinkSyncClient[Math.max(1, size)];
+        states = new Sync.ConnectionState[connections.length];
+        writable = new boolean[connections.length];
+        for (int i = 0; i < connections.length; i++) {
+            RethinkSyncClient connection = new RethinkSyncClient();
+            connections[i] = connection;
+            states[i] = connection.getConnectionState();
+            writable[i] = true;
+            int index = i;
+            connection.setConnectionStateListener(state -> onStateChanged(index, state));
+            connection.setWritabilityListener(value -> onWritabilityChanged(index, value));
+        }
+        reportedState = aggregateState();
+
+        long[] ring = new long[connections.length * VIRTUAL_NODES];
+        for (int i = 0; i < connections.length; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                // hash in the high half for sorting, owner in the low half
+                ring[i * VIRTUAL_NODES + v] = ((long) hash("connection-" + i + "#" + v) << 32) | i;
+            }
+        }
+        Arrays.sort(ring);
+        ringHashes = new int[ring.length];
+        ringOwners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            ringHashes[i] = (int) (ring[i] >> 32);
+            ringOwners[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     * @return the connections, to configure each of them before {@link #init}.
+     */
+    List<RethinkSyncClient> getConnections() {
+        return Collections.unmodifiableList(Arrays.asList(connections));
+    }
+
+    int size() {
+        return connections.length;
+    }
+
+    /**
+     * @return the connection carrying {@code channelName}.
+     */
+    RethinkSyncClient connectionFor(String channelName) {
+        if (connections.length == 1) {
+            return connections[0];
+        }
+        int hash = hash(channelName);
+        // first point at or after the hash, wrapping around
+        int index = Arrays.binarySearch(ringHashes, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return connections[ringOwners[index == ringHashes.length ? 0 : index]];
+    }
+
+    /**
+     * Connect every connection. {@code complete} is called once: with 0 when all of them have
+     * opened, or with the first error code reported.
+     */
+    @Override
+    public void init(String appId, String channelName, RethinkSyncClient.ICallback<Integer> complete) {
+        int[] pending = {connections.length};
+        for (RethinkSyncClient connection : connections) {
+            connection.init(appId, channelName, ret -> {
+                boolean report;
+                synchronized (pending) {
+                    if (pending[0] <= 0) {
+                        return;
+                    }
+                    pending[0] = ret == 0 ? pending[0] - 1 : 0;
+                    report = pending[0] == 0;
+                }
+                if (report && complete != null) {
+                    complete.onCallback(ret);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void release() {
+        for (RethinkSyncClient connection : connections) {
+            connection.release();
+        }
+    }
+
+    @Override
+    public void add(String channelName, Object data, String objectId,
+             RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onSuccess,
+             RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        connectionFor(channelName).add(channelName, data, objectId, onSuccess, onError);
+    }
+
+    @Override
+    public void update(String channelName, Object data, String objectId,
+                RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onSuccess,
+                RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        connectionFor(channelName).update(channelName, data, objectId, onSuccess, onError);
+    }
+
+    @Override
+    public void query(String channelName,
+               RethinkSyncClient.ICallback<List<RethinkSyncClient.Attribute>> onSuccess,
+               RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        connectionFor(channelName).query(channelName, onSuccess, onError);
+    }
+
+    @Override
+    public void subscribe(String channelName,
+                   RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onCreate,
+                   RethinkSyncClient.ICallback<List<RethinkSyncClient.Attribute>> onUpdate,
+                   RethinkSyncClient.ICallback<List<String>> onDelete,
+                   RethinkSyncClient.ICallback<SyncManagerException> onError,
+                   Object tag) {
+        connectionFor(channelName).subscribe(channelName, onCreate, onUpdate, onDelete, onError, tag);
+    }
+
+    /**
+     * A prefix such as a scene id may cover channels of every connection, so all of them are told.
+     * The listeners of {@code tag} are only dropped everywhere when no connection has a channel
+     * with the prefix, as on a single connection.
+     */
+    @Override
+    public void unsubscribe(String channelName, Object tag) {
+        boolean matched = false;
+        for (RethinkSyncClient connection : connections) {
+            matched |= connection.unsubscribe(channelName, tag, false);
+        }
+        if (!matched && tag != null) {
+            for (RethinkSyncClient connection : connections) {
+                connection.unsubscribe(channelName, tag, true);
+            }
+        }
+    }
+
+    @Override
+    public void delete(String channelName, List<String> objectIds,
+                RethinkSyncClient.ICallback<Void> onSuccess,
+                RethinkSyncClient.ICallback<SyncManagerException> onError) {
+        connectionFor(channelName).delete(channelName, objectIds, onSuccess, onError);
+    }
+
+    @Override
+    public synchronized void setConnectionStateListener(@Nullable Sync.ConnectionStateListener listener) {
+        connectionStateListener = listener;
+    }
+
+    synchronized Sync.ConnectionState getConnectionState() {
+        return aggregateState();
+    }
+
+    @Override
+    public synchronized void setWritabilityListener(@Nullable RethinkSyncClient.WritabilityListener listener) {
+        writabilityListener = listener;
+    }
+
+    /**
+     * @return false while some connection has its in-flight window full.
+     */
+    @Override
+    public boolean isWritable() {
+        for (RethinkSyncClient connection : connections) {
+            if (!connection.isWritable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the largest smoothed heartbeat round-trip time of the connections, or -1 before
+     * the first pong.
+     */
+    long getRtt(TimeUnit unit) {
+        long max = -1;
+        for (RethinkSyncClient connection : connections) {
+            max = Math.max(max, connection.getRtt(unit));
+        }
+        return max;
+    }
+
+    long getRttPercentileMillis(double percentile) {
+        long max = -1;
+        for (RethinkSyncClient connection : connections) {
+            max = Math.max(max, connection.getRttPercentileMillis(percentile));
+        }
+        return max;
+    }
+
+    int getOutboxDepth() {
+        int depth = 0;
+        for (RethinkSyncClient connection : connections) {
+            depth += connection.getOutboxDepth();
+        }
+        return depth;
+    }
+
+    int getSubscriptionCount() {
+        int count = 0;
+        for (RethinkSyncClient connection : connections) {
+            count += connection.getSubscriptionCount();
+        }
+        return count;
+    }
+
+    String dumpFrames() {
+        if (connections.length == 1) {
+            return connections[0].dumpFrames();
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < connections.length; i++) {
+            out.append("connection ").append(i).append('\n').append(connections[i].dumpFrames());
+        }
+        return out.toString();
+    }
+
+    private synchronized void onStateChanged(int index, Sync.ConnectionState state) {
+        states[index] = state;
+        Sync.ConnectionState aggregate = aggregateState();
+        if (aggregate != reportedState) {
+            reportedState = aggregate;
+            if (connectionStateListener != null) {
+                connectionStateListener.onStateChanged(aggregate);
+            }
+        }
+    }
+
+    private synchronized void onWritabilityChanged(int index, boolean value) {
+        writable[index] = value;
+        boolean all = true;
+        for (boolean w : writable) {
+            all &= w;
+        }
+        if (all != reportedWritable) {
+            reportedWritable = all;
+            if (writabilityListener != null) {
+                writabilityListener.onWritabilityChanged(all);
+            }
+        }
+    }
+
+    // the least connected state of any connection
+    private Sync.ConnectionState aggregateState() {
+        Sync.ConnectionState worst = Sync.ConnectionState.CONNECTED;
+        for (Sync.ConnectionState state : states) {
+            if (rank(state) > rank(worst)) {
+                worst = state;
+            }
+        }
+        return worst;
+    }
+
+    private static int rank(Sync.ConnectionState state) {
+        switch (state) {
+            case CONNECTED:
+                return 0;
+            case CONNECTING:
+                return 1;
+            case RECONNECTING:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    // FNV-1a over UTF-8 with a final avalanche, String.hashCode clusters on similar channel names
+    private static int hash(String value) {
+        int h = 0x811c9dc5;
+        for (byte b : value.getBytes(UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
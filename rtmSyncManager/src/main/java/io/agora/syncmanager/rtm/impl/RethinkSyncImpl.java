@@ -5,11 +5,13 @@ import android.content.Context;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import io.agora.syncmanager.rtm.CollectionReference;
 import io.agora.syncmanager.rtm.DocumentReference;
@@ -18,26 +20,63 @@ import io.agora.syncmanager.rtm.Scene;
 import io.agora.syncmanager.rtm.SceneReference;
 import io.agora.syncmanager.rtm.Sync;
 import io.agora.syncmanager.rtm.SyncManagerException;
+import io.agora.syncmanager.rtm.utils.SyncLog;
 import io.agora.syncmanager.rtm.utils.UUIDUtil;
 
 public class RethinkSyncImpl implements ISyncManager {
 
+    private static final String LOG_TAG = "RethinkSyncImpl";
+
     private static final String APP_ID = "appid";
+    private static final String UID = "uid";
     private static final String DEFAULT_CHANNEL_NAME_PARAM = "defaultChannel";
+    private static final String REQUEST_TIMEOUT_MS_PARAM = "requestTimeoutMs";
+    private static final String BATCH_MAX_OPS_PARAM = "batchMaxOps";
+    private static final String BATCH_MAX_BYTES_PARAM = "batchMaxBytes";
+    private static final String BATCH_WINDOW_MS_PARAM = "batchWindowMs";
+    private static final String RECONNECT_INITIAL_DELAY_MS_PARAM = "reconnectInitialDelayMs";
+    private static final String RECONNECT_MAX_DELAY_MS_PARAM = "reconnectMaxDelayMs";
+    private static final String RECONNECT_MIN_INTERVAL_MS_PARAM = "reconnectMinIntervalMs";
+    private static final String HEARTBEAT_INTERVAL_MS_PARAM = "heartbeatIntervalMs";
+    private static final String HEARTBEAT_MAX_MISSED_PARAM = "heartbeatMaxMissed";
+    private static final String COMPRESSION_PARAM = "compression";
+    private static final String COMPRESSION_THRESHOLD_PARAM = "compressionThreshold";
+    private static final String COMPRESSION_LEVEL_PARAM = "compressionLevel";
+    private static final String COMPRESSION_CONTEXT_TAKEOVER_PARAM = "compressionContextTakeover";
+    private static final String OUTBOX_MAX_ENTRIES_PARAM = "outboxMaxEntries";
+    private static final String OUTBOX_MAX_BYTES_PARAM = "outboxMaxBytes";
+    private static final String OUTBOX_JOURNAL_PARAM = "outboxJournal";
+    private static final String FLOW_MAX_REQUESTS_PARAM = "flowMaxRequests";
+    private static final String FLOW_MAX_BYTES_PARAM = "flowMaxBytes";
+    private static final String FLOW_POLICY_PARAM = "flowPolicy";
+    private static final String FLOW_BLOCK_TIMEOUT_MS_PARAM = "flowBlockTimeoutMs";
+    private static final String CONNECTIONS_PARAM = "connections";
+    private static final String SOCKET_URL_PARAM = "socketUrl";
+    private static final String TRANSPORT_PARAM = "transport";
 
     private String appId;
     private String mDefaultChannel;
 
-    private RethinkSyncClient client;
+    private final SyncTransport client;
+    // the pooled server connections, null with another transport
+    private final RethinkSyncClientPool pool;
 
     private final List<RethinkSyncClient.Attribute> cacheData = new ArrayList<>();
 
     public RethinkSyncImpl(Context  context, Map<String, String> params, Sync.Callback callback) {
+        this(createTransport(context, params), params, callback);
+    }
+
+    /**
+     * Run on top of {@code transport}, e.g. a {@link LoopbackTransport} in tests.
+     */
+    RethinkSyncImpl(SyncTransport transport, Map<String, String> params, Sync.Callback callback) {
         appId = params.get(APP_ID);
         mDefaultChannel = params.get(DEFAULT_CHANNEL_NAME_PARAM);
         assert appId != null;
         assert mDefaultChannel != null;
-        client = new RethinkSyncClient();
+        client = transport;
+        pool = transport instanceof RethinkSyncClientPool ? (RethinkSyncClientPool) transport : null;
         client.init(appId, mDefaultChannel, ret -> {
             if(ret == 0){
                 callback.onSuccess();
@@ -246,10 +285,144 @@ public class RethinkSyncImpl implements ISyncManager {
         client.unsubscribe(id, listener);
     }
 
+    @Override
+    public void setConnectionStateListener(Sync.ConnectionStateListener listener) {
+        client.setConnectionStateListener(listener);
+    }
+
+    /**
+     * @return smoothed round-trip time to the sync server measured by the heartbeat, or -1 before
+     * the first pong.
+     */
+    public long getRtt(TimeUnit unit) {
+        return pool == null ? -1 : pool.getRtt(unit);
+    }
+
+    public long getRttPercentileMillis(double percentile) {
+        return pool == null ? -1 : pool.getRttPercentileMillis(percentile);
+    }
+
+    /**
+     * @see RethinkSyncClient#dumpFrames()
+     */
+    public String dumpFrames() {
+        return pool == null ? "" : pool.dumpFrames();
+    }
+
+    /**
+     * @return number of writes waiting for the connection to the sync server.
+     */
+    public int getOutboxDepth() {
+        return pool == null ? 0 : pool.getOutboxDepth();
+    }
+
+    /**
+     * @return false while too many writes wait for the sync server to acknowledge them.
+     */
+    public boolean isWritable() {
+        return client.isWritable();
+    }
+
+    public void setWritabilityListener(RethinkSyncClient.WritabilityListener listener) {
+        client.setWritabilityListener(listener);
+    }
+
     @Override
     public void destroy() {
         client.release();
     }
 
+    /**
+     * The pooled connections to the sync server, or with {@code transport=loopback} the
+     * in-process {@link LoopbackTransport.Hub#SHARED}, which needs no server.
+     */
+    private static SyncTransport createTransport(Context context, Map<String, String> params) {
+        if ("loopback".equals(params.get(TRANSPORT_PARAM))) {
+            return new LoopbackTransport(LoopbackTransport.Hub.SHARED,
+                    StripedExecutor.fromParams("LoopbackDispatch", params));
+        }
+        RethinkSyncClientPool pool = new RethinkSyncClientPool((int) parseLong(params.get(CONNECTIONS_PARAM), 1));
+        List<RethinkSyncClient> connections = pool.getConnections();
+        for (int i = 0; i < connections.size(); i++) {
+            RethinkSyncClient connection = connections.get(i);
+            if (params.get(SOCKET_URL_PARAM) != null) {
+                connection.setSocketUrl(params.get(SOCKET_URL_PARAM));
+            }
+            connection.setDispatcher(StripedExecutor.fromParams(suffix("RethinkSyncDispatch", i), params));
+            long requestTimeoutMs = parseLong(params.get(REQUEST_TIMEOUT_MS_PARAM), -1);
+            if (requestTimeoutMs >= 0) {
+                for (RethinkSyncClient.Operation operation : RethinkSyncClient.Operation.values()) {
+                    connection.setRequestTimeout(operation, requestTimeoutMs, TimeUnit.MILLISECONDS);
+                }
+            }
+            int batchMaxOps = (int) parseLong(params.get(BATCH_MAX_OPS_PARAM), 1);
+            if (batchMaxOps > 1) {
+                connection.setBatchPolicy(batchMaxOps,
+                        (int) parseLong(params.get(BATCH_MAX_BYTES_PARAM), 16 * 1024),
+                        parseLong(params.get(BATCH_WINDOW_MS_PARAM), 20),
+                        TimeUnit.MILLISECONDS);
+            }
+            connection.setReconnectPolicy(parseLong(params.get(RECONNECT_INITIAL_DELAY_MS_PARAM), 500),
+                    parseLong(params.get(RECONNECT_MAX_DELAY_MS_PARAM), 30 * 1000),
+                    parseLong(params.get(RECONNECT_MIN_INTERVAL_MS_PARAM), 1000),
+                    TimeUnit.MILLISECONDS);
+            connection.setHeartbeat(parseLong(params.get(HEARTBEAT_INTERVAL_MS_PARAM), 10 * 1000), TimeUnit.MILLISECONDS,
+                    (int) parseLong(params.get(HEARTBEAT_MAX_MISSED_PARAM), 2));
+            // opt-in, "true" turns it on
+            connection.setCompression("true".equals(params.get(COMPRESSION_PARAM)),
+                    (int) parseLong(params.get(COMPRESSION_THRESHOLD_PARAM), DeflateExtension.DEFAULT_THRESHOLD),
+                    (int) parseLong(params.get(COMPRESSION_LEVEL_PARAM), -1),
+                    "true".equals(params.get(COMPRESSION_CONTEXT_TAKEOVER_PARAM)));
+            // opt-in, off unless outboxMaxEntries or outboxJournal is given
+            boolean journaled = "true".equals(params.get(OUTBOX_JOURNAL_PARAM));
+            if (journaled || params.get(OUTBOX_MAX_ENTRIES_PARAM) != null) {
+                File journal = null;
+                if (journaled && context != null && params.get(UID) != null) {
+                    journal = new File(context.getFilesDir(),
+                            suffix("rethink-outbox-" + params.get(APP_ID) + "-" + params.get(UID), i) + ".journal");
+                } else if (journaled) {
+                    SyncLog.w(LOG_TAG, "outboxJournal needs a context and a uid, keeping the outbox in memory");
+                }
+                connection.setOutbox((int) parseLong(params.get(OUTBOX_MAX_ENTRIES_PARAM), 1000),
+                        parseLong(params.get(OUTBOX_MAX_BYTES_PARAM), 1024 * 1024), journal);
+            }
+            // opt-in, off unless one of the flow* params is given
+            if (params.get(FLOW_MAX_REQUESTS_PARAM) != null || params.get(FLOW_MAX_BYTES_PARAM) != null
+                    || params.get(FLOW_POLICY_PARAM) != null || params.get(FLOW_BLOCK_TIMEOUT_MS_PARAM) != null) {
+                connection.setFlowControl((int) parseLong(params.get(FLOW_MAX_REQUESTS_PARAM), 1000),
+                        parseLong(params.get(FLOW_MAX_BYTES_PARAM), 4 * 1024 * 1024),
+                        parseFlowControl(params.get(FLOW_POLICY_PARAM)),
+                        parseLong(params.get(FLOW_BLOCK_TIMEOUT_MS_PARAM), 5 * 1000), TimeUnit.MILLISECONDS);
+            }
+        }
+        return pool;
+    }
+
+    // names of the first connection are left as they were before connections were pooled
+    private static String suffix(String name, int connection) {
+        return connection == 0 ? name : name + "-" + connection;
+    }
+
+    private static RethinkSyncClient.FlowControl parseFlowControl(String value) {
+        if ("block".equals(value)) {
+            return RethinkSyncClient.FlowControl.BLOCK;
+        }
+        if ("signal".equals(value)) {
+            return RethinkSyncClient.FlowControl.SIGNAL;
+        }
+        return RethinkSyncClient.FlowControl.REJECT;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
 
 }
@@ -0,0 +1,565 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.common.annotation.Nullable;
+import io.agora.rtm.ChannelAttributeOptions;
+import io.agora.rtm.ErrorInfo;
+import io.agora.rtm.ResultCallback;
+import io.agora.rtm.RtmChannelAttribute;
+import io.agora.rtm.RtmClient;
+import io.agora.rtm.RtmStatusCode;
+import io.agora.syncmanager.rtm.SyncManagerException;
+import io.agora.syncmanager.rtm.utils.SyncLog;
+
+/**
+ * Sends RTM channel attribute writes within the RTM call rate limit.
+ *
+ * RTM allows a handful of attribute operations per period for the whole client, and fails the
+ * rest. Writes are queued per channel and sent as one list-valued upsert and one delete per
+ * channel, at most one batch of a channel on the wire at a time. A later write of a key replaces
+ * the queued one, and its callers complete with the write that was sent.
+ *
+ * Every call takes a token. A token comes back one period after it was spent, so no period ever
+ * sees more calls than the limit, and channels waiting for tokens are served in turn.
+ */
+class RtmAttributeScheduler {
+    private static final String LOG_TAG = "RtmAttributeScheduler";
+
+    static final String ATTRIBUTE_OPS_PARAM = "attributeOps";
+    static final String ATTRIBUTE_OPS_PERIOD_PARAM = "attributeOpsPeriodMs";
+
+    // RTM: 10 attribute operations every 5 seconds
+    static final int DEFAULT_OPS = 10;
+    static final long DEFAULT_PERIOD_MS = 5000;
+
+    // a call the server still rejects as too often is queued again this many times
+    private static final int MAX_ATTEMPTS = 3;
+
+    interface Completion {
+        /**
+         * @param value the value written, null for a delete
+         */
+        void onSuccess(@Nullable String value);
+
+        void onFailure(SyncManagerException exception);
+    }
+
+    private final RtmClient client;
+    private final AttributeChunks chunks;
+    private final long periodNanos;
+    private final HashedWheelTimer timer = new HashedWheelTimer("RtmAttributeTimer", 50, TimeUnit.MILLISECONDS, 128);
+
+    // guarded by this
+    // spend times of the last calls, oldest at next; empty when unlimited
+    private final long[] spent;
+    private int next;
+    // channels with queued or in-flight writes, in the order they are served
+    private final Map<String, ChannelQueue> queues = new LinkedHashMap<>();
+    private HashedWheelTimer.Timeout wakeup;
+    private boolean shutdown;
+    private int queued;
+    private long calls;
+    private long merged;
+    private long throttled;
+    private long sent;
+    private long waitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * @param ops calls allowed per period, 0 for no limit
+     */
+    RtmAttributeScheduler(RtmClient client, AttributeChunks chunks, int ops, long period, TimeUnit unit) {
+        this.client = client;
+        this.chunks = chunks;
+        this.periodNanos = unit.toNanos(Math.max(0, period));
+        spent = new long[Math.max(0, ops)];
+        long now = System.nanoTime();
+        for (int i = 0; i < spent.length; i++) {
+            spent[i] = now - periodNanos;
+        }
+    }
+
+    /**
+     * Build a scheduler from the {@code attributeOps*} init params. {@code attributeOps} "false"
+     * lifts the limit, writes are still merged.
+     */
+    static RtmAttributeScheduler fromParams(RtmClient client, AttributeChunks chunks, Map<String, String> params) {
+        String ops = params.get(ATTRIBUTE_OPS_PARAM);
+        return new RtmAttributeScheduler(client, chunks,
+                "false".equalsIgnoreCase(ops) ? 0 : (int) parseLong(ops, DEFAULT_OPS),
+                parseLong(params.get(ATTRIBUTE_OPS_PERIOD_PARAM), DEFAULT_PERIOD_MS), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue an upsert of {@code key} to {@code value}. A value too large for one attribute is
+     * written as chunks, see {@link AttributeChunks}.
+     *
+     * @param notify whether channel members hear of the change
+     */
+    void put(String channel, String key, String value, boolean notify, Completion completion) {
+        AttributeChunks.Plan plan = chunks.write(channel, key, value);
+        if (plan == null) {
+            completion.onFailure(new SyncManagerException(-1, "key " + key + " is too long to split a value of "
+                    + AttributeChunks.utf8Length(value) + " bytes into chunks"));
+            return;
+        }
+        List<String> keys = new ArrayList<>(plan.puts.size() + plan.deletes.size());
+        List<String> values = new ArrayList<>(keys.size());
+        for (RtmChannelAttribute attribute : plan.puts) {
+            keys.add(attribute.getKey());
+            values.add(attribute.getValue());
+        }
+        for (String stale : plan.deletes) {
+            keys.add(stale);
+            values.add(null);
+        }
+        submit(channel, keys, values, value, notify, completion);
+    }
+
+    /**
+     * Queue a delete of {@code key} and its chunks. The value of a key whose chunks are not known
+     * here is read first, so the chunks another client wrote go with it.
+     */
+    void delete(String channel, String key, boolean notify, Completion completion) {
+        List<String> keys = chunks.delete(channel, key);
+        if (keys != null) {
+            submitDelete(channel, keys, notify, completion);
+            return;
+        }
+        client.getChannelAttributesByKeys(channel, Collections.singletonList(key), new ResultCallback<List<RtmChannelAttribute>>() {
+            @Override
+            public void onSuccess(List<RtmChannelAttribute> attributes) {
+                int count = 0;
+                for (RtmChannelAttribute attribute : attributes) {
+                    if (key.equals(attribute.getKey())) {
+                        count = AttributeChunks.chunkCount(attribute.getValue());
+                    }
+                }
+                submitDelete(channel, AttributeChunks.keys(key, count), notify, completion);
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                // the key still goes, its chunks are left behind but never shown
+                SyncLog.w(LOG_TAG, channel + " read of " + key + " before delete failed: " + errorInfo.getErrorDescription());
+                submitDelete(channel, AttributeChunks.keys(key, 0), notify, completion);
+            }
+        });
+    }
+
+    private void submitDelete(String channel, List<String> keys, boolean notify, Completion completion) {
+        submit(channel, keys, Collections.<String>nCopies(keys.size(), null), null, notify, completion);
+    }
+
+    /**
+     * @return number of writes queued and not yet sent.
+     */
+    synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    /**
+     * @return number of attribute calls sent to RTM.
+     */
+    synchronized long getCallCount() {
+        return calls;
+    }
+
+    /**
+     * @return number of writes folded into a call carrying other writes or a later value.
+     */
+    synchronized long getMergedCount() {
+        return merged;
+    }
+
+    /**
+     * @return number of times writes had to wait for the rate limit, or were refused by RTM for it.
+     */
+    synchronized long getThrottledCount() {
+        return throttled;
+    }
+
+    /**
+     * @return mean time writes spent queued before their call was sent.
+     */
+    synchronized long getAverageQueueWaitMillis() {
+        return sent == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos / sent);
+    }
+
+    synchronized long getMaxQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    /**
+     * Fail every queued write and stop sending.
+     */
+    void shutdown() {
+        List<Completion> waiters = new ArrayList<>();
+        synchronized (this) {
+            shutdown = true;
+            for (ChannelQueue queue : queues.values()) {
+                for (Write write : queue.pending.values()) {
+                    waiters.addAll(write.waiters);
+                }
+            }
+            queues.clear();
+            queued = 0;
+            if (wakeup != null) {
+                wakeup.cancel();
+                wakeup = null;
+            }
+        }
+        timer.stop();
+        SyncManagerException exception = new SyncManagerException(-1, "sync manager destroyed");
+        for (Completion waiter : waiters) {
+            waiter.onFailure(exception);
+        }
+    }
+
+    /**
+     * Queue the writes of one logical value: {@code keys[0]} is the key the caller wrote and gives
+     * the result, the others are its chunks. The caller hears once all of them are done.
+     */
+    private void submit(String channel, List<String> keys, List<String> values, @Nullable String result,
+                        boolean notify, Completion completion) {
+        Completion waiter = keys.size() == 1 ? completion : new Parts(keys.size(), completion);
+        List<Batch> batches;
+        synchronized (this) {
+            if (shutdown) {
+                batches = null;
+            } else {
+                ChannelQueue queue = queues.get(channel);
+                if (queue == null) {
+                    queue = new ChannelQueue(channel);
+                    queues.put(channel, queue);
+                }
+                for (int i = 0; i < keys.size(); i++) {
+                    String key = keys.get(i);
+                    Write write = queue.pending.get(key);
+                    if (write == null) {
+                        write = new Write(key, System.nanoTime());
+                        queue.pending.put(key, write);
+                        queued++;
+                    } else {
+                        merged++;
+                    }
+                    write.value = values.get(i);
+                    write.result = i == 0 ? result : null;
+                    write.notify |= notify;
+                    write.waiters.add(i == 0 ? waiter : ((Parts) waiter).part());
+                }
+                batches = drain();
+            }
+        }
+        if (batches == null) {
+            completion.onFailure(new SyncManagerException(-1, "sync manager destroyed"));
+            return;
+        }
+        send(batches);
+    }
+
+    /**
+     * Take the batches that may go now, spending their tokens.
+     */
+    private List<Batch> drain() {
+        List<Batch> batches = new ArrayList<>();
+        long now = System.nanoTime();
+        List<ChannelQueue> served = new ArrayList<>();
+        boolean waiting = false;
+        for (Iterator<ChannelQueue> it = queues.values().iterator(); it.hasNext(); ) {
+            ChannelQueue queue = it.next();
+            if (queue.inFlight > 0) {
+                continue;
+            }
+            if (queue.pending.isEmpty()) {
+                it.remove();
+                continue;
+            }
+            Batch upserts = null;
+            Batch deletes = null;
+            for (Write write : queue.pending.values()) {
+                if (write.value != null) {
+                    upserts = add(upserts, true, write);
+                } else {
+                    deletes = add(deletes, false, write);
+                }
+            }
+            for (Batch batch : new Batch[]{upserts, deletes}) {
+                if (batch == null) {
+                    continue;
+                }
+                if (!takeToken(now)) {
+                    waiting = true;
+                    break;
+                }
+                for (Write write : batch.writes) {
+                    queue.pending.remove(write.key);
+                    long wait = now - write.queuedAt;
+                    waitNanos += wait;
+                    maxWaitNanos = Math.max(maxWaitNanos, wait);
+                }
+                queued -= batch.writes.size();
+                sent += batch.writes.size();
+                merged += batch.writes.size() - 1;
+                calls++;
+                queue.inFlight++;
+                batch.queue = queue;
+                batches.add(batch);
+            }
+            if (queue.inFlight > 0) {
+                it.remove();
+                served.add(queue);
+            }
+            if (waiting) {
+                break;
+            }
+        }
+        // channels just served go to the back, so the others get the next tokens
+        for (ChannelQueue queue : served) {
+            queues.put(queue.channel, queue);
+        }
+        if (waiting) {
+            scheduleWakeup(now);
+        }
+        return batches;
+    }
+
+    private boolean takeToken(long now) {
+        if (spent.length == 0) {
+            return true;
+        }
+        if (now - spent[next] < periodNanos) {
+            return false;
+        }
+        spent[next] = now;
+        next = (next + 1) % spent.length;
+        return true;
+    }
+
+    private void scheduleWakeup(long now) {
+        if (wakeup != null) {
+            return;
+        }
+        throttled++;
+        long delay = Math.max(0, spent[next] + periodNanos - now);
+        wakeup = timer.newTimeout(() -> {
+            List<Batch> batches;
+            synchronized (RtmAttributeScheduler.this) {
+                wakeup = null;
+                if (shutdown) {
+                    return;
+                }
+                batches = drain();
+            }
+            send(batches);
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void send(List<Batch> batches) {
+        for (Batch batch : batches) {
+            ChannelAttributeOptions options = new ChannelAttributeOptions();
+            options.setEnableNotificationToChannelMembers(batch.notify);
+            ResultCallback<Void> callback = new ResultCallback<Void>() {
+                @Override
+                public void onSuccess(Void unused) {
+                    complete(batch, null);
+                }
+
+                @Override
+                public void onFailure(ErrorInfo errorInfo) {
+                    complete(batch, errorInfo);
+                }
+            };
+            if (batch.upsert) {
+                List<RtmChannelAttribute> attributes = new ArrayList<>(batch.writes.size());
+                for (Write write : batch.writes) {
+                    RtmChannelAttribute attribute = new RtmChannelAttribute();
+                    attribute.setKey(write.key);
+                    attribute.setValue(write.value);
+                    attributes.add(attribute);
+                }
+                client.addOrUpdateChannelAttributes(batch.queue.channel, attributes, options, callback);
+            } else {
+                List<String> keys = new ArrayList<>(batch.writes.size());
+                for (Write write : batch.writes) {
+                    keys.add(write.key);
+                }
+                client.deleteChannelAttributesByKeys(batch.queue.channel, keys, options, callback);
+            }
+        }
+    }
+
+    private void complete(Batch batch, @Nullable ErrorInfo errorInfo) {
+        List<Write> done = new ArrayList<>(batch.writes.size());
+        List<Batch> batches;
+        synchronized (this) {
+            ChannelQueue queue = batch.queue;
+            queue.inFlight--;
+            boolean tooOften = errorInfo != null && errorInfo.getErrorCode()
+                    == RtmStatusCode.AttributeOperationError.ATTRIBUTE_OPERATION_ERR_TOO_OFTEN;
+            for (Write write : batch.writes) {
+                if (tooOften && !shutdown && ++write.attempts < MAX_ATTEMPTS) {
+                    requeue(queue, write);
+                } else {
+                    done.add(write);
+                }
+            }
+            if (tooOften) {
+                throttled++;
+                // the server counts calls we did not see, wait out a whole period
+                long now = System.nanoTime();
+                for (int i = 0; i < spent.length; i++) {
+                    spent[i] = now;
+                }
+            }
+            batches = shutdown ? new ArrayList<Batch>() : drain();
+        }
+        if (errorInfo != null && !done.isEmpty()) {
+            SyncLog.w(LOG_TAG, batch.queue.channel + " attribute call failed: " + errorInfo.getErrorDescription());
+        }
+        for (Write write : done) {
+            for (Completion waiter : write.waiters) {
+                if (errorInfo == null) {
+                    waiter.onSuccess(write.result);
+                } else {
+                    waiter.onFailure(new SyncManagerException(-1, errorInfo.getErrorDescription()));
+                }
+            }
+        }
+        send(batches);
+    }
+
+    // a newer write of the key already queued wins, and its callers take over the old ones
+    private void requeue(ChannelQueue queue, Write write) {
+        Write newer = queue.pending.get(write.key);
+        if (newer != null) {
+            newer.waiters.addAll(0, write.waiters);
+            merged++;
+        } else {
+            queue.pending.put(write.key, write);
+            queued++;
+        }
+    }
+
+    private static Batch add(@Nullable Batch batch, boolean upsert, Write write) {
+        if (batch == null) {
+            batch = new Batch(upsert);
+        }
+        batch.writes.add(write);
+        batch.notify |= write.notify;
+        return batch;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // completes its caller once every part of a chunked write is done, with the result of the first
+    private static class Parts implements Completion {
+        private final Completion completion;
+        private int remaining;
+        private String result;
+        private SyncManagerException failure;
+
+        Parts(int parts, Completion completion) {
+            this.completion = completion;
+            this.remaining = parts;
+        }
+
+        Completion part() {
+            return new Completion() {
+                @Override
+                public void onSuccess(@Nullable String value) {
+                    done(false, null, null);
+                }
+
+                @Override
+                public void onFailure(SyncManagerException exception) {
+                    done(false, null, exception);
+                }
+            };
+        }
+
+        @Override
+        public void onSuccess(@Nullable String value) {
+            done(true, value, null);
+        }
+
+        @Override
+        public void onFailure(SyncManagerException exception) {
+            done(true, null, exception);
+        }
+
+        private void done(boolean first, String value, SyncManagerException exception) {
+            synchronized (this) {
+                if (first) {
+                    result = value;
+                }
+                if (exception != null && failure == null) {
+                    failure = exception;
+                }
+                if (--remaining > 0) {
+                    return;
+                }
+            }
+            if (failure != null) {
+                completion.onFailure(failure);
+            } else {
+                completion.onSuccess(result);
+            }
+        }
+    }
+
+    private static class ChannelQueue {
+        final String channel;
+        // guarded by the scheduler
+        final Map<String, Write> pending = new LinkedHashMap<>();
+        int inFlight;
+
+        ChannelQueue(String channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Write {
+        final String key;
+        final long queuedAt;
+        // null deletes the key
+        String value;
+        // what the callers are told was written
+        String result;
+        boolean notify;
+        int attempts;
+        final List<Completion> waiters = new ArrayList<>(1);
+
+        Write(String key, long queuedAt) {
+            this.key = key;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private static class Batch {
+        final boolean upsert;
+        final List<Write> writes = new ArrayList<>();
+        boolean notify;
+        ChannelQueue queue;
+
+        Batch(boolean upsert) {
+            this.upsert = upsert;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.agora.common.annotation.Nullable;
+import io.agora.rtm.ErrorInfo;
+import io.agora.rtm.ResultCallback;
+import io.agora.rtm.RtmChannel;
+import io.agora.rtm.RtmChannelListener;
+import io.agora.rtm.RtmClient;
+import io.agora.rtm.RtmStatusCode;
+
+/**
+ * One joined {@link RtmChannel} per channel name, shared by whoever needs it.
+ *
+ * Users {@link #acquire} a channel and {@link #release} it when done. The first acquire creates
+ * and joins the channel, later ones while the join is pending wait for that same join instead of
+ * starting another, and the last release leaves it and frees the native object. A failed join is
+ * retried by the next acquire; its users still hold their references and release them as usual.
+ */
+class RtmChannelManager {
+
+    interface ListenerFactory {
+        RtmChannelListener create(String channelName);
+    }
+
+    private enum State {
+        JOINING, JOINED, FAILED
+    }
+
+    private static class Handle {
+        final RtmChannel channel;
+        int references;
+        State state = State.JOINING;
+        final List<ResultCallback<Void>> waiters = new ArrayList<>();
+        // why the last join failed, while FAILED
+        ErrorInfo error;
+
+        Handle(RtmChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final RtmClient client;
+    private final ListenerFactory listeners;
+
+    // guarded by this
+    private final Map<String, Handle> handles = new HashMap<>();
+    private long joins;
+
+    RtmChannelManager(RtmClient client, ListenerFactory listeners) {
+        this.client = client;
+        this.listeners = listeners;
+    }
+
+    /**
+     * Take a reference to a channel, joining it if needed. {@code callback} hears when the channel
+     * is joined, right away if it already is.
+     */
+    void acquire(String channelName, @Nullable ResultCallback<Void> callback) {
+        Handle join = null;
+        boolean joined;
+        synchronized (this) {
+            Handle handle = handles.get(channelName);
+            if (handle == null) {
+                handle = new Handle(client.createChannel(channelName, listeners.create(channelName)));
+                handles.put(channelName, handle);
+                join = handle;
+            } else if (handle.state == State.FAILED) {
+                handle.state = State.JOINING;
+                join = handle;
+            }
+            handle.references++;
+            joined = handle.state == State.JOINED;
+            if (!joined && callback != null) {
+                handle.waiters.add(callback);
+            }
+            if (join != null) {
+                joins++;
+            }
+        }
+        if (joined) {
+            if (callback != null) {
+                callback.onSuccess(null);
+            }
+        } else if (join != null) {
+            join(channelName, join);
+        }
+    }
+
+    /**
+     * Hear when a channel already acquired is joined, without taking another reference. If its
+     * last join failed and no other is pending, the callback fails right away.
+     */
+    void whenJoined(String channelName, ResultCallback<Void> callback) {
+        ErrorInfo error = null;
+        synchronized (this) {
+            Handle handle = handles.get(channelName);
+            if (handle != null && handle.state == State.JOINING) {
+                handle.waiters.add(callback);
+                return;
+            }
+            if (handle != null && handle.state == State.FAILED) {
+                error = handle.error != null ? handle.error
+                        : new ErrorInfo(RtmStatusCode.JoinChannelError.JOIN_CHANNEL_ERR_FAILURE);
+            }
+        }
+        if (error != null) {
+            callback.onFailure(error);
+        } else {
+            callback.onSuccess(null);
+        }
+    }
+
+    /**
+     * Drop a reference; the channel is left once nobody holds it.
+     *
+     * @return true if the channel was left
+     */
+    boolean release(String channelName) {
+        Handle handle;
+        synchronized (this) {
+            handle = handles.get(channelName);
+            if (handle == null || --handle.references > 0) {
+                return false;
+            }
+            handles.remove(channelName);
+        }
+        close(handle);
+        return true;
+    }
+
+    /**
+     * Leave every channel whatever its references, e.g. when the client goes away.
+     */
+    void releaseAll() {
+        List<Handle> all;
+        synchronized (this) {
+            all = new ArrayList<>(handles.values());
+            handles.clear();
+        }
+        for (Handle handle : all) {
+            close(handle);
+        }
+    }
+
+    synchronized boolean isJoined(String channelName) {
+        Handle handle = handles.get(channelName);
+        return handle != null && handle.state == State.JOINED;
+    }
+
+    synchronized int getReferenceCount(String channelName) {
+        Handle handle = handles.get(channelName);
+        return handle == null ? 0 : handle.references;
+    }
+
+    /**
+     * @return number of channels held.
+     */
+    synchronized int size() {
+        return handles.size();
+    }
+
+    /**
+     * @return number of joins sent to RTM so far.
+     */
+    synchronized long getJoinCount() {
+        return joins;
+    }
+
+    private void join(String channelName, Handle handle) {
+        handle.channel.join(new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void unused) {
+                for (ResultCallback<Void> waiter : settle(channelName, handle, State.JOINED, null)) {
+                    waiter.onSuccess(null);
+                }
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                for (ResultCallback<Void> waiter : settle(channelName, handle, State.FAILED, errorInfo)) {
+                    waiter.onFailure(errorInfo);
+                }
+            }
+        });
+    }
+
+    private List<ResultCallback<Void>> settle(String channelName, Handle handle, State state, ErrorInfo error) {
+        synchronized (this) {
+            List<ResultCallback<Void>> waiters = new ArrayList<>(handle.waiters);
+            handle.waiters.clear();
+            if (handles.get(channelName) == handle) {
+                handle.state = state;
+                handle.error = error;
+            }
+            return waiters;
+        }
+    }
+
+    private void close(Handle handle) {
+        List<ResultCallback<Void>> waiters;
+        synchronized (this) {
+            waiters = new ArrayList<>(handle.waiters);
+            handle.waiters.clear();
+        }
+        if (handle.state == State.JOINED || handle.state == State.JOINING) {
+            handle.channel.leave(null);
+        }
+        handle.channel.release();
+        // a join still pending will not reach them once the channel is released
+        if (!waiters.isEmpty()) {
+            ErrorInfo error = new ErrorInfo(RtmStatusCode.JoinChannelError.JOIN_CHANNEL_ERR_FAILURE,
+                    "channel released before it was joined");
+            for (ResultCallback<Void> waiter : waiters) {
+                waiter.onFailure(error);
+            }
+        }
+    }
+}
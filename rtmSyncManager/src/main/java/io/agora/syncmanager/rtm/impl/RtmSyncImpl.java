@@ -3,27 +3,25 @@ package io.agora.syncmanager.rtm.impl;
 import static android.content.ContentValues.TAG;
 
 import android.content.Context;
-import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import java.io.File;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.agora.common.annotation.NonNull;
 import io.agora.common.annotation.Nullable;
-import io.agora.rtm.ChannelAttributeOptions;
 import io.agora.rtm.ErrorInfo;
 import io.agora.rtm.ResultCallback;
-import io.agora.rtm.RtmChannel;
 import io.agora.rtm.RtmChannelAttribute;
 import io.agora.rtm.RtmChannelListener;
 import io.agora.rtm.RtmChannelMember;
@@ -33,6 +31,7 @@ import io.agora.rtm.RtmFileMessage;
 import io.agora.rtm.RtmImageMessage;
 import io.agora.rtm.RtmMediaOperationProgress;
 import io.agora.rtm.RtmMessage;
+import io.agora.rtm.RtmStatusCode;
 import io.agora.syncmanager.rtm.CollectionReference;
 import io.agora.syncmanager.rtm.DocumentReference;
 import io.agora.syncmanager.rtm.IObject;
@@ -41,6 +40,8 @@ import io.agora.syncmanager.rtm.Scene;
 import io.agora.syncmanager.rtm.SceneReference;
 import io.agora.syncmanager.rtm.Sync;
 import io.agora.syncmanager.rtm.SyncManagerException;
+import io.agora.syncmanager.rtm.utils.SyncLog;
+import io.agora.syncmanager.rtm.utils.UUIDUtil;
 
 public class RtmSyncImpl implements ISyncManager {
 
@@ -52,35 +53,28 @@ public class RtmSyncImpl implements ISyncManager {
     private static final String DEFAULT_CHANNEL_NAME_PARAM = "defaultChannel";
     private String mDefaultChannel;
     private RtmClient client;
-    private Map<String, RtmChannel> majorChannels = new ConcurrentHashMap<>();
+    // scenes joined, and scenes holding a reference to their channel, joined or not yet
+    private Set<String> majorChannels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Set<String> heldScenes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicBoolean defaultChannelHeld = new AtomicBoolean();
+    private RtmChannelManager channels;
     private String uid;
-    private Map<String, Sync.EventListener> eventListeners = new ConcurrentHashMap<>();
-    private Map<String, NamedChannelListener> channelListeners = new ConcurrentHashMap<>();
-    private Map<String, List<RtmChannelAttribute>> cachedAttrs = new ConcurrentHashMap<>();
+    // every listener of a channel, so several parts of an app can watch the same channel
+    private Map<String, List<Sync.EventListener>> eventListeners = new ConcurrentHashMap<>();
+    private Map<String, AttributeMirror> cachedAttrs = new ConcurrentHashMap<>();
 
     private Gson gson = new GsonBuilder()
             .create();
 
+    private final StripedExecutor dispatcher;
+    private volatile Sync.ConnectionStateListener connectionStateListener;
 
-    String uuid(){
-        String[] hexArray = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F"};
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(UUID.randomUUID().toString().getBytes());
-            byte[] rawBit = md.digest();
-            String outputMD5 = " ";
-            for (int i = 0; i < 16; i++) {
-                outputMD5 = outputMD5 + hexArray[rawBit[i] >>> 4 & 0x0f];
-                outputMD5 = outputMD5 + hexArray[rawBit[i] & 0x0f];
-            }
-            return outputMD5.trim();
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, e.getMessage());
-        }
-        return null;
-    }
+    private final AttributeChunks chunks;
+    private RtmAttributeScheduler attributeWrites;
 
     public RtmSyncImpl(Context context, Map<String, String> params, Sync.Callback callback) {
+        dispatcher = StripedExecutor.fromParams("RtmSyncDispatch", params);
+        chunks = AttributeChunks.fromParams(params);
         try {
             appId = params.get(APP_ID);
             token = params.get(TOKEN);
@@ -88,18 +82,20 @@ public class RtmSyncImpl implements ISyncManager {
             assert appId != null;
             assert mDefaultChannel != null;
             client = RtmClient.createInstance(context, appId, iEventListener);
+            channels = new RtmChannelManager(client, NamedChannelListener::new);
+            attributeWrites = RtmAttributeScheduler.fromParams(client, chunks, params);
             client.setLogFile(new File(context.getExternalCacheDir(), "agorartm.log").getAbsolutePath());
-            uid = params.containsKey(UID) ? params.get(UID) : uuid();
+            uid = params.containsKey(UID) ? params.get(UID) : UUIDUtil.uuid();
             client.login(token, uid, new ResultCallback<Void>() {
                 @Override
                 public void onSuccess(Void unused) {
-                    Log.d(TAG, "on rtm login successful! ");
+                    SyncLog.d(TAG, "on rtm login successful! ");
                     callback.onSuccess();
                 }
 
                 @Override
                 public void onFailure(ErrorInfo errorInfo) {
-                    Log.d(TAG, "on rtm login failed! ");
+                    SyncLog.d(TAG, "on rtm login failed! ");
                     callback.onFail(new SyncManagerException(-1, errorInfo.toString()));
                 }
             });
@@ -112,8 +108,16 @@ public class RtmSyncImpl implements ISyncManager {
     public void destroy() {
         this.eventListeners.clear();
         this.majorChannels.clear();
-        this.channelListeners.clear();
+        this.heldScenes.clear();
+        if(channels != null){
+            channels.releaseAll();
+        }
+        defaultChannelHeld.set(false);
+        if(attributeWrites != null){
+            attributeWrites.shutdown();
+        }
         this.cachedAttrs.clear();
+        dispatcher.shutdown();
         if(client != null){
             client.logout(new ResultCallback<Void>() {
                 @Override
@@ -129,26 +133,76 @@ public class RtmSyncImpl implements ISyncManager {
         }
     }
 
+    /**
+     * @return number of attribute updates waiting to be dispatched to listeners.
+     */
+    public int getDispatchQueueDepth() {
+        return dispatcher.getQueueDepth();
+    }
+
+    /**
+     * @return number of times an RTM callback waited because the dispatch queue was full.
+     */
+    public long getDispatchBlockedCount() {
+        return dispatcher.getBlockedCount();
+    }
+
+    /**
+     * @return number of attribute writes waiting for the RTM rate limit or their channel.
+     */
+    public int getAttributeQueueDepth() {
+        return attributeWrites.getQueueDepth();
+    }
+
+    /**
+     * @return number of attribute calls sent to RTM.
+     */
+    public long getAttributeCallCount() {
+        return attributeWrites.getCallCount();
+    }
+
+    /**
+     * @return number of attribute writes sent together with others or replaced by a later value.
+     */
+    public long getAttributeMergedCount() {
+        return attributeWrites.getMergedCount();
+    }
+
+    /**
+     * @return number of times attribute writes were held back by the RTM rate limit.
+     */
+    public long getAttributeThrottledCount() {
+        return attributeWrites.getThrottledCount();
+    }
+
+    /**
+     * @return mean time attribute writes waited before being sent, in ms.
+     */
+    public long getAttributeQueueWaitMillis() {
+        return attributeWrites.getAverageQueueWaitMillis();
+    }
+
+    /**
+     * @return longest time an attribute write waited before being sent, in ms.
+     */
+    public long getAttributeMaxQueueWaitMillis() {
+        return attributeWrites.getMaxQueueWaitMillis();
+    }
+
     @Override
     public void createScene(@NonNull Scene room,@Nullable Sync.Callback callback) {
         String channelName = room.getId();
         assert channelName != null;
 
-        RtmChannelAttribute attribute = new RtmChannelAttribute();
-        attribute.setKey(channelName);
-        attribute.setValue(room.toJson());
-        ChannelAttributeOptions options = new ChannelAttributeOptions();
-        List<RtmChannelAttribute> list = new ArrayList<>();
-        list.add(attribute);
-        client.addOrUpdateChannelAttributes(mDefaultChannel, list, options, new ResultCallback<Void>() {
+        attributeWrites.put(mDefaultChannel, channelName, room.toJson(), false, new RtmAttributeScheduler.Completion() {
             @Override
-            public void onSuccess(Void unused) {
+            public void onSuccess(String value) {
                 if(callback!=null) callback.onSuccess();
             }
 
             @Override
-            public void onFailure(ErrorInfo errorInfo) {
-                if(callback!=null) callback.onFail(new SyncManagerException(-1, errorInfo.toString()));
+            public void onFailure(SyncManagerException exception) {
+                if(callback!=null) callback.onFail(exception);
             }
         });
 
@@ -156,45 +210,53 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void joinScene(@NonNull String sceneId,@Nullable Sync.JoinSceneCallback callback) {
-        if(!channelListeners.containsKey(mDefaultChannel)){
-            NamedChannelListener defaultListener = new NamedChannelListener(mDefaultChannel);
-            RtmChannel defaultChannel = client.createChannel(mDefaultChannel, defaultListener);
-            defaultChannel.join(new ResultCallback<Void>() {
+        // the scene list channel is held once for the life of the client
+        if(defaultChannelHeld.compareAndSet(false, true)){
+            channels.acquire(mDefaultChannel, new ResultCallback<Void>() {
                 @Override
                 public void onSuccess(Void unused) {
-                    channelListeners.put(mDefaultChannel, defaultListener);
                 }
 
                 @Override
                 public void onFailure(ErrorInfo errorInfo) {
+                    if (defaultChannelHeld.compareAndSet(true, false)) {
+                        channels.release(mDefaultChannel);
+                    }
                     if (callback != null)
                         callback.onFail(new SyncManagerException(-1, "join rtm channel failed!\n"+errorInfo.getErrorDescription()));
                 }
             });
         }
-        NamedChannelListener listener = new NamedChannelListener(sceneId);
-        RtmChannel rtmChannel = client.createChannel(sceneId, listener);
-        rtmChannel.join(new ResultCallback<Void>() {
+        ResultCallback<Void> joined = new ResultCallback<Void>() {
             @Override
             public void onSuccess(Void unused) {
-                majorChannels.put(sceneId, rtmChannel);
-                channelListeners.put(sceneId, listener);
+                majorChannels.add(sceneId);
                 if(callback!=null) callback.onSuccess(new SceneReference(RtmSyncImpl.this, sceneId, sceneId));
             }
 
             @Override
             public void onFailure(ErrorInfo errorInfo) {
+                if (heldScenes.remove(sceneId)) {
+                    channels.release(sceneId);
+                }
                 if (callback != null)
                     callback.onFail(new SyncManagerException(-1, "join rtm channel failed!\n"+errorInfo.getErrorDescription()));
             }
-        });
+        };
+        // joining a scene twice shares the first join instead of taking a second reference
+        if (heldScenes.add(sceneId)) {
+            channels.acquire(sceneId, joined);
+        } else {
+            channels.whenJoined(sceneId, joined);
+        }
     }
 
     @Override
     public void getScenes(Sync.DataListCallback callback) {
         client.getChannelAttributes(mDefaultChannel, new ResultCallback<List<RtmChannelAttribute>>() {
             @Override
-            public void onSuccess(List<RtmChannelAttribute> rtmChannelAttributes) {
+            public void onSuccess(List<RtmChannelAttribute> attributes) {
+                List<RtmChannelAttribute> rtmChannelAttributes = attributes == null ? null : chunks.read(mDefaultChannel, attributes);
                 if (rtmChannelAttributes != null && rtmChannelAttributes.size() > 0) {
                     List<IObject> list = new ArrayList<>();
                     for (RtmChannelAttribute attribute : rtmChannelAttributes) {
@@ -215,12 +277,13 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void get(DocumentReference reference, Sync.DataItemCallback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getId().equals(majorChannel) ? majorChannel : majorChannel + reference.getId();
             client.getChannelAttributes(channel, new ResultCallback<List<RtmChannelAttribute>>() {
                 @Override
-                public void onSuccess(List<RtmChannelAttribute> rtmChannelAttributes) {
+                public void onSuccess(List<RtmChannelAttribute> attributes) {
+                    List<RtmChannelAttribute> rtmChannelAttributes = attributes == null ? null : chunks.read(channel, attributes);
                     if (rtmChannelAttributes != null && rtmChannelAttributes.size() > 0) {
                         callback.onSuccess(new Attribute(rtmChannelAttributes.get(0).getKey(), rtmChannelAttributes.get(0).getValue()));
                     } else {
@@ -240,12 +303,13 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void get(DocumentReference reference, String key, Sync.DataItemCallback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getId().equals(majorChannel) ? majorChannel + key : majorChannel + reference.getId();
             client.getChannelAttributes(channel, new ResultCallback<List<RtmChannelAttribute>>() {
                 @Override
-                public void onSuccess(List<RtmChannelAttribute> rtmChannelAttributes) {
+                public void onSuccess(List<RtmChannelAttribute> attributes) {
+                    List<RtmChannelAttribute> rtmChannelAttributes = attributes == null ? null : chunks.read(channel, attributes);
                     if (rtmChannelAttributes != null && rtmChannelAttributes.size() > 0) {
                         RtmChannelAttribute attribute = rtmChannelAttributes.get(0);
                         callback.onSuccess(new Attribute(attribute.getKey(), attribute.getValue()));
@@ -266,14 +330,20 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void get(CollectionReference reference, Sync.DataListCallback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getKey().equals(majorChannel) ? majorChannel : majorChannel + reference.getKey();
             client.getChannelAttributes(channel, new ResultCallback<List<RtmChannelAttribute>>() {
                 @Override
-                public void onSuccess(List<RtmChannelAttribute> rtmChannelAttributes) {
+                public void onSuccess(List<RtmChannelAttribute> attributes) {
+                    List<RtmChannelAttribute> rtmChannelAttributes = attributes == null ? null : chunks.read(channel, attributes);
                     if (rtmChannelAttributes != null && rtmChannelAttributes.size() > 0) {
-                        cachedAttrs.put(channel, rtmChannelAttributes);
+                        AttributeMirror mirror = cachedAttrs.get(channel);
+                        if (mirror != null) {
+                            mirror.reset(rtmChannelAttributes);
+                        } else {
+                            cachedAttrs.put(channel, new AttributeMirror(rtmChannelAttributes));
+                        }
                         List<IObject> res = new ArrayList<>();
                         for (RtmChannelAttribute attribute : rtmChannelAttributes) {
                             res.add(new Attribute(attribute.getKey(), attribute.getValue()));
@@ -289,15 +359,6 @@ public class RtmSyncImpl implements ISyncManager {
                     callback.onFail(new SyncManagerException(-1, errorInfo.getErrorDescription()));
                 }
             });
-            NamedChannelListener listener;
-            if (channelListeners.containsKey(channel)) {
-                listener = channelListeners.get(channel);
-            } else {
-                listener = new NamedChannelListener(channel);
-                channelListeners.put(channel, listener);
-            }
-            RtmChannel rtmChannel = client.createChannel(channel, listener);
-            rtmChannel.join(null);
         } else {
             callback.onFail(new SyncManagerException(-1, "yet join channel"));
         }
@@ -310,45 +371,31 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void add(CollectionReference reference, Object data, Sync.DataItemCallback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getKey().equals(majorChannel) ? majorChannel : majorChannel + reference.getKey();
-            if (!channelListeners.containsKey(channel)) {
-                NamedChannelListener listener = new NamedChannelListener(channel);
-                RtmChannel rtmChannel = client.createChannel(channel, listener);
-                rtmChannel.join(null);
-                channelListeners.put(channel, listener);
-            }
-            RtmChannelAttribute attribute = new RtmChannelAttribute();
-            attribute.setKey(uuid());
+            String key = UUIDUtil.uuid();
             String json = gson.toJson(data);
-            attribute.setValue(json);
-            ChannelAttributeOptions options = new ChannelAttributeOptions();
-            options.setEnableNotificationToChannelMembers(true);
-            List<RtmChannelAttribute> list = new ArrayList<>();
-            list.add(attribute);
-            client.addOrUpdateChannelAttributes(channel, list, options, new ResultCallback<Void>() {
+            attributeWrites.put(channel, key, json, true, new RtmAttributeScheduler.Completion() {
                 @Override
-                public void onSuccess(Void unused) {
-                    List<RtmChannelAttribute> rtmChannelAttributes = cachedAttrs.get(channel);
-                    if(rtmChannelAttributes != null){
-                        rtmChannelAttributes.add(attribute);
-                    }
-                    else{
-                        rtmChannelAttributes = new ArrayList<>();
-                        rtmChannelAttributes.add(attribute);
-                        cachedAttrs.put(channel, rtmChannelAttributes);
+                public void onSuccess(String value) {
+                    AttributeMirror mirror = cachedAttrs.get(channel);
+                    if(mirror == null){
+                        mirror = new AttributeMirror(Collections.<RtmChannelAttribute>emptyList());
+                        cachedAttrs.put(channel, mirror);
                     }
-                    IObject item = new Attribute(attribute.getKey(), json);
-                    Sync.EventListener listener = eventListeners.get(channel);
-                    if(listener !=null){
-                        listener.onCreated(item);
+                    IObject item = new Attribute(key, json);
+                    // when the echo came first, listeners have heard of the element already
+                    if(mirror.putLocal(key, json)){
+                        for (Sync.EventListener listener : listenersOf(channel)) {
+                            listener.onCreated(item);
+                        }
                     }
                     if(callback!=null) callback.onSuccess(item);
                 }
 
                 @Override
-                public void onFailure(ErrorInfo errorInfo) {
+                public void onFailure(SyncManagerException exception) {
                     if(callback!=null) callback.onFail(new SyncManagerException(-1, "add attribute failed!"));
                 }
             });
@@ -359,22 +406,18 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void delete(DocumentReference reference, Sync.Callback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             if(reference.getId().equals(majorChannel)){
                 // remove the scene itself, remove it from scene list
-                List<String> list = new ArrayList<>();
-                list.add(majorChannel);
-                ChannelAttributeOptions options = new ChannelAttributeOptions();
-                options.setEnableNotificationToChannelMembers(true);
-                client.deleteChannelAttributesByKeys(mDefaultChannel, list, options, new ResultCallback<Void>() {
+                attributeWrites.delete(mDefaultChannel, majorChannel, true, new RtmAttributeScheduler.Completion() {
                     @Override
-                    public void onSuccess(Void unused) {
+                    public void onSuccess(String value) {
                         if(callback!=null) callback.onSuccess();
                     }
 
                     @Override
-                    public void onFailure(ErrorInfo errorInfo) {
+                    public void onFailure(SyncManagerException exception) {
                         if(callback!=null) callback.onFail(new SyncManagerException(-1, "remove scene failed!"));
                     }
                 });
@@ -383,41 +426,27 @@ public class RtmSyncImpl implements ISyncManager {
             else{
                 // remove specific property
                 String channel = majorChannel + reference.getId();
-                ChannelAttributeOptions options = new ChannelAttributeOptions();
-                options.setEnableNotificationToChannelMembers(true);
-                List<String> list = new ArrayList<>();
-                List<RtmChannelAttribute> attrs = cachedAttrs.get(channel);
-                if(attrs!=null){
-                    for(RtmChannelAttribute item : attrs){
-                        if(item.getValue().contains(reference.getId())){
-                            list.add(item.getKey());
-                        }
-                    }
-                    client.deleteChannelAttributesByKeys(channel, list, options, new ResultCallback<Void>() {
-                        @Override
-                        public void onSuccess(Void unused) {
-                            List<RtmChannelAttribute> rtmChannelAttributes = cachedAttrs.get(channel);
-                            if(rtmChannelAttributes != null){
-                                for(RtmChannelAttribute item : rtmChannelAttributes){
-                                    if(item.getKey().equals(reference.getId())){
-                                        rtmChannelAttributes.remove(item);
-                                        break;
-                                    }
-                                }
-                            }
-                            Sync.EventListener listener = eventListeners.get(channel);
-                            if(listener !=null){
-                                listener.onDeleted(new Attribute(reference.getId(), list.get(0)));
+                // the id index finds the attribute holding the document, without a cache it is the key itself
+                AttributeMirror attrs = cachedAttrs.get(channel);
+                String key = attrs == null ? null : attrs.keyOf(reference.getId());
+                String deleted = key == null ? reference.getId() : key;
+                attributeWrites.delete(channel, deleted, true, new RtmAttributeScheduler.Completion() {
+                    @Override
+                    public void onSuccess(String value) {
+                        AttributeMirror mirror = cachedAttrs.get(channel);
+                        if(mirror == null || mirror.removeLocal(deleted)){
+                            for (Sync.EventListener listener : listenersOf(channel)) {
+                                listener.onDeleted(new Attribute(reference.getId(), deleted));
                             }
-                            if(callback!=null) callback.onSuccess();
                         }
+                        if(callback!=null) callback.onSuccess();
+                    }
 
-                        @Override
-                        public void onFailure(ErrorInfo errorInfo) {
-                            if(callback!=null) callback.onFail(new SyncManagerException(-1, "add attribute failed!"));
-                        }
-                    });
-                }
+                    @Override
+                    public void onFailure(SyncManagerException exception) {
+                        if(callback!=null) callback.onFail(new SyncManagerException(-1, "add attribute failed!"));
+                    }
+                });
             }
         } else {
             if(callback!=null) callback.onFail(new SyncManagerException(-1, "yet join channel"));
@@ -431,21 +460,17 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void delete(CollectionReference reference, String id, Sync.Callback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getKey().equals(majorChannel) ? majorChannel : majorChannel + reference.getKey();
-            List<String> list = new ArrayList<>();
-            list.add(id);
-            ChannelAttributeOptions options = new ChannelAttributeOptions();
-            options.setEnableNotificationToChannelMembers(true);
-            client.deleteChannelAttributesByKeys(channel, list, options, new ResultCallback<Void>() {
+            attributeWrites.delete(channel, id, true, new RtmAttributeScheduler.Completion() {
                 @Override
-                public void onSuccess(Void unused) {
+                public void onSuccess(String value) {
                     callback.onSuccess();
                 }
 
                 @Override
-                public void onFailure(ErrorInfo errorInfo) {
+                public void onFailure(SyncManagerException exception) {
                     callback.onFail(new SyncManagerException(-1, "delete collection element failed!"));
                 }
             });
@@ -454,27 +479,19 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void update(CollectionReference reference, String id, Object data, Sync.Callback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getKey().equals(majorChannel) ? majorChannel : majorChannel + reference.getKey();
-            RtmChannelAttribute attribute = new RtmChannelAttribute();
-            attribute.setKey(id);
-            String json = gson.toJson(data);
-            attribute.setValue(json);
-            ChannelAttributeOptions options = new ChannelAttributeOptions();
-            options.setEnableNotificationToChannelMembers(true);
-            List<RtmChannelAttribute> list = new ArrayList<>();
-            list.add(attribute);
-            client.addOrUpdateChannelAttributes(channel, list, options, new ResultCallback<Void>() {
+            updateAttribute(channel, id, gson.toJson(data), new RtmAttributeScheduler.Completion() {
                 @Override
-                public void onSuccess(Void unused) {
+                public void onSuccess(String result) {
                     if (callback != null) {
                         callback.onSuccess();
                     }
                 }
 
                 @Override
-                public void onFailure(ErrorInfo errorInfo) {
+                public void onFailure(SyncManagerException exception) {
                     callback.onFail(new SyncManagerException(-1, "update collection element failed!"));
                 }
             });
@@ -483,26 +500,18 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void update(DocumentReference reference, String key, Object data, Sync.DataItemCallback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getId().equals(majorChannel) ? majorChannel + key : majorChannel + reference.getId();
-            RtmChannelAttribute attribute = new RtmChannelAttribute();
-            attribute.setKey(channel);
-            String json = gson.toJson(data);
-            attribute.setValue(json);
-            ChannelAttributeOptions options = new ChannelAttributeOptions();
-            options.setEnableNotificationToChannelMembers(true);
-            List<RtmChannelAttribute> list = new ArrayList<>();
-            list.add(attribute);
-            client.addOrUpdateChannelAttributes(channel, list, options, new ResultCallback<Void>() {
+            updateAttribute(channel, channel, gson.toJson(data), new RtmAttributeScheduler.Completion() {
                 @Override
-                public void onSuccess(Void unused) {
-                    IObject item = new Attribute(key, json);
+                public void onSuccess(String result) {
+                    IObject item = new Attribute(key, result);
                     if(callback!=null) callback.onSuccess(item);
                 }
 
                 @Override
-                public void onFailure(ErrorInfo errorInfo) {
+                public void onFailure(SyncManagerException exception) {
                     if(callback!=null) callback.onFail(new SyncManagerException(-1, "add attribute failed!"));
                 }
             });
@@ -513,25 +522,17 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void update(DocumentReference reference, HashMap<String, Object> data, Sync.DataItemCallback callback) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getId().equals(majorChannel) ? majorChannel : majorChannel + reference.getId();
-            RtmChannelAttribute attribute = new RtmChannelAttribute();
-            attribute.setKey(reference.getId());
-            String json = gson.toJson(data);
-            attribute.setValue(json);
-            ChannelAttributeOptions options = new ChannelAttributeOptions();
-            options.setEnableNotificationToChannelMembers(true);
-            List<RtmChannelAttribute> list = new ArrayList<>();
-            list.add(attribute);
-            client.addOrUpdateChannelAttributes(channel, list, options, new ResultCallback<Void>() {
+            updateAttribute(channel, reference.getId(), gson.toJson(data), new RtmAttributeScheduler.Completion() {
                 @Override
-                public void onSuccess(Void unused) {
-                    if(callback!=null) callback.onSuccess(new Attribute(reference.getId(), json));
+                public void onSuccess(String result) {
+                    if(callback!=null) callback.onSuccess(new Attribute(reference.getId(), result));
                 }
 
                 @Override
-                public void onFailure(ErrorInfo errorInfo) {
+                public void onFailure(SyncManagerException exception) {
                     if(callback!=null) callback.onFail(new SyncManagerException(-1, "add attribute failed!"));
                 }
             });
@@ -540,12 +541,20 @@ public class RtmSyncImpl implements ISyncManager {
         }
     }
 
+    /**
+     * Write one attribute through the scheduler, so hot keys such as sliders only keep the latest
+     * value queued, and writes to one channel share a call.
+     */
+    private void updateAttribute(String channel, String key, String json, RtmAttributeScheduler.Completion completion) {
+        attributeWrites.put(channel, key, json, true, completion);
+    }
+
     @Override
     public void subscribe(DocumentReference reference, Sync.EventListener listener) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getId().equals(majorChannel) ? majorChannel : majorChannel + reference.getId();
-            eventListeners.put(channel, listener);
+            addListener(channel, listener);
         }
         else{
             listener.onSubscribeError(new SyncManagerException(-1, "yet join channel"));
@@ -554,16 +563,10 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void subscribe(DocumentReference reference, String key, Sync.EventListener listener) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getId().equals(majorChannel) ? majorChannel + key : majorChannel + reference.getId();
-            if (!channelListeners.containsKey(channel)) {
-                NamedChannelListener namedChannelListener = new NamedChannelListener(channel);
-                RtmChannel rtmChannel = client.createChannel(channel, namedChannelListener);
-                rtmChannel.join(null);
-                channelListeners.put(channel, namedChannelListener);
-            }
-            eventListeners.put(channel, listener);
+            addListener(channel, listener);
         }
         else{
             listener.onSubscribeError(new SyncManagerException(-1, "yet join channel"));
@@ -572,10 +575,10 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void subscribe(CollectionReference reference, Sync.EventListener eventListener) {
-        if (this.majorChannels.containsKey(reference.getParent())) {
+        if (this.majorChannels.contains(reference.getParent())) {
             String majorChannel = reference.getParent();
             String channel = reference.getKey().equals(majorChannel) ? majorChannel : majorChannel + reference.getKey();
-            eventListeners.put(channel, eventListener);
+            addListener(channel, eventListener);
             // for generate cachedAttrs
             get(reference, new Sync.DataListCallback() {
                 @Override
@@ -596,36 +599,126 @@ public class RtmSyncImpl implements ISyncManager {
 
     @Override
     public void unsubscribe(String id, @Nullable Sync.EventListener listener) {
-        // 1. leave related rtm channel
+        // 1. a listener going away only releases the channels it kept joined
+        if(listener!=null && removeListener(listener)){
+            return;
+        }
+
+        // 2. leaving the scene drops every listener of its channels
         List<String> toDeleted = new ArrayList<>();
-        for (String s : channelListeners.keySet()) {
-            if(s.startsWith(id)){
-                client.createChannel(s, channelListeners.get(s)).leave(null);
-                toDeleted.add(s);
+        synchronized (eventListeners) {
+            for (String s : eventListeners.keySet()) {
+                if(s.startsWith(id)){
+                    toDeleted.add(s);
+                }
+            }
+            for (String s : toDeleted){
+                eventListeners.remove(s);
             }
         }
         for (String s : toDeleted){
-            channelListeners.remove(s);
+            channels.release(s);
+        }
+
+        // 3. move joined channels cache, leaving the scene channel once nothing else holds it
+        majorChannels.remove(id);
+        if (heldScenes.remove(id)) {
+            channels.release(id);
+        }
+    }
+
+    private List<IObject> toObjects(List<AttributeMirror.Entry> entries) {
+        List<IObject> objects = new ArrayList<>(entries.size());
+        for (AttributeMirror.Entry entry : entries) {
+            objects.add(new Attribute(entry.key, entry.value));
+        }
+        return objects;
+    }
+
+    /**
+     * Register a listener on a channel. The listeners of a channel hold one reference to it, so it
+     * stays joined while anybody listens.
+     */
+    private void addListener(String channel, Sync.EventListener listener) {
+        boolean first = false;
+        synchronized (eventListeners) {
+            List<Sync.EventListener> listeners = eventListeners.get(channel);
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<>();
+                eventListeners.put(channel, listeners);
+                first = true;
+            }
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+        if (first) {
+            channels.acquire(channel, null);
         }
+    }
 
-        // 2. clean all event Listeners
-        if(listener!=null && eventListeners.containsValue(listener)){
-            for(Map.Entry<String, Sync.EventListener> entry : eventListeners.entrySet()){
-                if(listener == entry.getValue()){
-                    eventListeners.remove(entry.getKey());
-                    return;
+    /**
+     * Remove a listener from every channel. A channel is released when its last listener goes.
+     *
+     * @return true if the listener was registered
+     */
+    private boolean removeListener(Sync.EventListener listener) {
+        boolean removed = false;
+        List<String> emptied = new ArrayList<>();
+        synchronized (eventListeners) {
+            for (Map.Entry<String, List<Sync.EventListener>> entry : eventListeners.entrySet()) {
+                if (entry.getValue().remove(listener)) {
+                    removed = true;
+                    if (entry.getValue().isEmpty()) {
+                        emptied.add(entry.getKey());
+                    }
                 }
             }
+            for (String channel : emptied) {
+                eventListeners.remove(channel);
+            }
         }
+        for (String channel : emptied) {
+            channels.release(channel);
+        }
+        return removed;
+    }
 
-        // 3. move joined channels cache.
-        majorChannels.remove(id);
+    private List<Sync.EventListener> listenersOf(String channel) {
+        List<Sync.EventListener> listeners = eventListeners.get(channel);
+        return listeners == null ? Collections.<Sync.EventListener>emptyList() : listeners;
+    }
+
+    @Override
+    public void setConnectionStateListener(@Nullable Sync.ConnectionStateListener listener) {
+        connectionStateListener = listener;
     }
 
     private RtmClientListener iEventListener = new RtmClientListener() {
         @Override
         public void onConnectionStateChanged(int i, int i1) {
-            Log.d(TAG, "on rtm ConnectionStateChanged: " + i + ", reason: "+i1);
+            SyncLog.d(TAG, () -> "on rtm ConnectionStateChanged: " + i + ", reason: " + i1);
+            Sync.ConnectionStateListener listener = connectionStateListener;
+            if (listener == null) {
+                return;
+            }
+            Sync.ConnectionState state;
+            switch (i) {
+                case RtmStatusCode.ConnectionState.CONNECTION_STATE_CONNECTING:
+                    state = Sync.ConnectionState.CONNECTING;
+                    break;
+                case RtmStatusCode.ConnectionState.CONNECTION_STATE_CONNECTED:
+                    state = Sync.ConnectionState.CONNECTED;
+                    break;
+                case RtmStatusCode.ConnectionState.CONNECTION_STATE_RECONNECTING:
+                    state = Sync.ConnectionState.RECONNECTING;
+                    break;
+                default:
+                    // disconnected, or aborted by a login from another device
+                    state = Sync.ConnectionState.DISCONNECTED;
+                    break;
+            }
+            dispatcher.execute("", () -> listener.onStateChanged(state));
         }
 
         @Override
@@ -679,6 +772,13 @@ public class RtmSyncImpl implements ISyncManager {
 
         @Override
         public void onAttributesUpdated(List<RtmChannelAttribute> list) {
+            // listeners run on the dispatcher so a slow one cannot stall the RTM callback thread
+            dispatcher.execute(channelName, () -> handleAttributesUpdated(list));
+        }
+
+        private void handleAttributesUpdated(List<RtmChannelAttribute> attributes) {
+            // chunked values are joined before anything looks at them
+            List<RtmChannelAttribute> list = chunks.read(channelName, attributes);
             // 业务逻辑:
             // 根据channel, 判断出是哪种类型的更新 1. room属性 2. collection 3. roomList(暂不支持)
             // room属性有一个listener对象, 每一个collection也有一个listener对象, 存放在一个map中
@@ -687,63 +787,51 @@ public class RtmSyncImpl implements ISyncManager {
                 // 如果订阅的scene被删除，通知订阅者
                 List<String> foundSceneList = new ArrayList<>();
                 for(RtmChannelAttribute attribute : list){
-                    if(majorChannels.containsKey(attribute.getKey())){
+                    if(majorChannels.contains(attribute.getKey())){
                         foundSceneList.add(attribute.getKey());
                     }
                 }
-                for(String scene:majorChannels.keySet()){
-                    if(!foundSceneList.contains(scene) && channelListeners.containsKey(scene)){
-                        Sync.EventListener callback = eventListeners.get(scene);
-                        if(callback!=null){
+                for(String scene:majorChannels){
+                    if(!foundSceneList.contains(scene)){
+                        for (Sync.EventListener callback : listenersOf(scene)) {
                             callback.onDeleted(new Attribute(scene, scene));
                         }
-                        channelListeners.remove(scene);
                         majorChannels.remove(scene);
+                        if (heldScenes.remove(scene)) {
+                            channels.release(scene);
+                        }
                     }
                 }
             }
             else if(eventListeners.containsKey(channelName)){
-                Sync.EventListener callback = eventListeners.get(channelName);
-                if(cachedAttrs.containsKey(channelName)){
-                    List<RtmChannelAttribute> cache = cachedAttrs.get(channelName);
-                    List<IObject> onlyA = new ArrayList<>();
-                    List<IObject> onlyB = new ArrayList<>();
-                    List<IObject> both = new ArrayList<>();
-                    Map<String, RtmChannelAttribute> temp = new HashMap<>();
-                    assert cache != null;
-                    for(RtmChannelAttribute item : cache){
-                        temp.put(item.getKey(), item);
+                List<Sync.EventListener> callbacks = listenersOf(channelName);
+                AttributeMirror mirror = cachedAttrs.get(channelName);
+                if(mirror != null){
+                    AttributeMirror.Delta delta = mirror.apply(list);
+                    if (delta.isEmpty()) {
+                        return;
                     }
-                    for(RtmChannelAttribute b : list){
-                        if(temp.containsKey(b.getKey())){
-                            if(!b.getValue().equals(temp.get(b.getKey()).getValue())){
-                                both.add(new Attribute(b.getKey(), b.getValue()));
-                            }
-                            temp.remove(b.getKey());
+                    List<IObject> both = toObjects(delta.updated);
+                    List<IObject> onlyB = toObjects(delta.created);
+                    List<IObject> onlyA = toObjects(delta.deleted);
+                    for (Sync.EventListener callback : callbacks) {
+                        for(IObject i : both){
+                            callback.onUpdated(i);
                         }
-                        else {
-                            onlyB.add(new Attribute(b.getKey(), b.getValue()));
+                        for(IObject i : onlyB){
+                            callback.onCreated(i);
+                        }
+                        for(IObject i : onlyA){
+                            callback.onDeleted(i);
                         }
                     }
-                    for(RtmChannelAttribute i : temp.values()){
-                        onlyA.add(new Attribute(i.getKey(), i.getValue()));
-                    }
-                    for(IObject i : both){
-                        callback.onUpdated(i);
-                    }
-                    for(IObject i : onlyB){
-                        callback.onCreated(i);
-                    }
-                    for(IObject i : onlyA){
-                        callback.onDeleted(i);
-                    }
-                    cachedAttrs.put(channelName, list);
                 }
-                else {
+                else if(!list.isEmpty()) {
                     // 这里是scene property 的回调
                     RtmChannelAttribute rtmChannelAttribute = list.get(0);
-                    assert callback != null;
-                    callback.onUpdated(new Attribute(rtmChannelAttribute.getKey(), rtmChannelAttribute.getValue()));
+                    for (Sync.EventListener callback : callbacks) {
+                        callback.onUpdated(new Attribute(rtmChannelAttribute.getKey(), rtmChannelAttribute.getValue()));
+                    }
                 }
             }
 
@@ -766,7 +854,7 @@ public class RtmSyncImpl implements ISyncManager {
 
         @Override
         public void onMemberJoined(RtmChannelMember rtmChannelMember) {
-            Log.d(TAG, "on rtm MemberJoined: "+rtmChannelMember.getUserId());
+            SyncLog.d(TAG, () -> "on rtm MemberJoined: " + rtmChannelMember.getUserId());
         }
 
         @Override
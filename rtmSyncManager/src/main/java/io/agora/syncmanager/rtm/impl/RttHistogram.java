@@ -0,0 +1,66 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip times of heartbeat ping/pong pairs.
+ *
+ * Samples land in power-of-two millisecond buckets, which is plenty to tell a 30ms link from a
+ * 300ms one at constant memory. A smoothed RTT (EWMA with gain 1/8, as TCP uses) follows the live
+ * link without jumping on a single late pong.
+ */
+class RttHistogram {
+
+    // bucket 0 holds samples under 1ms, bucket i samples in [2^(i-1), 2^i) ms; the last one is open
+    private static final int BUCKETS = 18;
+
+    private final long[] counts = new long[BUCKETS];
+    private long samples;
+    private long smoothedNanos;
+    private long maxNanos;
+
+    synchronized void record(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        long ms = TimeUnit.NANOSECONDS.toMillis(rttNanos);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+        counts[bucket]++;
+        samples++;
+        smoothedNanos = samples == 1 ? rttNanos : smoothedNanos + (rttNanos - smoothedNanos) / 8;
+        maxNanos = Math.max(maxNanos, rttNanos);
+    }
+
+    /**
+     * @return smoothed RTT, or -1 before the first sample.
+     */
+    synchronized long getSmoothed(TimeUnit unit) {
+        return samples == 0 ? -1 : unit.convert(smoothedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param percentile in (0, 100]
+     * @return upper bound in ms of the bucket holding the percentile, or -1 before the first sample.
+     */
+    synchronized long getPercentileMillis(double percentile) {
+        if (samples == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(samples * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return 1L << i;
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+    }
+
+    /**
+     * @return a copy of the bucket counts, see {@link #BUCKETS} for the bucket bounds.
+     */
+    synchronized long[] getBuckets() {
+        return counts.clone();
+    }
+}
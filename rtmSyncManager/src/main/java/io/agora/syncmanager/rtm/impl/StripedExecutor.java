@@ -0,0 +1,162 @@
+package io.agora.syncmanager.rtm.impl;
+
+import org.java_websocket.util.NamedThreadFactory;
+
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.agora.syncmanager.rtm.utils.SyncLog;
+
+/**
+ * Runs listener callbacks off the transport threads, one stripe per key.
+ *
+ * Tasks with the same key (a channel name) always land on the same single-threaded stripe, so
+ * they run in submission order, while different scenes run in parallel. Each stripe holds up to
+ * {@code queueCapacity} waiting tasks; when it is full the submitting thread waits for room, so a
+ * slow listener slows the transport down instead of losing replies, timeouts or events. A task
+ * submitted from a stripe of the same executor never waits, it would wait for itself, and is
+ * queued over the capacity instead.
+ */
+class StripedExecutor {
+    private static final String LOG_TAG = "StripedExecutor";
+
+    static final String DISPATCH_THREADS_PARAM = "dispatchThreads";
+    static final String DISPATCH_QUEUE_CAPACITY_PARAM = "dispatchQueueCapacity";
+
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // the executor whose stripe runs the current thread
+    private static final ThreadLocal<StripedExecutor> CURRENT = new ThreadLocal<>();
+
+    private final String name;
+    private final ThreadPoolExecutor[] stripes;
+    // free queue slots of each stripe
+    private final Semaphore[] room;
+    private final AtomicLong blocked = new AtomicLong();
+    private volatile boolean shutdown;
+
+    /**
+     * @param threads number of stripes, 0 runs every task on the submitting thread
+     */
+    StripedExecutor(String name, int threads, int queueCapacity) {
+        this.name = name;
+        stripes = new ThreadPoolExecutor[Math.max(0, threads)];
+        room = new Semaphore[stripes.length];
+        NamedThreadFactory threadFactory = new NamedThreadFactory(name);
+        for (int i = 0; i < stripes.length; i++) {
+            // unbounded, the semaphore keeps producers within the capacity
+            ThreadPoolExecutor stripe = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    runnable -> threadFactory.newThread(() -> {
+                        CURRENT.set(this);
+                        runnable.run();
+                    }),
+                    new ThreadPoolExecutor.DiscardPolicy());
+            stripe.allowCoreThreadTimeOut(true);
+            stripes[i] = stripe;
+            room[i] = new Semaphore(Math.max(1, queueCapacity));
+        }
+    }
+
+    /**
+     * Build an executor from the {@code dispatch*} init params, falling back to the defaults.
+     */
+    static StripedExecutor fromParams(String name, Map<String, String> params) {
+        int threads = parseInt(params.get(DISPATCH_THREADS_PARAM), DEFAULT_THREADS);
+        int queueCapacity = parseInt(params.get(DISPATCH_QUEUE_CAPACITY_PARAM), DEFAULT_QUEUE_CAPACITY);
+        return new StripedExecutor(name, threads, queueCapacity);
+    }
+
+    /**
+     * Queue {@code task} behind the earlier tasks of {@code key}, waiting while its stripe is
+     * full. Tasks submitted after {@link #shutdown} are discarded.
+     */
+    void execute(Object key, Runnable task) {
+        if (stripes.length == 0) {
+            run(task);
+            return;
+        }
+        if (shutdown) {
+            return;
+        }
+        int index = (key == null ? 0 : key.hashCode() & 0x7fffffff) % stripes.length;
+        Semaphore slots = room[index];
+        boolean holding = slots.tryAcquire() || (CURRENT.get() != this && awaitRoom(slots));
+        Runnable queued = () -> {
+            if (holding) {
+                slots.release();
+            }
+            run(task);
+        };
+        stripes[index].execute(queued);
+    }
+
+    // false if the wait was cut short, the task is then queued over the capacity
+    private boolean awaitRoom(Semaphore slots) {
+        blocked.incrementAndGet();
+        try {
+            while (!shutdown) {
+                if (slots.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SyncLog.w(LOG_TAG, name + " interrupted while waiting for room, queueing anyway");
+        }
+        return false;
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            // a failing listener must not take the stripe down with it
+            SyncLog.e(LOG_TAG, "callback threw", t);
+        }
+    }
+
+    /**
+     * @return number of tasks waiting in all stripes.
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            depth += stripe.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return number of times a submitting thread had to wait for room in a full stripe.
+     */
+    long getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * Stop accepting tasks; the ones already queued still run.
+     */
+    void shutdown() {
+        shutdown = true;
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
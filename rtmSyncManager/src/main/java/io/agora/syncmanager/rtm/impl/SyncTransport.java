@@ -0,0 +1,69 @@
+package io.agora.syncmanager.rtm.impl;
+
+import java.util.List;
+
+import io.agora.common.annotation.Nullable;
+import io.agora.syncmanager.rtm.Sync;
+import io.agora.syncmanager.rtm.SyncManagerException;
+
+/**
+ * What {@link RethinkSyncImpl} needs from the layer that stores objects in channels and reports
+ * their changes.
+ *
+ * Objects live in channels, keyed by object id, as the encoded JSON value the transport was given.
+ * A write reaches every subscriber of its channel, the writer's own included, as an update; a
+ * delete as the deleted ids. {@code onCreate} is only called for writes a transport reports
+ * locally before the store has them.
+ *
+ * Implemented by {@link RethinkSyncClient}, {@link RethinkSyncClientPool} and, without any
+ * network, {@link LoopbackTransport}.
+ */
+interface SyncTransport {
+
+    /**
+     * Connect. {@code complete} is called once, with 0 or an error code.
+     */
+    void init(String appId, String channelName, RethinkSyncClient.ICallback<Integer> complete);
+
+    void release();
+
+    void add(String channelName, Object data, String objectId,
+             RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onSuccess,
+             RethinkSyncClient.ICallback<SyncManagerException> onError);
+
+    void update(String channelName, Object data, String objectId,
+                RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onSuccess,
+                RethinkSyncClient.ICallback<SyncManagerException> onError);
+
+    void query(String channelName,
+               RethinkSyncClient.ICallback<List<RethinkSyncClient.Attribute>> onSuccess,
+               RethinkSyncClient.ICallback<SyncManagerException> onError);
+
+    void subscribe(String channelName,
+                   RethinkSyncClient.ICallback<RethinkSyncClient.Attribute> onCreate,
+                   RethinkSyncClient.ICallback<List<RethinkSyncClient.Attribute>> onUpdate,
+                   RethinkSyncClient.ICallback<List<String>> onDelete,
+                   RethinkSyncClient.ICallback<SyncManagerException> onError,
+                   Object tag);
+
+    /**
+     * Stop listening. On the channels {@code channelName} prefixes, e.g. all channels of a scene,
+     * the listeners registered with {@code tag} are dropped, or every listener if {@code tag} is
+     * null; if no subscribed channel has that prefix, the listeners registered with {@code tag}
+     * are dropped wherever they are. A channel stays subscribed while it has listeners left.
+     */
+    void unsubscribe(String channelName, Object tag);
+
+    void delete(String channelName, List<String> objectIds,
+                RethinkSyncClient.ICallback<Void> onSuccess,
+                RethinkSyncClient.ICallback<SyncManagerException> onError);
+
+    void setConnectionStateListener(@Nullable Sync.ConnectionStateListener listener);
+
+    /**
+     * @return false while the transport wants writes held back.
+     */
+    boolean isWritable();
+
+    void setWritabilityListener(@Nullable RethinkSyncClient.WritabilityListener listener);
+}
@@ -0,0 +1,124 @@
+package io.agora.syncmanager.rtm.utils;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.agora.common.annotation.Nullable;
+
+/**
+ * Logging of the sync manager, with a level, per level sampling and lazy messages.
+ *
+ * Lines below the level are dropped before their message is built: callers on a hot path pass a
+ * {@link Message} so that neither the string concatenation nor its garbage happens unless the line
+ * is written. A sample rate of n keeps one line in n of its level, which bounds the cost of a
+ * level that is enabled under load. Lines go to logcat unless another {@link Sink} is set.
+ *
+ * The default level is {@link Log#INFO}, so per-frame debug lines cost one volatile read.
+ */
+public final class SyncLog {
+
+    public interface Sink {
+        void println(int priority, String tag, String message, @Nullable Throwable tr);
+    }
+
+    public interface Message {
+        String get();
+    }
+
+    public static final Sink LOGCAT = (priority, tag, message, tr) -> {
+        if (tr != null) {
+            message = message + '\n' + Log.getStackTraceString(tr);
+        }
+        Log.println(priority, tag, message);
+    };
+
+    private static volatile Sink sink = LOGCAT;
+    private static volatile int level = Log.INFO;
+
+    // indexed by priority, 0 and 1 unused; a rate of 1 keeps every line
+    private static final int[] sampleRates = {1, 1, 1, 1, 1, 1, 1, 1};
+    private static final AtomicLongArray sampleCounts = new AtomicLongArray(sampleRates.length);
+
+    private SyncLog() {
+    }
+
+    public static void setSink(Sink sink) {
+        SyncLog.sink = sink == null ? LOGCAT : sink;
+    }
+
+    /**
+     * @param level lowest {@link Log} priority written, e.g. {@link Log#DEBUG}
+     */
+    public static void setLevel(int level) {
+        SyncLog.level = level;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * Keep one line in {@code oneIn} of the given priority, 1 keeps them all.
+     *
+     * @param priority a {@link Log} priority, {@link Log#VERBOSE} to {@link Log#ASSERT}
+     * @throws IllegalArgumentException if {@code priority} is not one
+     */
+    public static void setSampleRate(int priority, int oneIn) {
+        if (priority < Log.VERBOSE || priority > Log.ASSERT) {
+            throw new IllegalArgumentException("not a log priority: " + priority);
+        }
+        synchronized (sampleRates) {
+            sampleRates[priority] = Math.max(1, oneIn);
+        }
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    public static void v(String tag, Message message) {
+        write(Log.VERBOSE, tag, message, null);
+    }
+
+    public static void d(String tag, Message message) {
+        write(Log.DEBUG, tag, message, null);
+    }
+
+    public static void d(String tag, String message) {
+        write(Log.DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        write(Log.INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        write(Log.WARN, tag, message, null);
+    }
+
+    public static void e(String tag, String message) {
+        write(Log.ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable tr) {
+        write(Log.ERROR, tag, message, tr);
+    }
+
+    private static void write(int priority, String tag, Message message, Throwable tr) {
+        if (priority >= level && sampled(priority)) {
+            sink.println(priority, tag, message.get(), tr);
+        }
+    }
+
+    private static void write(int priority, String tag, String message, Throwable tr) {
+        if (priority >= level && sampled(priority)) {
+            sink.println(priority, tag, message, tr);
+        }
+    }
+
+    private static boolean sampled(int priority) {
+        int rate = sampleRates[priority];
+        return rate == 1 || sampleCounts.getAndIncrement(priority) % rate == 0;
+    }
+}
@@ -1,30 +1,49 @@
 package io.agora.syncmanager.rtm.utils;
 
-import android.util.Log;
-
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.UUID;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Generates request and object ids.
+ *
+ * An id is a random per-process prefix (98 bits, drawn once) followed by a per-process counter,
+ * both in fixed width base62: 28 characters of [0-9A-Za-z]. The prefix keeps ids from different
+ * devices apart and the counter keeps ids of one process apart, so no randomness or hashing is
+ * needed per id. Ids of one process sort in creation order.
+ */
 public class UUIDUtil {
-    private static final String TAG = "UUIDUtil";
+    private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    // 62^11 > 2^63 and 62^6 > 2^35
+    private static final int LONG_WIDTH = 11;
+    private static final int SHORT_WIDTH = 6;
+    private static final int PREFIX_LENGTH = LONG_WIDTH + SHORT_WIDTH;
+    private static final int LENGTH = PREFIX_LENGTH + LONG_WIDTH;
+
+    private static final char[] PREFIX = new char[PREFIX_LENGTH];
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    static {
+        SecureRandom random = new SecureRandom();
+        encode(random.nextLong() >>> 1, PREFIX, 0, LONG_WIDTH);
+        encode(random.nextLong() >>> 29, PREFIX, LONG_WIDTH, SHORT_WIDTH);
+    }
 
     public static String uuid() {
-        String[] hexArray = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F"};
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(UUID.randomUUID().toString().getBytes());
-            byte[] rawBit = md.digest();
-            String outputMD5 = " ";
-            for (int i = 0; i < 16; i++) {
-                outputMD5 = outputMD5 + hexArray[rawBit[i] >>> 4 & 0x0f];
-                outputMD5 = outputMD5 + hexArray[rawBit[i] & 0x0f];
-            }
-            return outputMD5.trim();
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, e.getMessage());
+        char[] id = new char[LENGTH];
+        System.arraycopy(PREFIX, 0, id, 0, PREFIX_LENGTH);
+        encode(COUNTER.incrementAndGet(), id, PREFIX_LENGTH, LONG_WIDTH);
+        return new String(id);
+    }
+
+    /**
+     * Write a non-negative value as {@code width} base62 digits, most significant first.
+     */
+    private static void encode(long value, char[] out, int offset, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            out[i] = DIGITS[(int) (value % 62)];
+            value /= 62;
         }
-        return null;
     }
 
 }
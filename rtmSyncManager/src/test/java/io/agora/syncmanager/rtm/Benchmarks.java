@@ -0,0 +1,19 @@
+package io.agora.syncmanager.rtm;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Gate of the benchmark tests: they are skipped unless the build runs with {@code -Pbenchmark}.
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skip the calling test unless benchmarks were asked for.
+     */
+    public static void assumeEnabled() {
+        assumeTrue("benchmark, run with ./gradlew test -Pbenchmark", Boolean.getBoolean("benchmark"));
+    }
+}
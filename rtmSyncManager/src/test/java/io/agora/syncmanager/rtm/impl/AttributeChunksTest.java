@@ -0,0 +1,151 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.agora.rtm.RtmChannelAttribute;
+
+/**
+ * Splitting, joining and cleaning up of values stored by {@link AttributeChunks}.
+ */
+public class AttributeChunksTest {
+
+    private static final String CHANNEL = "sceneIdmember";
+    // U+1F600, two chars and four UTF-8 bytes
+    private static final String EMOJI = "\uD83D\uDE00";
+
+    @Test
+    public void splitNeverCutsASurrogatePair() {
+        String value = "a" + EMOJI + "b" + EMOJI + EMOJI;
+
+        List<String> parts = AttributeChunks.split(value, 5);
+
+        assertEquals(Arrays.asList("a" + EMOJI, "b" + EMOJI, EMOJI), parts);
+        // a code point larger than the limit still gets a part of its own
+        assertEquals(Arrays.asList(EMOJI, EMOJI), AttributeChunks.split(EMOJI + EMOJI, 3));
+        for (String part : AttributeChunks.split(value, 6)) {
+            assertFalse(Character.isHighSurrogate(part.charAt(part.length() - 1)));
+            assertTrue(AttributeChunks.utf8Length(part) <= 6);
+        }
+        assertEquals(14, AttributeChunks.utf8Length(value));
+    }
+
+    @Test
+    public void readJoinsChunksAtTheManifest() {
+        AttributeChunks chunks = new AttributeChunks(4);
+        String value = "{\"n\":\"" + EMOJI + "12345\"}";
+        List<RtmChannelAttribute> attributes = new ArrayList<>();
+        attributes.add(attribute("a", "1"));
+        attributes.addAll(chunks.write(CHANNEL, "k", value).puts);
+        attributes.add(attribute("b", "2"));
+
+        List<RtmChannelAttribute> read = chunks.read(CHANNEL, attributes);
+
+        assertEquals(Arrays.asList("a=1", "k=" + value, "b=2"), describe(read));
+    }
+
+    @Test
+    public void manifestMismatchHidesTheValue() {
+        AttributeChunks chunks = new AttributeChunks(4);
+        List<RtmChannelAttribute> written = chunks.write(CHANNEL, "k", "0123456789").puts;
+        List<RtmChannelAttribute> attributes = new ArrayList<>(written);
+        // one chunk of a newer value landed before the manifest and the rest
+        attributes.set(2, attribute("k#1", "abcd"));
+
+        assertTrue(chunks.read(CHANNEL, attributes).isEmpty());
+
+        attributes = new ArrayList<>(written);
+        attributes.remove(3);
+        assertTrue(chunks.read(CHANNEL, attributes).isEmpty());
+
+        assertEquals(Collections.singletonList("k=0123456789"), describe(chunks.read(CHANNEL, written)));
+    }
+
+    @Test
+    public void chunksAreOnlyHiddenBehindTheirKey() {
+        AttributeChunks chunks = new AttributeChunks(4);
+        List<RtmChannelAttribute> attributes = new ArrayList<>();
+        attributes.add(attribute("x#0", "kept"));
+        attributes.add(attribute("k", "plain"));
+        attributes.add(attribute("k#0", "stale"));
+
+        assertEquals(Arrays.asList("x#0=kept", "k=plain"), describe(chunks.read(CHANNEL, attributes)));
+    }
+
+    @Test
+    public void shrinkingValueDeletesItsStaleChunks() {
+        AttributeChunks chunks = new AttributeChunks(4);
+        assertTrue(chunks.write(CHANNEL, "k", "0123456789").deletes.isEmpty());
+
+        AttributeChunks.Plan shorter = chunks.write(CHANNEL, "k", "012345");
+        assertEquals(3, shorter.puts.size());
+        assertEquals(Collections.singletonList("k#2"), shorter.deletes);
+
+        AttributeChunks.Plan small = chunks.write(CHANNEL, "k", "01");
+        assertEquals(Collections.singletonList("k=01"), describe(small.puts));
+        assertEquals(Arrays.asList("k#0", "k#1"), small.deletes);
+
+        assertEquals(Collections.singletonList("k"), chunks.delete(CHANNEL, "k"));
+    }
+
+    @Test
+    public void readLearnsTheChunksOfOtherWriters() {
+        List<RtmChannelAttribute> attributes = new AttributeChunks(4).write(CHANNEL, "k", "0123456789").puts;
+        AttributeChunks chunks = new AttributeChunks(4);
+
+        chunks.read(CHANNEL, attributes);
+
+        assertEquals(Arrays.asList("k", "k#0", "k#1", "k#2"), chunks.delete(CHANNEL, "k"));
+        // never seen, so its manifest has to be read
+        assertNull(chunks.delete("other", "k"));
+        assertEquals(Collections.singletonList("k"), new AttributeChunks(0).delete("other", "k"));
+
+        chunks.read("plain", Collections.singletonList(attribute("k", "v")));
+        assertEquals(Collections.singletonList("k"), chunks.delete("plain", "k"));
+    }
+
+    @Test
+    public void manifestTellsTheChunksToDelete() {
+        List<RtmChannelAttribute> attributes = new AttributeChunks(4).write(CHANNEL, "k", "0123456789").puts;
+
+        int count = AttributeChunks.chunkCount(attributes.get(0).getValue());
+
+        assertEquals(3, count);
+        assertEquals(Arrays.asList("k", "k#0", "k#1", "k#2"), AttributeChunks.keys("k", count));
+        assertEquals(0, AttributeChunks.chunkCount("{\"n\":1}"));
+        assertEquals(0, AttributeChunks.chunkCount(null));
+    }
+
+    @Test
+    public void chunkKeysMustFitRtm() {
+        AttributeChunks chunks = new AttributeChunks(4);
+        // 30 bytes, room for "#9" but not for "#10"
+        String key = "012345678901234567890123456789";
+
+        assertEquals(3, chunks.write(CHANNEL, key, "0123456789").puts.size() - 1);
+        assertNull(chunks.write(CHANNEL, key, "0123456789012345678901234567890123456789012345"));
+        // a value that fits one attribute takes no chunk key
+        assertEquals(1, chunks.write(CHANNEL, key + "ab", "01").puts.size());
+    }
+
+    private static List<String> describe(List<RtmChannelAttribute> attributes) {
+        List<String> ret = new ArrayList<>();
+        for (RtmChannelAttribute attribute : attributes) {
+            ret.add(attribute.getKey() + "=" + attribute.getValue());
+        }
+        return ret;
+    }
+
+    private static RtmChannelAttribute attribute(String key, String value) {
+        return new RtmChannelAttribute(key, value);
+    }
+}
@@ -0,0 +1,250 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import io.agora.rtm.RtmChannelAttribute;
+
+/**
+ * {@link AttributeMirror} against the list diff it replaced, and how it treats stale lists and the
+ * echoes of local writes, fed with hand-built attribute lists.
+ */
+public class AttributeMirrorTest {
+
+    private static final int UPDATES = 20000;
+    private static final int KEYS = 80;
+
+    // equal length and hash code, so only equals() or the timestamp can tell them apart
+    private static final String[] COLLIDING = {"AaAa", "AaBB", "BBAa", "BBBB"};
+
+    @Test
+    public void matchesTheListDiff() {
+        Random random = new Random(20190);
+        long clock = 0;
+        List<RtmChannelAttribute> list = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            list.add(attribute("k" + i, randomValue(random), ++clock));
+        }
+        AttributeMirror mirror = new AttributeMirror(list);
+        int multipleDeletes = 0;
+        int duplicates = 0;
+        int rewrittenAlike = 0;
+
+        for (int update = 0; update < UPDATES; update++) {
+            List<RtmChannelAttribute> next = new ArrayList<>();
+            Set<String> keys = new HashSet<>();
+            for (RtmChannelAttribute attribute : list) {
+                int dice = random.nextInt(100);
+                if (dice < 10) {
+                    continue;
+                }
+                if (dice < 25) {
+                    // a duplicate keeps no timestamp, so the stale check stays out of the diff
+                    long ts = attribute.getLastUpdateTs() == 0 ? 0 : ++clock;
+                    String value = randomValue(random);
+                    if (value.equals(attribute.getValue())) {
+                        rewrittenAlike++;
+                    }
+                    attribute = attribute(attribute.getKey(), value, ts);
+                }
+                next.add(attribute);
+                keys.add(attribute.getKey());
+            }
+            int added = random.nextInt(4);
+            for (int i = 0; i < added; i++) {
+                String key = "k" + random.nextInt(KEYS);
+                if (keys.add(key)) {
+                    next.add(random.nextInt(next.size() + 1), attribute(key, randomValue(random), ++clock));
+                }
+            }
+            if (!next.isEmpty() && random.nextInt(20) == 0) {
+                String key = next.get(random.nextInt(next.size())).getKey();
+                next.add(random.nextInt(next.size() + 1), attribute(key, randomValue(random), 0));
+                duplicates++;
+            }
+            if (random.nextInt(20) == 0) {
+                Collections.shuffle(next, random);
+            }
+            if (random.nextInt(200) == 0) {
+                next.clear();
+            }
+
+            List<List<String>> expected = listDiff(list, next);
+            AttributeMirror.Delta delta = mirror.apply(next);
+            assertEquals("updated at " + update, expected.get(0), describe(delta.updated));
+            assertEquals("created at " + update, expected.get(1), describe(delta.created));
+            assertEquals("deleted at " + update, expected.get(2), describe(delta.deleted));
+            if (delta.deleted.size() > 1) {
+                multipleDeletes++;
+            }
+            list = next;
+        }
+
+        assertTrue(multipleDeletes > 100);
+        assertTrue(duplicates > 100);
+        assertTrue(rewrittenAlike > 100);
+    }
+
+    @Test
+    public void sameValueTrustsTheTimestampOnlyForAMatchingHash() {
+        AttributeMirror.Entry entry = new AttributeMirror.Entry("k");
+        entry.set("AaAa", 5);
+
+        assertTrue(entry.sameValue("AaAa", 5));
+        assertTrue(entry.sameValue("AaAa", 6));
+        assertFalse(entry.sameValue("AaBB", 6));
+        assertFalse(entry.sameValue("AaAb", 5));
+
+        entry.set("AaAa", 0);
+        assertFalse("no timestamp, so the values are compared", entry.sameValue("BBBB", 0));
+    }
+
+    @Test
+    public void staleUpdateIsDropped() {
+        AttributeMirror mirror = new AttributeMirror(Collections.singletonList(attribute("k", "v1", 10)));
+
+        assertTrue(mirror.apply(Collections.singletonList(attribute("k", "v0", 5))).isEmpty());
+        assertTrue("the newer value is kept", mirror.apply(Collections.singletonList(attribute("k", "v1", 10))).isEmpty());
+
+        AttributeMirror.Delta delta = mirror.apply(Collections.singletonList(attribute("k", "v2", 11)));
+        assertEquals(Collections.singletonList("k=v2"), describe(delta.updated));
+    }
+
+    @Test
+    public void echoOfALocalPutIsNotReported() {
+        AttributeMirror mirror = new AttributeMirror(Collections.<RtmChannelAttribute>emptyList());
+
+        assertTrue(mirror.putLocal("k", "v"));
+        assertFalse(mirror.putLocal("k", "v"));
+        long now = System.currentTimeMillis();
+        assertTrue(mirror.apply(Collections.singletonList(attribute("k", "v", now))).isEmpty());
+        assertEquals(1, mirror.size());
+    }
+
+    @Test
+    public void listFromBeforeALocalPutDoesNotDeleteIt() {
+        List<RtmChannelAttribute> before = Collections.singletonList(attribute("a", "v", 100));
+        AttributeMirror mirror = new AttributeMirror(before);
+        mirror.putLocal("k", "v");
+
+        assertTrue(mirror.apply(before).isEmpty());
+        assertEquals("k", mirror.keyOf("k"));
+
+        long later = System.currentTimeMillis() + 1000;
+        AttributeMirror.Delta delta = mirror.apply(Collections.singletonList(attribute("a", "v", later)));
+        assertEquals(Collections.singletonList("k=v"), describe(delta.deleted));
+    }
+
+    @Test
+    public void listFromBeforeALocalRemoveDoesNotRestoreIt() {
+        List<RtmChannelAttribute> before = new ArrayList<>();
+        before.add(attribute("k", "v", 100));
+        before.add(attribute("a", "v", 100));
+        AttributeMirror mirror = new AttributeMirror(before);
+
+        assertTrue(mirror.removeLocal("k"));
+        assertFalse(mirror.removeLocal("k"));
+        assertTrue(mirror.apply(before).isEmpty());
+        assertEquals(1, mirror.size());
+
+        // the first list without the key confirms the removal
+        assertTrue(mirror.apply(Collections.singletonList(attribute("a", "v", 100))).isEmpty());
+        AttributeMirror.Delta delta = mirror.apply(before);
+        assertEquals(Collections.singletonList("k=v"), describe(delta.created));
+    }
+
+    @Test
+    public void localRemoveIsUndoneByANewerList() {
+        AttributeMirror mirror = new AttributeMirror(Collections.singletonList(attribute("k", "v", 100)));
+        mirror.removeLocal("k");
+
+        long later = System.currentTimeMillis() + 1000;
+        AttributeMirror.Delta delta = mirror.apply(Collections.singletonList(attribute("k", "w", later, "other")));
+        assertEquals(Collections.singletonList("k=w"), describe(delta.created));
+    }
+
+    @Test
+    public void localWriteHoldsForTheGracePeriod() {
+        long now = System.currentTimeMillis();
+        long localAt = now - AttributeMirror.ECHO_GRACE_MS + 1;
+
+        assertTrue(AttributeMirror.holds(localAt, localAt - 1, now));
+        assertFalse("a list as new as the write", AttributeMirror.holds(localAt, localAt, now));
+        assertFalse("the grace period is over", AttributeMirror.holds(localAt, localAt - 1, now + 1));
+    }
+
+    // the diff RtmSyncImpl ran over the previous and current list before the mirror
+    private static List<List<String>> listDiff(List<RtmChannelAttribute> cache, List<RtmChannelAttribute> list) {
+        List<String> onlyA = new ArrayList<>();
+        List<String> onlyB = new ArrayList<>();
+        List<String> both = new ArrayList<>();
+        Map<String, RtmChannelAttribute> temp = new HashMap<>();
+        for (RtmChannelAttribute item : cache) {
+            temp.put(item.getKey(), item);
+        }
+        for (RtmChannelAttribute b : list) {
+            if (temp.containsKey(b.getKey())) {
+                if (!b.getValue().equals(temp.get(b.getKey()).getValue())) {
+                    both.add(b.getKey() + "=" + b.getValue());
+                }
+                temp.remove(b.getKey());
+            } else {
+                onlyB.add(b.getKey() + "=" + b.getValue());
+            }
+        }
+        for (RtmChannelAttribute i : temp.values()) {
+            onlyA.add(i.getKey() + "=" + i.getValue());
+        }
+        List<List<String>> ret = new ArrayList<>();
+        ret.add(both);
+        ret.add(onlyB);
+        ret.add(onlyA);
+        return ret;
+    }
+
+    private static List<String> describe(List<AttributeMirror.Entry> entries) {
+        List<String> ret = new ArrayList<>();
+        for (AttributeMirror.Entry entry : entries) {
+            ret.add(entry.key + "=" + entry.value);
+        }
+        return ret;
+    }
+
+    private static String randomValue(Random random) {
+        if (random.nextBoolean()) {
+            return COLLIDING[random.nextInt(COLLIDING.length)];
+        }
+        return "{\"objectId\":\"o" + random.nextInt(KEYS) + "\",\"n\":" + random.nextInt(3) + "}";
+    }
+
+    static RtmChannelAttribute attribute(String key, String value, long ts) {
+        return attribute(key, value, ts, "user");
+    }
+
+    // the SDK sets the update time and user natively, there is no setter for them
+    static RtmChannelAttribute attribute(String key, String value, long ts, String userId) {
+        return new RtmChannelAttribute(key, value) {
+            @Override
+            public long getLastUpdateTs() {
+                return ts;
+            }
+
+            @Override
+            public String getLastUpdateUserId() {
+                return userId;
+            }
+        };
+    }
+}
@@ -0,0 +1,103 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.agora.syncmanager.rtm.SyncManagerException;
+
+/**
+ * Coalescing, failures and slot release of {@link CoalescingWriteQueue}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CoalescingWriteQueueTest {
+
+    private final List<String> written = new ArrayList<>();
+    private final List<CoalescingWriteQueue.Completion<String>> inFlight = new ArrayList<>();
+    private String throwOn;
+
+    private final CoalescingWriteQueue<String, String> queue = new CoalescingWriteQueue<>((key, value, completion) -> {
+        written.add(key + "=" + value);
+        if (value.equals(throwOn)) {
+            throw new IllegalStateException("socket gone");
+        }
+        inFlight.add(completion);
+    });
+
+    @Test
+    public void latestValueWinsWhileAWriteIsInFlight() {
+        List<String> first = new ArrayList<>();
+        List<String> later = new ArrayList<>();
+        queue.submit("k", "1", outcome(first));
+        queue.submit("k", "2", outcome(later));
+        queue.submit("k", "3", outcome(later));
+        queue.submit("other", "x", outcome(new ArrayList<String>()));
+        assertEquals(Arrays.asList("k=1", "other=x"), written);
+
+        inFlight.get(0).onSuccess("1");
+        assertEquals(Collections.singletonList("1"), first);
+        assertEquals(Arrays.asList("k=1", "other=x", "k=3"), written);
+
+        inFlight.get(2).onSuccess("3");
+        assertEquals(Arrays.asList("3", "3"), later);
+        assertEquals(1, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void failureReachesEveryCoalescedCaller() {
+        List<String> outcomes = new ArrayList<>();
+        queue.submit("k", "1", outcome(outcomes));
+        queue.submit("k", "2", outcome(outcomes));
+        queue.submit("k", "3", outcome(outcomes));
+
+        inFlight.get(0).onFailure(new SyncManagerException(1, "refused"));
+        inFlight.get(1).onFailure(new SyncManagerException(1, "refused"));
+
+        assertEquals(Arrays.asList("failed", "failed", "failed"), outcomes);
+        queue.submit("k", "4", outcome(outcomes));
+        assertEquals("k=4", written.get(written.size() - 1));
+    }
+
+    @Test
+    public void throwingWriterFailsItsCallersAndFreesTheSlot() {
+        List<String> outcomes = new ArrayList<>();
+        throwOn = "1";
+        queue.submit("k", "1", outcome(outcomes));
+        assertEquals(Collections.singletonList("failed"), outcomes);
+
+        // nothing is left in flight, so the next write goes straight out
+        queue.submit("k", "2", outcome(outcomes));
+        assertEquals(Arrays.asList("k=1", "k=2"), written);
+
+        // a queued value whose write throws fails and frees the slot as well
+        throwOn = "3";
+        queue.submit("k", "3", outcome(outcomes));
+        inFlight.get(0).onSuccess("2");
+        // the next write goes out before the callers of the acked one are told
+        assertEquals(Arrays.asList("failed", "failed", "2"), outcomes);
+        queue.submit("k", "4", outcome(outcomes));
+        assertEquals(Arrays.asList("k=1", "k=2", "k=3", "k=4"), written);
+        assertEquals(2, inFlight.size());
+    }
+
+    private static CoalescingWriteQueue.Completion<String> outcome(List<String> outcomes) {
+        return new CoalescingWriteQueue.Completion<String>() {
+            @Override
+            public void onSuccess(String result) {
+                outcomes.add(result);
+            }
+
+            @Override
+            public void onFailure(SyncManagerException exception) {
+                outcomes.add("failed");
+            }
+        };
+    }
+}
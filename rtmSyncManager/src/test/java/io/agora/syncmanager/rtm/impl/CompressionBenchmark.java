@@ -0,0 +1,322 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.TextFrame;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.agora.syncmanager.rtm.Benchmarks;
+
+/**
+ * Bytes on the wire and CPU per message of permessage-deflate, against
+ * {@link RethinkStandInServer} behind a byte counting TCP relay.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CompressionBenchmark {
+
+    private static final String CHANNEL = "sceneIdmember";
+    private static final int MEMBERS = 100;
+    private static final int QUERIES = 20;
+    private static final int EVENTS = 200;
+    private static final int ROUNDS = 5000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Gson gson = new Gson();
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        Collections.reverse(resources);
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    public void queriesAndEventsOnTheWire() throws Exception {
+        Benchmarks.assumeEnabled();
+        long[] plain = runSession(null);
+        long[] perMessage = runSession(new DeflateExtension(DeflateExtension.DEFAULT_THRESHOLD, -1, false));
+        long[] takeover = runSession(new DeflateExtension(DeflateExtension.DEFAULT_THRESHOLD, -1, true));
+        long[] takeoverAll = runSession(new DeflateExtension(0, -1, true));
+
+        assertTrue(perMessage[0] < plain[0]);
+        assertTrue(takeoverAll[1] < plain[1]);
+
+        System.out.printf("%d queries of %d members, then %d subscription events, bytes received%n", QUERIES, MEMBERS, EVENTS);
+        print("off", plain, plain);
+        print("no context takeover", perMessage, plain);
+        print("context takeover", takeover, plain);
+        print("context takeover, threshold 0", takeoverAll, plain);
+    }
+
+    @Test
+    public void cpuPerMessage() {
+        Benchmarks.assumeEnabled();
+        String[] replies = {queryReply()};
+        String[] events = new String[MEMBERS];
+        for (int i = 0; i < MEMBERS; i++) {
+            events[i] = event(i);
+        }
+        System.out.printf("deflate + inflate per message, %d rounds%n", ROUNDS);
+        for (boolean contextTakeover : new boolean[]{false, true}) {
+            long[] big = measure(replies, contextTakeover);
+            long[] small = measure(events, contextTakeover);
+            System.out.printf("  context takeover %-5s query reply %d -> %d bytes, %d ns/msg; event %d -> %d bytes, %d ns/msg%n",
+                    contextTakeover, replies[0].length(), big[0], big[1], events[0].length(), small[0], small[1]);
+        }
+    }
+
+    /**
+     * @return bytes the client received for the queries and for the events
+     */
+    private long[] runSession(DeflateExtension deflate) throws Exception {
+        List<Draft> drafts = Collections.<Draft>singletonList(
+                deflate == null ? new Draft_6455() : new Draft_6455(deflate.copyInstance()));
+        RethinkStandInServer server = new RethinkStandInServer(new InetSocketAddress("127.0.0.1", freePort()), 16, drafts);
+        server.start();
+        resources.add(() -> server.stop(1000));
+        for (int i = 0; i < MEMBERS; i++) {
+            server.put(CHANNEL, "member" + i, gson.toJson(member(i)));
+        }
+        CountingRelay relay = new CountingRelay(server.getAddress().getPort());
+        resources.add(relay);
+
+        RethinkSyncClient client = new RethinkSyncClient();
+        resources.add(client::release);
+        client.setSocketUrl("ws://127.0.0.1:" + relay.getPort());
+        client.setHeartbeat(0, TimeUnit.MILLISECONDS, 1);
+        if (deflate == null) {
+            client.setCompression(false, 0, 0, false);
+        } else {
+            client.setCompression(true, deflate.getThreshold(), -1, !deflate.isServerNoContextTakeover());
+        }
+        CountDownLatch connected = new CountDownLatch(1);
+        client.init("appId", "channel", ret -> connected.countDown());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        long start = relay.received.get();
+        for (int i = 0; i < QUERIES; i++) {
+            CountDownLatch done = new CountDownLatch(1);
+            client.query(CHANNEL, ret -> {
+                assertEquals(MEMBERS, ret.size());
+                done.countDown();
+            }, null);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+        long queries = relay.received.get() - start;
+
+        CountDownLatch allEvents = new CountDownLatch(EVENTS);
+        client.subscribe(CHANNEL, null, ret -> allEvents.countDown(), null, null, this);
+        while (server.subscriberCount(CHANNEL) == 0) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        start = relay.received.get();
+        for (int i = 0; i < EVENTS; i++) {
+            server.put(CHANNEL, "member" + (i % MEMBERS), gson.toJson(member(i)));
+        }
+        assertTrue(allEvents.await(5, TimeUnit.SECONDS));
+        return new long[]{queries, relay.received.get() - start};
+    }
+
+    private void print(String label, long[] bytes, long[] plain) {
+        System.out.printf("  %-30s %7d B/query (%5.1f%%), %5d B/event (%5.1f%%)%n", label,
+                bytes[0] / QUERIES, 100.0 * bytes[0] / plain[0], bytes[1] / EVENTS, 100.0 * bytes[1] / plain[1]);
+    }
+
+    /**
+     * @return average compressed size, and CPU ns to compress and decompress one message
+     */
+    private long[] measure(String[] messages, boolean contextTakeover) {
+        DeflateExtension sender = new DeflateExtension(0, -1, contextTakeover);
+        DeflateExtension receiver = new DeflateExtension(0, -1, contextTakeover);
+        byte[][] payloads = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            payloads[i] = messages[i].getBytes(UTF_8);
+        }
+        for (int i = 0; i < ROUNDS / 5; i++) {
+            roundTrip(sender, receiver, payloads[i % payloads.length]);
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long size = 0;
+        long cpu = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            size += roundTrip(sender, receiver, payloads[i % payloads.length]);
+        }
+        cpu = threads.getCurrentThreadCpuTime() - cpu;
+        return new long[]{size / ROUNDS, cpu / ROUNDS};
+    }
+
+    private static long roundTrip(DeflateExtension sender, DeflateExtension receiver, byte[] payload) {
+        TextFrame frame = new TextFrame();
+        frame.setPayload(ByteBuffer.wrap(payload));
+        frame.setFin(true);
+        sender.encodeFrame(frame);
+        // as read off the wire: the encoder leaves a trimmed view of a larger array
+        ByteBuffer compressed = frame.getPayloadData();
+        byte[] wire = new byte[compressed.remaining()];
+        compressed.get(wire);
+        TextFrame received = new TextFrame();
+        received.setPayload(ByteBuffer.wrap(wire));
+        received.setRSV1(frame.isRSV1());
+        received.setFin(true);
+        try {
+            receiver.decodeFrame(received);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        assertEquals(payload.length, received.getPayloadData().remaining());
+        return wire.length;
+    }
+
+    private String queryReply() {
+        Map<String, String> props = new LinkedHashMap<>();
+        for (int i = 0; i < MEMBERS; i++) {
+            props.put("member" + i, gson.toJson(member(i)));
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("props", props);
+        Map<String, Object> reply = new LinkedHashMap<>();
+        reply.put("action", "query");
+        reply.put("requestId", "0123456789abcdef0123456789ab");
+        reply.put("channelName", CHANNEL);
+        reply.put("code", 0);
+        reply.put("msg", "");
+        reply.put("data", data);
+        return gson.toJson(reply);
+    }
+
+    private String event(int i) {
+        Map<String, String> update = new LinkedHashMap<>();
+        update.put("member" + i, gson.toJson(member(i)));
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("action", "send");
+        data.put("props", new LinkedHashMap<>());
+        data.put("propsUpdate", gson.toJson(update));
+        data.put("seq", 1000 + i);
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("channelName", CHANNEL);
+        event.put("code", 0);
+        event.put("msg", "");
+        event.put("data", data);
+        return gson.toJson(event);
+    }
+
+    private static Map<String, Object> member(int i) {
+        Map<String, Object> member = new LinkedHashMap<>();
+        member.put("userId", String.valueOf(100000 + i));
+        member.put("userName", "User-" + i);
+        member.put("avatar", "https://download.agora.io/demo/release/app_avatar_" + (i % 14) + ".png");
+        member.put("role", i == 0 ? "owner" : "audience");
+        member.put("isMuted", i % 3 == 0);
+        member.put("seatIndex", i % 8);
+        return member;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Relays TCP connections to a local port and counts the bytes flowing back to the client.
+     */
+    private static class CountingRelay implements AutoCloseable {
+
+        final AtomicLong received = new AtomicLong();
+
+        private final ServerSocket serverSocket;
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+        CountingRelay(int targetPort) throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket client = serverSocket.accept();
+                        Socket target = new Socket("127.0.0.1", targetPort);
+                        client.setTcpNoDelay(true);
+                        target.setTcpNoDelay(true);
+                        sockets.add(client);
+                        sockets.add(target);
+                        pump(client, target, null);
+                        pump(target, client, received);
+                    }
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }, "relay-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private static void pump(Socket from, Socket to, AtomicLong counter) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[16 * 1024];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                        if (counter != null) {
+                            counter.addAndGet(read);
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // either side went away
+                }
+                try {
+                    to.close();
+                } catch (IOException ignored) {
+                }
+            }, "relay-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
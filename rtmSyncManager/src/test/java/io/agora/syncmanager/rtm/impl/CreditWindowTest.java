@@ -0,0 +1,111 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit accounting and writability of {@link CreditWindow}.
+ */
+public class CreditWindowTest {
+
+    private final List<Boolean> changes = Collections.synchronizedList(new ArrayList<Boolean>());
+
+    @Test
+    public void rejectCountsRefusedWrites() throws InterruptedException {
+        CreditWindow window = newWindow(2, 1000, RethinkSyncClient.FlowControl.REJECT, 0);
+        assertTrue(window.acquire(10));
+        assertTrue(window.acquire(10));
+
+        assertFalse(window.acquire(10));
+        assertFalse(window.acquire(10));
+        assertEquals(2, window.getRejectedCount());
+        assertEquals(2, window.getRequests());
+        assertEquals(20, window.getBytes());
+    }
+
+    @Test
+    public void writeLargerThanTheWindowGoesOnAnEmptyOne() throws InterruptedException {
+        CreditWindow window = newWindow(10, 100, RethinkSyncClient.FlowControl.REJECT, 0);
+
+        assertTrue(window.acquire(500));
+        assertFalse(window.isWritable());
+        assertFalse(window.acquire(1));
+    }
+
+    @Test
+    public void blockGivesUpAfterTheTimeout() throws InterruptedException {
+        CreditWindow window = newWindow(1, 1000, RethinkSyncClient.FlowControl.BLOCK, 100);
+        assertTrue(window.acquire(10));
+
+        long start = System.nanoTime();
+        assertFalse(window.acquire(10));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, window.getRejectedCount());
+    }
+
+    @Test
+    public void blockResumesWhenCreditComesBack() throws InterruptedException {
+        CreditWindow window = newWindow(1, 1000, RethinkSyncClient.FlowControl.BLOCK, 5000);
+        assertTrue(window.acquire(10));
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            window.release(10);
+        });
+        releaser.start();
+
+        assertTrue(window.acquire(20));
+        releaser.join();
+        assertEquals(0, window.getRejectedCount());
+        assertEquals(20, window.getBytes());
+    }
+
+    @Test
+    public void writableAgainAtHalfTheRequestLimit() throws InterruptedException {
+        CreditWindow window = newWindow(4, 1000, RethinkSyncClient.FlowControl.SIGNAL, 0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(window.acquire(1));
+        }
+        assertEquals(Collections.singletonList(false), changes);
+
+        // a write accepted earlier still goes on a full window
+        window.force(1);
+        window.release(1);
+        window.release(1);
+        assertFalse(window.isWritable());
+        window.release(1);
+        assertTrue(window.isWritable());
+        assertEquals(Arrays.asList(false, true), changes);
+
+        window.release(1);
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void writableAgainAtHalfTheByteLimit() throws InterruptedException {
+        CreditWindow window = newWindow(100, 100, RethinkSyncClient.FlowControl.SIGNAL, 0);
+        assertTrue(window.acquire(60));
+        assertTrue(window.acquire(40));
+        assertFalse(window.isWritable());
+
+        window.release(40);
+        assertFalse("60 bytes are still in flight", window.isWritable());
+        window.release(60);
+        assertEquals(Arrays.asList(false, true), changes);
+    }
+
+    private CreditWindow newWindow(int maxRequests, long maxBytes, RethinkSyncClient.FlowControl policy, long blockTimeoutMs) {
+        return new CreditWindow(maxRequests, maxBytes, policy, blockTimeoutMs, TimeUnit.MILLISECONDS, changes::add);
+    }
+}
@@ -0,0 +1,191 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.agora.syncmanager.rtm.Benchmarks;
+
+/**
+ * Event fan-out of {@link RethinkStandInServer} to thousands of subscribers of one channel.
+ *
+ * Subscribers are bare sockets speaking the subscribe frame, plus one {@link RethinkSyncClient}
+ * to check the events reach a real client too.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FanOutBenchmark {
+
+    private static final String CHANNEL = "sceneIdmember";
+    private static final int SUBSCRIBERS = 2000;
+    private static final int EVENTS = 100;
+    private static final long EVENT_INTERVAL_MS = 10;
+
+    private final Gson gson = new Gson();
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        Collections.reverse(resources);
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    public void eventsToThousandsOfSubscribers() throws Exception {
+        Benchmarks.assumeEnabled();
+        RethinkStandInServer server = new RethinkStandInServer(new InetSocketAddress("127.0.0.1", freePort()), 16);
+        server.setMaxPendingConnections(SUBSCRIBERS);
+        server.start();
+        resources.add(() -> server.stop(1000));
+        URI uri = new URI("ws://127.0.0.1:" + server.getAddress().getPort());
+
+        long[] publishedAt = new long[EVENTS + 1];
+        long[] latencies = new long[SUBSCRIBERS * EVENTS];
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch allReceived = new CountDownLatch(SUBSCRIBERS * EVENTS);
+
+        long start = System.nanoTime();
+        CountDownLatch opened = new CountDownLatch(SUBSCRIBERS);
+        List<Subscriber> subscribers = new ArrayList<>(SUBSCRIBERS);
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            Subscriber subscriber = new Subscriber(uri, opened, message -> {
+                long now = System.nanoTime();
+                int seq = seqOf(message);
+                if (seq > 0) {
+                    latencies[received.getAndIncrement()] = now - publishedAt[seq];
+                    allReceived.countDown();
+                }
+            });
+            subscribers.add(subscriber);
+            resources.add(subscriber::close);
+            subscriber.connect();
+        }
+        assertTrue(opened.await(60, TimeUnit.SECONDS));
+        for (Subscriber subscriber : subscribers) {
+            subscriber.send("{\"action\":\"subscribe\",\"requestId\":\"" + subscriber.hashCode()
+                    + "\",\"channelName\":\"" + CHANNEL + "\"}");
+        }
+
+        RethinkSyncClient client = new RethinkSyncClient();
+        resources.add(client::release);
+        client.setSocketUrl(uri.toString());
+        client.setHeartbeat(0, TimeUnit.MILLISECONDS, 1);
+        CountDownLatch connected = new CountDownLatch(1);
+        client.init("appId", "channel", ret -> connected.countDown());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        CountDownLatch clientEvents = new CountDownLatch(EVENTS);
+        client.subscribe(CHANNEL, null, ret -> clientEvents.countDown(), null, null, this);
+
+        while (server.subscriberCount(CHANNEL) < SUBSCRIBERS + 1) {
+            Thread.sleep(10);
+        }
+        long setupMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int seq = 1; seq <= EVENTS; seq++) {
+            publishedAt[seq] = System.nanoTime();
+            server.put(CHANNEL, "member" + (seq % 50), gson.toJson(member(seq)));
+            Thread.sleep(EVENT_INTERVAL_MS);
+        }
+        assertTrue(allReceived.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        assertTrue(clientEvents.await(5, TimeUnit.SECONDS));
+        assertEquals((long) (SUBSCRIBERS + 1) * EVENTS, server.getEventsDelivered());
+
+        Arrays.sort(latencies);
+        System.out.printf("%d events to %d subscribers, one every %d ms, subscribers ready in %d ms%n",
+                EVENTS, SUBSCRIBERS, EVENT_INTERVAL_MS, setupMs);
+        System.out.printf("  %.0f deliveries/s, latency p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                latencies.length * 1e9 / elapsed, millis(latencies[latencies.length / 2]),
+                millis(latencies[latencies.length * 99 / 100]), millis(latencies[latencies.length - 1]));
+    }
+
+    // the stand-in numbers events 1, 2, ... per channel
+    private static int seqOf(String message) {
+        int at = message.indexOf("\"seq\":");
+        if (at < 0) {
+            return -1;
+        }
+        int end = at + 6;
+        while (end < message.length() && Character.isDigit(message.charAt(end))) {
+            end++;
+        }
+        return Integer.parseInt(message.substring(at + 6, end));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static Map<String, Object> member(int i) {
+        Map<String, Object> member = new LinkedHashMap<>();
+        member.put("userId", String.valueOf(100000 + i));
+        member.put("userName", "User-" + i);
+        member.put("isMuted", i % 3 == 0);
+        return member;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private interface MessageHandler {
+        void onMessage(String message);
+    }
+
+    private static class Subscriber extends WebSocketClient {
+
+        private final CountDownLatch opened;
+        private final MessageHandler handler;
+
+        Subscriber(URI uri, CountDownLatch opened, MessageHandler handler) {
+            super(uri);
+            this.opened = opened;
+            this.handler = handler;
+            setConnectionLostTimeout(0);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            opened.countDown();
+        }
+
+        @Override
+        public void onMessage(String message) {
+            handler.onMessage(message);
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+}
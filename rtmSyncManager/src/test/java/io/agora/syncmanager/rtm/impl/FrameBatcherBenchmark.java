@@ -0,0 +1,117 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.syncmanager.rtm.Benchmarks;
+
+/**
+ * Frames and bytes for a burst of 50 members joining a room, with and without batching.
+ */
+public class FrameBatcherBenchmark {
+
+    private static final String APP_ID = "aab8b8f5a8cd4469a63042fcfafe7063";
+    private static final int MEMBERS = 50;
+    private static final int ROUNDS = 500;
+
+    private final Gson gson = new Gson();
+    private final MessageEncoder encoder = new MessageEncoder(gson);
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("bench", 20, TimeUnit.MILLISECONDS, 512);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void burstGoesOutAsOneFrame() {
+        long[] plain = runBurst(1);
+        long[] batched = runBurst(MEMBERS);
+
+        assertEquals(MEMBERS, plain[0]);
+        assertEquals(1, batched[0]);
+        assertTrue(batched[1] < plain[1]);
+    }
+
+    @Test
+    public void memberJoinBurst() {
+        Benchmarks.assumeEnabled();
+        long[] plain = runBurst(1);
+        long[] batched = runBurst(MEMBERS);
+
+        long plainNanos = timeBursts(1);
+        long batchedNanos = timeBursts(MEMBERS);
+        System.out.printf("member join burst of %d ops%n", MEMBERS);
+        System.out.printf("  unbatched: %d frames, %d bytes, %.0f frames/s, %.0f ops/s%n",
+                plain[0], plain[1], perSecond(plain[0] * ROUNDS, plainNanos), perSecond((long) MEMBERS * ROUNDS, plainNanos));
+        System.out.printf("  batched:   %d frames, %d bytes, %.0f frames/s, %.0f ops/s%n",
+                batched[0], batched[1], perSecond(batched[0] * ROUNDS, batchedNanos), perSecond((long) MEMBERS * ROUNDS, batchedNanos));
+        System.out.printf("  bytes saved: %d (%.1f%%)%n",
+                plain[1] - batched[1], 100.0 * (plain[1] - batched[1]) / plain[1]);
+    }
+
+    private long timeBursts(int maxOps) {
+        for (int i = 0; i < ROUNDS / 10; i++) {
+            runBurst(maxOps);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            runBurst(maxOps);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return frames sent and bytes sent for one burst
+     */
+    private long[] runBurst(int maxOps) {
+        long[] stats = new long[2];
+        FrameBatcher.Sink sink = (frame, requestIds) -> {
+            stats[0]++;
+            stats[1] += frame.length();
+        };
+        if (maxOps <= 1) {
+            for (int i = 0; i < MEMBERS; i++) {
+                sink.send(encoder.encode(APP_ID, memberOp(i)), null);
+            }
+            return stats;
+        }
+        FrameBatcher batcher = new FrameBatcher(encoder, timer, sink, maxOps, 0, 1, TimeUnit.SECONDS);
+        for (int i = 0; i < MEMBERS; i++) {
+            batcher.offer(APP_ID, memberOp(i));
+        }
+        batcher.flush(APP_ID);
+        return stats;
+    }
+
+    private MessageEncoder.Op memberOp(int index) {
+        String objectId = String.format("%032X", index);
+        Map<String, Object> member = new HashMap<>();
+        member.put("id", "user" + index);
+        member.put("name", "Member " + index);
+        member.put("imgId", index % 14);
+        member.put("objectId", objectId);
+
+        return new MessageEncoder.Op(String.format("%032X", index + 1000), RethinkSyncClient.SocketType.send.name(),
+                "sceneIdmember", objectId, gson.toJson(member));
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return count * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,123 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deadlines and cancellation of {@link HashedWheelTimer}.
+ */
+public class HashedWheelTimerTest {
+
+    private static final long TICK_MS = 10;
+    // 4 ticks, so a round of the wheel is 40 ms
+    private static final int TICKS_PER_WHEEL = 4;
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("TestTimer", TICK_MS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void firesAfterSeveralRounds() throws Exception {
+        long[] delays = {5, 45, 130, 170, 250};
+        List<AtomicLong> firedAt = new ArrayList<>();
+        long start = System.nanoTime();
+        for (long delay : delays) {
+            AtomicLong at = new AtomicLong();
+            firedAt.add(at);
+            timer.newTimeout(() -> at.set(System.nanoTime()), delay, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(delays.length, timer.pendingTimeouts());
+
+        await(() -> timer.pendingTimeouts() == 0);
+        for (int i = 0; i < delays.length; i++) {
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(firedAt.get(i).get() - start);
+            assertTrue("fired early at " + elapsedMs + " ms", elapsedMs >= delays[i]);
+            assertTrue("fired late at " + elapsedMs + " ms", elapsedMs < delays[i] + 500);
+        }
+    }
+
+    @Test
+    public void firesOnTimeAfterIdling() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        timer.newTimeout(fired::incrementAndGet, 0, TimeUnit.MILLISECONDS);
+        await(() -> fired.get() == 1);
+        // the worker parks, and skips the ticks that pass meanwhile when woken
+        Thread.sleep(200);
+
+        AtomicLong firedAt = new AtomicLong();
+        long start = System.nanoTime();
+        timer.newTimeout(() -> firedAt.set(System.nanoTime()), 100, TimeUnit.MILLISECONDS);
+        await(() -> firedAt.get() != 0);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(firedAt.get() - start) >= 100);
+    }
+
+    @Test
+    public void cancelRacingExpireRunsOrCancelsEachTaskOnce() throws Exception {
+        int count = 5000;
+        AtomicIntegerArray runs = new AtomicIntegerArray(count);
+        List<HashedWheelTimer.Timeout> timeouts = new ArrayList<>(count);
+        Random random = new Random(2);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            timeouts.add(timer.newTimeout(() -> runs.incrementAndGet(index), random.nextInt(30), TimeUnit.MILLISECONDS));
+        }
+        List<Integer> order = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+
+        boolean[] cancelled = new boolean[count];
+        for (int index : order) {
+            cancelled[index] = timeouts.get(index).cancel();
+            if (index % 64 == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        await(() -> timer.pendingTimeouts() == 0);
+        Thread.sleep(3 * TICK_MS);
+        int ran = 0;
+        for (int i = 0; i < count; i++) {
+            assertEquals("task " + i, 1, runs.get(i) + (cancelled[i] ? 1 : 0));
+            ran += runs.get(i);
+        }
+        assertTrue("nothing raced", ran > 0 && ran < count);
+    }
+
+    @Test
+    public void stoppedTimerTakesNoMoreTasks() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        timer.newTimeout(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+        timer.stop();
+
+        HashedWheelTimer.Timeout late = timer.newTimeout(fired::incrementAndGet, 0, TimeUnit.MILLISECONDS);
+        assertTrue("already cancelled", late.cancel());
+        Thread.sleep(100);
+        assertEquals(0, fired.get());
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonParseException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Header and lazy {@code data} decoding of {@link InboundFrame}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InboundFrameTest {
+
+    @Test
+    public void headerIsReadWhereverItIs() {
+        InboundFrame frame = InboundFrame.parse("{\"data\":{\"props\":{\"a\":\"1\"},\"action\":\"send\"},"
+                + "\"code\":\"7\",\"channelName\":\"sceneIdmember\",\"extra\":[1,{\"x\":null}],"
+                + "\"requestId\":\"r1\",\"action\":\"send\",\"msg\":\"ok\"}");
+
+        assertEquals("send", frame.action);
+        assertEquals("r1", frame.requestId);
+        assertEquals("sceneIdmember", frame.channelName);
+        assertEquals(7, frame.code);
+        assertEquals("ok", frame.msg);
+        assertEquals("send", frame.dataAction());
+        assertEquals(Collections.singletonList("a=1"), describe(frame.attributes()));
+    }
+
+    @Test
+    public void nestedValuesReadAsTheirJsonText() {
+        InboundFrame frame = InboundFrame.parse("{\"action\":\"query\",\"data\":{"
+                + "\"props\":{\"a\":{\"name\":\"n\",\"tags\":[1,2]},\"b\":12,\"c\":true,\"d\":\"\",\"e\":\"v\"},"
+                + "\"seq\":41,\"headSeq\":\"42\",\"snapshot\":true,\"propsDel\":[\"x\",3],"
+                + "\"propsUpdate\":\"{\\\"f\\\":\\\"w\\\"}\"}}");
+
+        assertTrue(frame.hasData());
+        assertTrue(frame.hasProps());
+        // empty values are left out, as they always were
+        assertEquals(Arrays.asList("a={\"name\":\"n\",\"tags\":[1,2]}", "b=12", "c=true", "e=v"),
+                describe(frame.attributes()));
+        assertEquals(41, frame.seq());
+        assertEquals(42, frame.headSeq());
+        assertTrue(frame.isSnapshot());
+        assertEquals(Arrays.asList("x", "3"), frame.propsDel());
+        assertEquals(Collections.singletonList("f=w"), describe(InboundFrame.decodeObject(frame.propsUpdate())));
+    }
+
+    @Test
+    public void nullReadsAsItDidWithOptString() {
+        InboundFrame frame = InboundFrame.parse("{\"action\":\"send\",\"requestId\":null,\"msg\":null,"
+                + "\"code\":null,\"data\":{\"action\":null,\"props\":{\"a\":null,\"b\":\"1\"},\"seq\":null,"
+                + "\"propsDel\":[null]}}");
+
+        assertEquals("null", frame.requestId);
+        assertEquals("null", frame.msg);
+        assertEquals(0, frame.code);
+        assertEquals("null", frame.dataAction());
+        assertEquals(Arrays.asList("a=null", "b=1"), describe(frame.attributes()));
+        assertEquals(0, frame.seq());
+        assertEquals(Collections.singletonList("null"), frame.propsDel());
+    }
+
+    @Test
+    public void missingDataReadsAsEmpty() {
+        InboundFrame frame = InboundFrame.parse("{\"action\":\"ping\",\"data\":null}");
+
+        assertEquals("", frame.requestId);
+        assertFalse(frame.hasData());
+        assertFalse(frame.hasProps());
+        assertEquals("", frame.dataAction());
+        assertNull(frame.propsDel());
+        assertTrue(frame.attributes().isEmpty());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void notAnObjectIsRejected() {
+        InboundFrame.parse("[\"action\"]");
+    }
+
+    private static List<String> describe(List<RethinkSyncClient.Attribute> attributes) {
+        List<String> ret = new ArrayList<>();
+        for (RethinkSyncClient.Attribute attribute : attributes) {
+            ret.add(attribute.getId() + "=" + attribute.toString());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,135 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.agora.syncmanager.rtm.Benchmarks;
+import io.agora.syncmanager.rtm.CollectionReference;
+import io.agora.syncmanager.rtm.IObject;
+import io.agora.syncmanager.rtm.SceneReference;
+import io.agora.syncmanager.rtm.Sync;
+import io.agora.syncmanager.rtm.SyncManagerException;
+
+/**
+ * The library's own cost per write and per delivered event, with simulated clients on a
+ * {@link LoopbackTransport.Hub} instead of a server and network.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LoopbackBenchmark {
+
+    private static final int CLIENTS = 50;
+    private static final int WRITES_PER_CLIENT = 200;
+    private static final String SCENE = "scene";
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        Collections.reverse(resources);
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    public void writesFannedOutToEveryClient() {
+        Benchmarks.assumeEnabled();
+        LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong acknowledged = new AtomicLong();
+        List<CollectionReference> members = new ArrayList<>(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            RethinkSyncImpl client = newClient(hub);
+            CollectionReference collection = new SceneReference(client, SCENE, SCENE).collection("member");
+            collection.subscribe(new CountingListener(delivered));
+            members.add(collection);
+        }
+
+        Sync.DataItemCallback ack = new Sync.DataItemCallback() {
+            @Override
+            public void onSuccess(IObject result) {
+                acknowledged.incrementAndGet();
+            }
+
+            @Override
+            public void onFail(SyncManagerException exception) {
+            }
+        };
+        long start = System.nanoTime();
+        for (int round = 0; round < WRITES_PER_CLIENT; round++) {
+            for (int i = 0; i < CLIENTS; i++) {
+                HashMap<String, Object> data = new HashMap<>();
+                data.put("userId", "user" + i);
+                data.put("round", round);
+                members.get(i).add(data, ack);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long writes = (long) CLIENTS * WRITES_PER_CLIENT;
+        assertEquals(writes, acknowledged.get());
+        assertEquals(writes * CLIENTS, delivered.get());
+        assertEquals(writes, hub.getWriteCount());
+        System.out.printf("loopback: %d clients, %d writes, %d events in %d ms%n",
+                CLIENTS, writes, delivered.get(), elapsed / 1000000);
+        System.out.printf("  %.0f writes/s, %.0f events/s, %.1f us per write%n",
+                writes * 1e9 / elapsed, delivered.get() * 1e9 / elapsed, elapsed / 1000.0 / writes);
+    }
+
+    private RethinkSyncImpl newClient(LoopbackTransport.Hub hub) {
+        Map<String, String> params = new HashMap<>();
+        params.put("appid", "benchmark");
+        params.put("defaultChannel", "default");
+        LoopbackTransport transport = new LoopbackTransport(hub,
+                new StripedExecutor("LoopbackDispatch", 0, 1));
+        RethinkSyncImpl client = new RethinkSyncImpl(transport, params, new Sync.Callback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFail(SyncManagerException exception) {
+            }
+        });
+        resources.add(client::destroy);
+        return client;
+    }
+
+    private static class CountingListener implements Sync.EventListener {
+        private final AtomicLong counter;
+
+        CountingListener(AtomicLong counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public void onCreated(IObject item) {
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void onUpdated(IObject item) {
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void onDeleted(IObject item) {
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void onSubscribeError(SyncManagerException ex) {
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.agora.syncmanager.rtm.CollectionReference;
+import io.agora.syncmanager.rtm.IObject;
+import io.agora.syncmanager.rtm.Scene;
+import io.agora.syncmanager.rtm.SceneReference;
+import io.agora.syncmanager.rtm.Sync;
+import io.agora.syncmanager.rtm.SyncManagerException;
+
+/**
+ * Two {@link RethinkSyncImpl} clients sharing a {@link LoopbackTransport.Hub}. Callbacks run on
+ * the calling thread, so every event has arrived by the time the call that caused it returns.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LoopbackTransportTest {
+
+    private static final String SCENE = "room";
+    private static final String COLLECTION = "member";
+
+    private final LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    private RethinkSyncImpl alice;
+    private RethinkSyncImpl bob;
+
+    @Before
+    public void setUp() {
+        alice = newClient();
+        bob = newClient();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Collections.reverse(resources);
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    public void writesReachTheOtherClient() {
+        Recorder events = new Recorder();
+        collection(bob).subscribe(events);
+
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("name", "alice");
+        IObject added = add(collection(alice), data);
+        String id = added.getId();
+        assertEquals(Collections.singletonList("updated " + id + " alice"), events.drain());
+
+        collection(alice).update(id, Collections.singletonMap("name", "alice2"), new FailOnError());
+        assertEquals(Collections.singletonList("updated " + id + " alice2"), events.drain());
+
+        List<IObject> members = list(collection(bob));
+        assertEquals(1, members.size());
+        assertEquals("alice2", members.get(0).toObject(Member.class).name);
+
+        collection(alice).delete(id, new FailOnError());
+        assertEquals(Collections.singletonList("deleted " + id), events.drain());
+        assertEquals(0, list(collection(bob)).size());
+        assertEquals(0, hub.getObjectCount(SCENE + COLLECTION));
+    }
+
+    @Test
+    public void writerSeesItsOwnWrites() {
+        Recorder events = new Recorder();
+        collection(alice).subscribe(events);
+
+        String id = add(collection(alice), Collections.singletonMap("name", "alice")).getId();
+
+        assertEquals(Collections.singletonList("updated " + id + " alice"), events.drain());
+    }
+
+    @Test
+    public void scenesAreListedAndRemoved() {
+        Scene scene = new Scene();
+        scene.setId(SCENE);
+        scene.setUserId("alice");
+        alice.createScene(scene, new FailOnError());
+
+        List<IObject> scenes = new ArrayList<>();
+        bob.getScenes(new Sync.DataListCallback() {
+            @Override
+            public void onSuccess(List<IObject> result) {
+                scenes.addAll(result);
+            }
+
+            @Override
+            public void onFail(SyncManagerException exception) {
+                throw new AssertionError(exception);
+            }
+        });
+        assertEquals(1, scenes.size());
+        assertEquals(SCENE, scenes.get(0).getId());
+
+        new SceneReference(alice, SCENE, SCENE).delete(new FailOnError());
+        assertEquals(0, hub.getObjectCount("default"));
+    }
+
+    @Test
+    public void unsubscribedClientHearsNothing() {
+        Recorder events = new Recorder();
+        SceneReference scene = new SceneReference(bob, SCENE, SCENE);
+        scene.collection(COLLECTION).subscribe(events);
+        add(collection(alice), Collections.singletonMap("name", "first"));
+        assertEquals(1, events.drain().size());
+
+        scene.unsubscribe(events);
+        add(collection(alice), Collections.singletonMap("name", "second"));
+
+        assertTrue(events.drain().isEmpty());
+        assertEquals(2, list(collection(bob)).size());
+    }
+
+    @Test
+    public void otherListenerKeepsHearing() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        SceneReference scene = new SceneReference(bob, SCENE, SCENE);
+        scene.collection(COLLECTION).subscribe(first);
+        scene.collection(COLLECTION).subscribe(second);
+
+        scene.unsubscribe(first);
+        add(collection(alice), Collections.singletonMap("name", "alice"));
+
+        assertTrue(first.drain().isEmpty());
+        assertEquals(1, second.drain().size());
+    }
+
+    @Test
+    public void destroyedClientFails() {
+        assertFailsAfterDestroy(alice);
+        assertEquals(1, hub.getTransportCount());
+    }
+
+    @Test
+    public void destroyedClientFailsWithDispatchThreads() {
+        // callbacks would go to stripes that are shut down with the transport
+        assertFailsAfterDestroy(newClient(2));
+    }
+
+    private void assertFailsAfterDestroy(RethinkSyncImpl client) {
+        client.destroy();
+
+        List<SyncManagerException> errors = Collections.synchronizedList(new ArrayList<SyncManagerException>());
+        collection(client).add(Collections.singletonMap("name", "late"), new Sync.DataItemCallback() {
+            @Override
+            public void onSuccess(IObject result) {
+                throw new AssertionError("write after destroy succeeded");
+            }
+
+            @Override
+            public void onFail(SyncManagerException exception) {
+                errors.add(exception);
+            }
+        });
+
+        assertEquals(1, errors.size());
+        assertEquals(RethinkSyncClient.ERROR_SOCKET_CLOSED, errors.get(0).getCode());
+    }
+
+    private RethinkSyncImpl newClient() {
+        return newClient(0);
+    }
+
+    private RethinkSyncImpl newClient(int dispatchThreads) {
+        Map<String, String> params = new HashMap<>();
+        params.put("appid", "test");
+        params.put("defaultChannel", "default");
+        LoopbackTransport transport = new LoopbackTransport(hub,
+                new StripedExecutor("LoopbackDispatch", dispatchThreads, 16));
+        RethinkSyncImpl client = new RethinkSyncImpl(transport, params, new FailOnError());
+        resources.add(client::destroy);
+        return client;
+    }
+
+    private static CollectionReference collection(RethinkSyncImpl client) {
+        return new SceneReference(client, SCENE, SCENE).collection(COLLECTION);
+    }
+
+    private static IObject add(CollectionReference collection, Object data) {
+        IObject[] added = new IObject[1];
+        collection.add(data, new Sync.DataItemCallback() {
+            @Override
+            public void onSuccess(IObject result) {
+                added[0] = result;
+            }
+
+            @Override
+            public void onFail(SyncManagerException exception) {
+                throw new AssertionError(exception);
+            }
+        });
+        assertNotNull(added[0]);
+        return added[0];
+    }
+
+    private static List<IObject> list(CollectionReference collection) {
+        List<IObject> items = new ArrayList<>();
+        collection.get(new Sync.DataListCallback() {
+            @Override
+            public void onSuccess(List<IObject> result) {
+                items.addAll(result);
+            }
+
+            @Override
+            public void onFail(SyncManagerException exception) {
+                throw new AssertionError(exception);
+            }
+        });
+        return items;
+    }
+
+    static class Member {
+        String name;
+    }
+
+    private static class Recorder implements Sync.EventListener {
+        private final List<String> events = new ArrayList<>();
+
+        List<String> drain() {
+            List<String> drained = new ArrayList<>(events);
+            events.clear();
+            return drained;
+        }
+
+        @Override
+        public void onCreated(IObject item) {
+            events.add("created " + item.getId());
+        }
+
+        @Override
+        public void onUpdated(IObject item) {
+            events.add("updated " + item.getId() + " " + item.toObject(Member.class).name);
+        }
+
+        @Override
+        public void onDeleted(IObject item) {
+            events.add("deleted " + item.getId());
+        }
+
+        @Override
+        public void onSubscribeError(SyncManagerException ex) {
+            events.add("error " + ex.getCode());
+        }
+    }
+
+    private static class FailOnError implements Sync.Callback {
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public void onFail(SyncManagerException exception) {
+            throw new AssertionError(exception);
+        }
+    }
+}
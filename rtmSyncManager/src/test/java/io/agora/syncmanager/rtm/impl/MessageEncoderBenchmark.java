@@ -0,0 +1,145 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.agora.syncmanager.rtm.Benchmarks;
+
+/**
+ * Time and allocation per encoded write frame, streaming encoder against the former
+ * toJson/JSONObject/HashMap round trip.
+ */
+public class MessageEncoderBenchmark {
+
+    private static final String APP_ID = "aab8b8f5a8cd4469a63042fcfafe7063";
+    private static final String CHANNEL = "sceneIdmember";
+    private static final int ROUNDS = 50000;
+
+    private final Gson gson = new Gson();
+    private final MessageEncoder encoder = new MessageEncoder(gson);
+
+    @Test
+    public void sameBytesAsLegacy() throws JSONException {
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> member = member(i);
+            assertEquals(legacy(member, ""), encode(member, ""));
+            assertEquals(legacy(member, "id" + i), encode(member, "id" + i));
+        }
+        assertEquals(legacy(new Member("<b>&'=</b>", 3), ""), encode(new Member("<b>&'=</b>", 3), ""));
+    }
+
+    @Test
+    public void encodeWriteFrame() throws JSONException {
+        Benchmarks.assumeEnabled();
+        Map<String, Object> member = member(7);
+        for (int i = 0; i < ROUNDS / 5; i++) {
+            legacy(member, "");
+            encode(member, "");
+        }
+
+        long[] legacy = measure(() -> legacy(member, ""));
+        long[] streaming = measure(() -> encode(member, ""));
+        System.out.printf("write frame encode, %d rounds%n", ROUNDS);
+        System.out.printf("  legacy:    %d ns/op, %d bytes/op%n", legacy[0], legacy[1]);
+        System.out.printf("  streaming: %d ns/op, %d bytes/op%n", streaming[0], streaming[1]);
+    }
+
+    private String encode(Object params, String objectId) {
+        String propsId = objectId;
+        String propsValues;
+        if (objectId.isEmpty()) {
+            propsValues = encoder.encodeProps(gson.toJsonTree(params).getAsJsonObject(), CHANNEL);
+            propsId = CHANNEL;
+        } else {
+            propsValues = encoder.encodeProps(gson.toJsonTree(params).getAsJsonObject(), null);
+        }
+        return encoder.encode(APP_ID, new MessageEncoder.Op("0123456789abcdef", "send", CHANNEL, propsId, propsValues));
+    }
+
+    // the write path as it was before the streaming encoder
+    private String legacy(Object params, String objectId) throws JSONException {
+        String propsId = objectId;
+        Map<String, Object> propsValuesMap = new HashMap<>();
+        JSONObject jo = new JSONObject(gson.toJson(params));
+        Iterator<String> keys = jo.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            propsValuesMap.put(key, jo.opt(key));
+        }
+        if (objectId.isEmpty()) {
+            if (!propsValuesMap.containsKey("objectId")) {
+                propsValuesMap.put("objectId", CHANNEL);
+            }
+            propsId = CHANNEL;
+        }
+        String propsValues = gson.toJson(propsValuesMap);
+
+        Map<String, Object> socketMsg = new HashMap<>();
+        socketMsg.put("appId", APP_ID);
+        socketMsg.put("channelName", CHANNEL);
+        socketMsg.put("action", "send");
+        socketMsg.put("requestId", "0123456789abcdef");
+        Map<String, Object> props = new HashMap<>();
+        props.put(propsId, propsValues);
+        socketMsg.put("props", props);
+        return gson.toJson(socketMsg);
+    }
+
+    private interface Encode {
+        String run() throws JSONException;
+    }
+
+    /**
+     * @return ns per op and bytes allocated per op
+     */
+    private static long[] measure(Encode encode) throws JSONException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = allocatedBytes(bean, thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            encode.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = allocatedBytes(bean, thread) - bytesBefore;
+        return new long[]{nanos / ROUNDS, bytes < 0 ? -1 : bytes / ROUNDS};
+    }
+
+    private static long allocatedBytes(ThreadMXBean bean, long thread) {
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread);
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private static Map<String, Object> member(int index) {
+        Map<String, Object> member = new HashMap<>();
+        member.put("userId", "user" + index);
+        member.put("userName", "Member " + index);
+        member.put("avatar", index % 14);
+        member.put("isHost", index == 0);
+        member.put("joinTs", 1634567890123L + index);
+        return member;
+    }
+
+    private static class Member {
+        final String name;
+        final int seat;
+
+        Member(String name, int seat) {
+            this.name = name;
+            this.seat = seat;
+        }
+    }
+}
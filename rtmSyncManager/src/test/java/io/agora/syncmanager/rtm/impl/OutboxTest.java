@@ -0,0 +1,165 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Queueing and journaling of {@link Outbox}, on a journal file and without a socket.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OutboxTest {
+
+    private static final String CHANNEL = "sceneIdmember";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MessageEncoder encoder = new MessageEncoder(new Gson());
+    private final List<Outbox> outboxes = new ArrayList<>();
+    private int requestIds;
+
+    @After
+    public void tearDown() {
+        for (Outbox outbox : outboxes) {
+            outbox.close();
+        }
+    }
+
+    @Test
+    public void journalReplaysAroundATornLastLine() throws IOException {
+        File journal = folder.newFile("outbox");
+        Outbox outbox = open(journal);
+        Outbox.Entry a = update("a", "1");
+        offer(outbox, a);
+        offer(outbox, update("b", "2"));
+        offer(outbox, delete("c"));
+        outbox.remove(a.op.requestId);
+        outbox.close();
+        // the process died in the middle of the next append
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            out.write("+\td\t{\"requestId\":\"".getBytes("UTF-8"));
+        }
+
+        Outbox reopened = new Outbox(encoder, 100, 1024 * 1024, journal);
+        outboxes.add(reopened);
+        assertEquals(describe(outbox.entries()), describe(reopened.open(OutboxTest::handler)));
+
+        // the torn record is gone, so what follows is read back whole
+        offer(reopened, update("e", "5"));
+        reopened.close();
+        assertEquals("[b=2, c, e=5]", describe(open(journal).entries()));
+    }
+
+    @Test
+    public void replayKeepsTheLastWriteOfAKey() throws IOException {
+        File journal = folder.newFile("outbox");
+        Outbox outbox = open(journal);
+        offer(outbox, update("a", "1"));
+        offer(outbox, update("b", "1"));
+        outbox.takeUnsent(1);
+        // the first write of a is on the wire, so both are queued
+        offer(outbox, update("a", "2"));
+        assertEquals("[a=1, b=1, a=2]", describe(outbox.entries()));
+        outbox.close();
+
+        assertEquals("[b=1, a=2]", describe(open(journal).entries()));
+    }
+
+    @Test
+    public void laterWriteOfAKeySupersedesAnUnsentOne() {
+        Outbox outbox = new Outbox(encoder, 2, 1024 * 1024, null);
+        Outbox.Entry first = update("a", "1");
+        offer(outbox, first);
+        offer(outbox, update("b", "1"));
+
+        List<Outbox.Entry> superseded = new ArrayList<>();
+        // full, but the replaced write makes room
+        assertTrue(outbox.offer(update("a", "2"), 1, superseded));
+        assertEquals(Collections.singletonList(first), superseded);
+        assertEquals("[b=1, a=2]", describe(outbox.entries()));
+
+        assertFalse(outbox.offer(update("c", "1"), 1, superseded));
+        assertEquals(2, outbox.size());
+    }
+
+    @Test
+    public void journalIsCompactedOnceMostOfItIsDead() throws IOException {
+        File journal = folder.newFile("outbox");
+        Outbox outbox = open(journal);
+        offer(outbox, update("kept", "1"));
+        long live = journal.length();
+        for (int i = 0; i < 300; i++) {
+            Outbox.Entry entry = update("k" + i, "v");
+            offer(outbox, entry);
+            outbox.remove(entry.op.requestId);
+        }
+
+        assertTrue("journal is " + journal.length() + " bytes", journal.length() < 150 * live);
+        outbox.close();
+        assertEquals("[kept=1]", describe(open(journal).entries()));
+        assertEquals(live, journal.length());
+    }
+
+    private Outbox open(File journal) {
+        Outbox outbox = new Outbox(encoder, 100, 1024 * 1024, journal);
+        outboxes.add(outbox);
+        outbox.open(OutboxTest::handler);
+        return outbox;
+    }
+
+    private static void offer(Outbox outbox, Outbox.Entry entry) {
+        assertTrue(outbox.offer(entry, 1, new ArrayList<Outbox.Entry>()));
+    }
+
+    private Outbox.Entry update(String key, String value) {
+        MessageEncoder.Op op = new MessageEncoder.Op("request" + requestIds++,
+                RethinkSyncClient.SocketType.send.name(), CHANNEL, key, value);
+        return new Outbox.Entry(key, op, handler(op));
+    }
+
+    private Outbox.Entry delete(String key) {
+        MessageEncoder.Op op = new MessageEncoder.Op("request" + requestIds++,
+                RethinkSyncClient.SocketType.deleteProp.name(), CHANNEL, Collections.singletonList(key));
+        return new Outbox.Entry(null, op, handler(op));
+    }
+
+    private static String describe(List<Outbox.Entry> entries) {
+        List<String> ret = new ArrayList<>();
+        for (Outbox.Entry entry : entries) {
+            MessageEncoder.Op op = entry.op;
+            ret.add(op.propsIds != null ? op.propsIds.get(0) : op.propsId + "=" + op.propsValue);
+        }
+        return ret.toString();
+    }
+
+    private static RethinkSyncClient.CallbackHandler handler(MessageEncoder.Op op) {
+        return new RethinkSyncClient.CallbackHandler(op.requestId, RethinkSyncClient.SocketType.valueOf(op.action), 0) {
+            @Override
+            boolean handleResult(int code, String message) {
+                return true;
+            }
+
+            @Override
+            boolean handleAttrs(RethinkSyncClient.SocketType type, InboundFrame frame) {
+                return true;
+            }
+        };
+    }
+}
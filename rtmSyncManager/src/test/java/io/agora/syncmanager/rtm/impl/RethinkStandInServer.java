@@ -0,0 +1,317 @@
+package io.agora.syncmanager.rtm.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the Rethink sync server, speaking the frames {@link RethinkSyncClient}
+ * sends and expects, including the sequenced resume extension.
+ *
+ * Every channel keeps its current state, a sequence number and a bounded log of its last events.
+ * Events pushed to subscribers carry {@code data.seq}. A subscribe with {@code sinceSeq} gets the
+ * logged events after it replayed, or a {@code snapshot} of the whole state if the log no longer
+ * reaches back that far, and is then acknowledged with {@code data.headSeq}.
+ *
+ * An event is serialized and framed once and the same frame is queued to every subscriber, so a
+ * channel can fan out to thousands of connections; see {@link #getEventsDelivered()}.
+ */
+public class RethinkStandInServer extends WebSocketServer {
+
+    private final Gson gson = new Gson();
+    private final int logCapacity;
+
+    // guarded by itself
+    private final Map<String, Channel> channels = new HashMap<>();
+
+    private final AtomicInteger eventsToDrop = new AtomicInteger();
+    private final AtomicLong eventsDelivered = new AtomicLong();
+
+    public RethinkStandInServer(InetSocketAddress address, int logCapacity) {
+        this(address, logCapacity, Collections.<Draft>singletonList(new Draft_6455()));
+    }
+
+    /**
+     * @param drafts the protocol drafts to accept, e.g. one with a compression extension
+     */
+    public RethinkStandInServer(InetSocketAddress address, int logCapacity, List<Draft> drafts) {
+        super(address, drafts);
+        this.logCapacity = logCapacity;
+        setReuseAddr(true);
+    }
+
+    /**
+     * Write an object as if another client had, and notify subscribers.
+     */
+    public void put(String channelName, String objectId, String value) {
+        Channel channel = channel(channelName);
+        synchronized (channel) {
+            channel.state.put(objectId, value);
+            Map<String, String> update = new LinkedHashMap<>();
+            update.put(objectId, value);
+            JsonObject data = new JsonObject();
+            data.addProperty("action", RethinkSyncClient.SocketType.send.name());
+            data.add("props", new JsonObject());
+            data.addProperty("propsUpdate", gson.toJson(update));
+            publish(channelName, channel, data);
+        }
+    }
+
+    /**
+     * Delete objects as if another client had, and notify subscribers.
+     */
+    public void remove(String channelName, String... objectIds) {
+        Channel channel = channel(channelName);
+        synchronized (channel) {
+            JsonArray ids = new JsonArray();
+            for (String id : objectIds) {
+                channel.state.remove(id);
+                ids.add(id);
+            }
+            JsonObject data = new JsonObject();
+            data.addProperty("action", RethinkSyncClient.SocketType.deleteProp.name());
+            data.add("props", new JsonObject());
+            data.add("propsDel", ids);
+            publish(channelName, channel, data);
+        }
+    }
+
+    /**
+     * Lose the next {@code count} event deliveries, to provoke a sequence gap.
+     */
+    public void dropEvents(int count) {
+        eventsToDrop.set(count);
+    }
+
+    /**
+     * Cut every client off without a close handshake, as a network outage would.
+     */
+    public void dropConnections() {
+        for (WebSocket conn : getConnections()) {
+            conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "outage");
+        }
+    }
+
+    /**
+     * Close every client with a close handshake, as a server shutting down on purpose would.
+     */
+    public void closeConnections() {
+        for (WebSocket conn : getConnections()) {
+            conn.close(CloseFrame.GOING_AWAY, "shutdown");
+        }
+    }
+
+    /**
+     * @return event deliveries queued so far, one per subscriber per event.
+     */
+    public long getEventsDelivered() {
+        return eventsDelivered.get();
+    }
+
+    public int subscriberCount(String channelName) {
+        Channel channel = channel(channelName);
+        synchronized (channel) {
+            return channel.subscribers.size();
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        // the channels this connection subscribed to
+        conn.setAttachment(Collections.synchronizedSet(new HashSet<String>()));
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        Set<String> subscribed = conn.getAttachment();
+        if (subscribed == null) {
+            return;
+        }
+        synchronized (subscribed) {
+            for (String channelName : subscribed) {
+                Channel channel = channel(channelName);
+                synchronized (channel) {
+                    channel.subscribers.remove(conn);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        handle(conn, JsonParser.parseString(message).getAsJsonObject());
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+    }
+
+    @Override
+    public void onStart() {
+    }
+
+    private void handle(WebSocket conn, JsonObject frame) {
+        String action = string(frame, "action");
+        if (FrameBatcher.ACTION_BATCH.equals(action)) {
+            for (JsonElement op : frame.getAsJsonArray("ops")) {
+                handle(conn, op.getAsJsonObject());
+            }
+            return;
+        }
+        if (RethinkSyncClient.SocketType.ping.name().equals(action)) {
+            JsonObject pong = new JsonObject();
+            pong.addProperty("action", action);
+            pong.addProperty("requestId", string(frame, "requestId"));
+            conn.send(gson.toJson(pong));
+            return;
+        }
+
+        String channelName = string(frame, "channelName");
+        Channel channel = channel(channelName);
+        if (RethinkSyncClient.SocketType.send.name().equals(action)) {
+            for (Map.Entry<String, JsonElement> entry : frame.getAsJsonObject("props").entrySet()) {
+                put(channelName, entry.getKey(), entry.getValue().getAsString());
+            }
+            reply(conn, frame, new JsonObject());
+        } else if (RethinkSyncClient.SocketType.deleteProp.name().equals(action)) {
+            JsonArray props = frame.getAsJsonArray("props");
+            String[] ids = new String[props.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = props.get(i).getAsString();
+            }
+            remove(channelName, ids);
+            reply(conn, frame, new JsonObject());
+        } else if (RethinkSyncClient.SocketType.query.name().equals(action)) {
+            synchronized (channel) {
+                JsonObject data = new JsonObject();
+                data.add("props", gson.toJsonTree(channel.state));
+                reply(conn, frame, data);
+            }
+        } else if (RethinkSyncClient.SocketType.subscribe.name().equals(action)) {
+            subscribe(conn, frame, channelName, channel);
+        } else if (RethinkSyncClient.SocketType.unsubsribe.name().equals(action)) {
+            synchronized (channel) {
+                channel.subscribers.remove(conn);
+            }
+            Set<String> subscribed = conn.getAttachment();
+            subscribed.remove(channelName);
+        }
+    }
+
+    private void subscribe(WebSocket conn, JsonObject frame, String channelName, Channel channel) {
+        long sinceSeq = frame.has("sinceSeq") ? frame.get("sinceSeq").getAsLong() : 0;
+        Set<String> subscribed = conn.getAttachment();
+        subscribed.add(channelName);
+        synchronized (channel) {
+            channel.subscribers.put(conn, string(frame, "requestId"));
+            if (sinceSeq > 0) {
+                long oldest = channel.log.isEmpty() ? channel.seq + 1 : channel.log.peekFirst().get("seq").getAsLong();
+                if (sinceSeq <= channel.seq && sinceSeq >= oldest - 1) {
+                    for (JsonObject data : channel.log) {
+                        if (data.get("seq").getAsLong() > sinceSeq) {
+                            conn.send(event(channelName, data));
+                        }
+                    }
+                } else {
+                    JsonObject data = new JsonObject();
+                    data.addProperty("action", RethinkSyncClient.SocketType.send.name());
+                    data.add("props", new JsonObject());
+                    data.addProperty("propsUpdate", gson.toJson(channel.state));
+                    data.addProperty("seq", channel.seq);
+                    data.addProperty("snapshot", true);
+                    conn.send(event(channelName, data));
+                }
+            }
+            JsonObject data = new JsonObject();
+            data.addProperty("headSeq", channel.seq);
+            reply(conn, frame, data);
+        }
+    }
+
+    // called with the channel lock held, so events go out in sequence order
+    private void publish(String channelName, Channel channel, JsonObject data) {
+        data.addProperty("seq", ++channel.seq);
+        channel.log.addLast(data);
+        while (channel.log.size() > logCapacity) {
+            channel.log.removeFirst();
+        }
+        List<WebSocket> receivers = new ArrayList<>(channel.subscribers.size());
+        for (WebSocket conn : channel.subscribers.keySet()) {
+            if (eventsToDrop.get() > 0 && eventsToDrop.getAndDecrement() > 0) {
+                continue;
+            }
+            if (conn.isOpen()) {
+                receivers.add(conn);
+            }
+        }
+        if (!receivers.isEmpty()) {
+            broadcast(event(channelName, data), receivers);
+            eventsDelivered.addAndGet(receivers.size());
+        }
+    }
+
+    private String event(String channelName, JsonObject data) {
+        JsonObject event = new JsonObject();
+        event.addProperty("channelName", channelName);
+        event.addProperty("code", 0);
+        event.addProperty("msg", "");
+        event.add("data", data);
+        return gson.toJson(event);
+    }
+
+    private void reply(WebSocket conn, JsonObject frame, JsonObject data) {
+        JsonObject reply = new JsonObject();
+        reply.addProperty("action", string(frame, "action"));
+        reply.addProperty("requestId", string(frame, "requestId"));
+        reply.addProperty("channelName", string(frame, "channelName"));
+        reply.addProperty("code", 0);
+        reply.addProperty("msg", "");
+        reply.add("data", data);
+        conn.send(gson.toJson(reply));
+    }
+
+    private Channel channel(String channelName) {
+        synchronized (channels) {
+            Channel channel = channels.get(channelName);
+            if (channel == null) {
+                channel = new Channel();
+                channels.put(channelName, channel);
+            }
+            return channel;
+        }
+    }
+
+    private static String string(JsonObject object, String name) {
+        JsonElement value = object.get(name);
+        return value == null || value.isJsonNull() ? "" : value.getAsString();
+    }
+
+    private static class Channel {
+        final Map<String, String> state = new LinkedHashMap<>();
+        final ArrayDeque<JsonObject> log = new ArrayDeque<>();
+        final Map<WebSocket, String> subscribers = new LinkedHashMap<>();
+        long seq;
+    }
+}
@@ -0,0 +1,131 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.java_websocket.WebSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ping/pong matching, round-trip times and dead link detection of the heartbeat, against
+ * {@link RethinkStandInServer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RethinkSyncClientHeartbeatTest {
+
+    private static final long INTERVAL_MS = 50;
+
+    private RethinkStandInServer server;
+    private RethinkSyncClient client;
+
+    private volatile boolean mute;
+    // pongs carry no request id, as from a server that does not echo it
+    private volatile boolean anonymousPongs;
+
+    @Before
+    public void setUp() throws Exception {
+        int port = freePort();
+        server = new RethinkStandInServer(new InetSocketAddress("127.0.0.1", port), 4) {
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+                if (message.contains("\"" + RethinkSyncClient.SocketType.ping.name() + "\"")) {
+                    if (anonymousPongs) {
+                        conn.send("{\"action\":\"ping\"}");
+                    }
+                    if (mute || anonymousPongs) {
+                        return;
+                    }
+                }
+                super.onMessage(conn, message);
+            }
+        };
+        server.start();
+
+        client = new RethinkSyncClient();
+        client.setSocketUrl("ws://127.0.0.1:" + port);
+        client.setHeartbeat(INTERVAL_MS, TimeUnit.MILLISECONDS, 2);
+        client.setReconnectPolicy(50, 400, 50, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        client.release();
+        server.stop(1000);
+    }
+
+    @Test
+    public void everyPongIsTimed() throws Exception {
+        connect();
+
+        await(() -> samples() >= 5);
+        assertTrue(client.getRtt(TimeUnit.MICROSECONDS) >= 0);
+        assertTrue(client.getRttPercentileMillis(99) >= 1);
+        assertEquals(1, client.getConnectAttempts());
+    }
+
+    @Test
+    public void pongWithoutRequestIdAnswersTheOldestPing() throws Exception {
+        anonymousPongs = true;
+        connect();
+
+        await(() -> samples() >= 3);
+        Thread.sleep(3 * INTERVAL_MS);
+        assertEquals(1, client.getConnectAttempts());
+    }
+
+    @Test
+    public void missedPongsCloseTheConnection() throws Exception {
+        connect();
+        await(() -> samples() >= 1);
+        mute = true;
+        long start = System.nanoTime();
+
+        await(() -> client.getConnectAttempts() == 2);
+        // two unanswered pings, and the tick that finds them so
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("closed early at " + elapsedMs + " ms", elapsedMs >= 2 * INTERVAL_MS);
+
+        mute = false;
+        long before = samples();
+        await(() -> samples() > before);
+    }
+
+    private void connect() throws InterruptedException {
+        CountDownLatch connected = new CountDownLatch(1);
+        client.init("appId", "channel", ret -> connected.countDown());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    private long samples() {
+        long samples = 0;
+        for (long count : client.getRttHistogram()) {
+            samples += count;
+        }
+        return samples;
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unsubscribing from a scene across the connections of a {@link RethinkSyncClientPool}, against
+ * {@link RethinkStandInServer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RethinkSyncClientPoolTest {
+
+    private RethinkStandInServer server;
+    private RethinkSyncClientPool pool;
+    private String scene;
+    private String otherScene;
+
+    @Before
+    public void setUp() throws Exception {
+        int port = freePort();
+        server = new RethinkStandInServer(new InetSocketAddress("127.0.0.1", port), 4);
+        server.start();
+
+        pool = new RethinkSyncClientPool(2);
+        for (RethinkSyncClient connection : pool.getConnections()) {
+            connection.setSocketUrl("ws://127.0.0.1:" + port);
+        }
+        CountDownLatch connected = new CountDownLatch(1);
+        pool.init("appId", "channel", ret -> connected.countDown());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        // two scenes whose channels live on different connections
+        scene = "scene0";
+        for (int i = 1; otherScene == null; i++) {
+            if (pool.connectionFor("scene" + i + "member") != pool.connectionFor(scene + "member")) {
+                otherScene = "scene" + i;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        pool.release();
+        server.stop(1000);
+    }
+
+    @Test
+    public void sceneUnsubscribeLeavesTheOtherConnectionAlone() throws Exception {
+        Object tag = new Object();
+        pool.subscribe(scene + "member", null, null, null, null, tag);
+        pool.subscribe(otherScene + "member", null, null, null, null, tag);
+        await(() -> server.subscriberCount(scene + "member") == 1 && server.subscriberCount(otherScene + "member") == 1);
+
+        pool.unsubscribe(scene, tag);
+
+        assertEquals(1, pool.getSubscriptionCount());
+        assertEquals(1, pool.connectionFor(otherScene + "member").getSubscriberCount(otherScene + "member"));
+        await(() -> server.subscriberCount(scene + "member") == 0);
+        assertEquals(1, server.subscriberCount(otherScene + "member"));
+    }
+
+    @Test
+    public void unmatchedPrefixDropsTheTagEverywhere() throws Exception {
+        Object tag = new Object();
+        Object otherTag = new Object();
+        pool.subscribe(scene + "member", null, null, null, null, tag);
+        pool.subscribe(otherScene + "member", null, null, null, null, tag);
+        pool.subscribe(otherScene + "member", null, null, null, null, otherTag);
+
+        pool.unsubscribe("objectId", tag);
+
+        assertEquals(1, pool.getSubscriptionCount());
+        assertEquals(1, pool.connectionFor(otherScene + "member").getSubscriberCount(otherScene + "member"));
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.agora.syncmanager.rtm.Sync;
+
+/**
+ * Reconnect behaviour against a local endpoint that refuses connections until a server is started.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RethinkSyncClientReconnectTest {
+
+    private RethinkSyncClient client;
+    private WebSocketServer server;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (client != null) {
+            client.release();
+        }
+        if (server != null) {
+            server.stop(1000);
+        }
+    }
+
+    @Test
+    public void backsOffWhileRefusedAndConnectsOnce() throws Exception {
+        int port = freePort();
+        List<Sync.ConnectionState> states = Collections.synchronizedList(new ArrayList<Sync.ConnectionState>());
+        CountDownLatch connected = new CountDownLatch(1);
+        AtomicInteger completions = new AtomicInteger();
+
+        client = new RethinkSyncClient();
+        client.setSocketUrl("ws://127.0.0.1:" + port);
+        client.setReconnectPolicy(50, 400, 100, TimeUnit.MILLISECONDS);
+        client.setConnectionStateListener(states::add);
+
+        long start = System.nanoTime();
+        client.init("appId", "channel", ret -> {
+            completions.incrementAndGet();
+            connected.countDown();
+        });
+        assertTrue("init must not block", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+
+        Thread.sleep(1500);
+        long attempts = client.getConnectAttempts();
+        assertTrue("retries while refused, attempts=" + attempts, attempts >= 3);
+        // one attempt per 100ms at most, onError and onClose of a failed attempt schedule once
+        assertTrue("attempt rate is capped, attempts=" + attempts, attempts <= 1 + 1500 / 100);
+        assertEquals(Sync.ConnectionState.RECONNECTING, client.getConnectionState());
+        assertEquals(0, completions.get());
+
+        server = new WebSocketServer(new InetSocketAddress("127.0.0.1", port)) {
+            @Override
+            public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            }
+
+            @Override
+            public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+            }
+
+            @Override
+            public void onError(WebSocket conn, Exception ex) {
+            }
+
+            @Override
+            public void onStart() {
+            }
+        };
+        server.setReuseAddr(true);
+        server.start();
+
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        assertEquals(Sync.ConnectionState.CONNECTED, client.getConnectionState());
+        assertEquals(1, completions.get());
+        assertEquals(Sync.ConnectionState.CONNECTING, states.get(0));
+        assertTrue(states.contains(Sync.ConnectionState.RECONNECTING));
+    }
+
+    @Test
+    public void onlyALostConnectionIsRetried() throws Exception {
+        int port = freePort();
+        RethinkStandInServer standIn = new RethinkStandInServer(new InetSocketAddress("127.0.0.1", port), 4);
+        server = standIn;
+        standIn.setReuseAddr(true);
+        standIn.start();
+        List<Sync.ConnectionState> states = Collections.synchronizedList(new ArrayList<Sync.ConnectionState>());
+        CountDownLatch connected = new CountDownLatch(1);
+
+        client = new RethinkSyncClient();
+        client.setSocketUrl("ws://127.0.0.1:" + port);
+        client.setReconnectPolicy(50, 400, 50, TimeUnit.MILLISECONDS);
+        client.setConnectionStateListener(states::add);
+        client.init("appId", "channel", ret -> connected.countDown());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        standIn.dropConnections();
+        await(() -> client.getConnectAttempts() == 2 && client.getConnectionState() == Sync.ConnectionState.CONNECTED);
+
+        states.clear();
+        standIn.closeConnections();
+        await(() -> client.getConnectionState() == Sync.ConnectionState.DISCONNECTED);
+        Thread.sleep(300);
+        assertEquals(2, client.getConnectAttempts());
+        assertEquals(Collections.singletonList(Sync.ConnectionState.DISCONNECTED), states);
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.syncmanager.rtm.Sync;
+
+/**
+ * Sequenced resume of a subscription, against {@link RethinkStandInServer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RethinkSyncClientResumeTest {
+
+    private static final String CHANNEL = "sceneIdmember";
+
+    private RethinkStandInServer server;
+    private RethinkSyncClient client;
+
+    private final List<String> updated = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> deleted = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        int port = freePort();
+        server = new RethinkStandInServer(new InetSocketAddress("127.0.0.1", port), 4);
+        server.start();
+
+        CountDownLatch connected = new CountDownLatch(1);
+        client = new RethinkSyncClient();
+        client.setSocketUrl("ws://127.0.0.1:" + port);
+        client.setReconnectPolicy(300, 300, 300, TimeUnit.MILLISECONDS);
+        client.init("appId", "channel", ret -> connected.countDown());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        client.subscribe(CHANNEL, null,
+                attributes -> {
+                    for (RethinkSyncClient.Attribute attribute : attributes) {
+                        updated.add(attribute.getId());
+                    }
+                },
+                deleted::addAll, null, this);
+        await(() -> server.subscriberCount(CHANNEL) == 1);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        client.release();
+        server.stop(1000);
+    }
+
+    @Test
+    public void resumesFromLastSequenceAfterGapAndOutage() throws Exception {
+        server.put(CHANNEL, "a", "{}");
+        await(() -> updated.size() == 1);
+
+        // a lost event is noticed on the next one and replayed in order
+        server.dropEvents(1);
+        server.put(CHANNEL, "b", "{}");
+        server.put(CHANNEL, "c", "{}");
+        await(() -> updated.size() == 3);
+        assertEquals(Arrays.asList("a", "b", "c"), updated);
+
+        // changes made while disconnected come back as deltas, not as a full reload
+        server.dropConnections();
+        await(() -> client.getConnectionState() == Sync.ConnectionState.RECONNECTING);
+        server.put(CHANNEL, "d", "{}");
+        server.remove(CHANNEL, "a");
+        await(() -> client.getConnectionState() == Sync.ConnectionState.CONNECTED && deleted.size() == 1);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), updated);
+        assertEquals(Collections.singletonList("a"), deleted);
+    }
+
+    @Test
+    public void fallsBackToSnapshotWhenLogIsTooShort() throws Exception {
+        server.put(CHANNEL, "a", "{}");
+        server.put(CHANNEL, "b", "{}");
+        await(() -> updated.size() == 2);
+
+        server.dropConnections();
+        await(() -> client.getConnectionState() == Sync.ConnectionState.RECONNECTING);
+        // more changes than the server keeps in its log
+        server.remove(CHANNEL, "a");
+        for (String id : new String[]{"c", "d", "e", "f"}) {
+            server.put(CHANNEL, id, "{}");
+        }
+        await(() -> client.getConnectionState() == Sync.ConnectionState.CONNECTED && deleted.size() == 1);
+        assertEquals(Collections.singletonList("a"), deleted);
+        await(() -> updated.size() == 7);
+        assertEquals(Arrays.asList("b", "c", "d", "e", "f"), updated.subList(2, 7));
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.java_websocket.WebSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.syncmanager.rtm.SyncManagerException;
+
+/**
+ * What unsubscribing a listener from a scene leaves alone, against {@link RethinkStandInServer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RethinkSyncClientUnsubscribeTest {
+
+    private static final String SCENE = "sceneId";
+    private static final String CHANNEL = SCENE + "member";
+
+    private RethinkStandInServer server;
+    private RethinkSyncClient client;
+
+    // deletes are taken but never answered, so they stay pending
+    private volatile boolean holdDeletes;
+
+    @Before
+    public void setUp() throws Exception {
+        int port = freePort();
+        server = new RethinkStandInServer(new InetSocketAddress("127.0.0.1", port), 4) {
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+                if (holdDeletes && message.contains(RethinkSyncClient.SocketType.deleteProp.name())) {
+                    return;
+                }
+                super.onMessage(conn, message);
+            }
+        };
+        server.start();
+
+        CountDownLatch connected = new CountDownLatch(1);
+        client = new RethinkSyncClient();
+        client.setSocketUrl("ws://127.0.0.1:" + port);
+        client.init("appId", "channel", ret -> connected.countDown());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        client.release();
+        server.stop(1000);
+    }
+
+    @Test
+    public void pendingWriteOutlivesUnsubscribe() throws Exception {
+        holdDeletes = true;
+        client.setRequestTimeout(RethinkSyncClient.Operation.DELETE, 300, TimeUnit.MILLISECONDS);
+        List<SyncManagerException> errors = Collections.synchronizedList(new ArrayList<SyncManagerException>());
+        CountDownLatch failed = new CountDownLatch(1);
+
+        client.delete(CHANNEL, Collections.singletonList("a"), null, error -> {
+            errors.add(error);
+            failed.countDown();
+        });
+        assertEquals(1, client.getPendingRequestCount());
+        client.unsubscribe(SCENE, null);
+
+        assertEquals(1, client.getPendingRequestCount());
+        assertTrue("the delete must still be answered", failed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void channelStaysSubscribedForTheOtherListener() throws Exception {
+        List<String> first = Collections.synchronizedList(new ArrayList<String>());
+        List<String> second = Collections.synchronizedList(new ArrayList<String>());
+        Object firstTag = new Object();
+        Object secondTag = new Object();
+        client.subscribe(CHANNEL, null, attributes -> first.add(attributes.get(0).getId()), null, null, firstTag);
+        client.subscribe(CHANNEL, null, attributes -> second.add(attributes.get(0).getId()), null, null, secondTag);
+        await(() -> server.subscriberCount(CHANNEL) == 1);
+
+        // a scene id, as DocumentReference.unsubscribe passes it
+        client.unsubscribe(SCENE, firstTag);
+        assertEquals(1, client.getSubscriptionCount());
+        assertEquals(1, client.getSubscriberCount(CHANNEL));
+
+        server.put(CHANNEL, "a", "{}");
+        await(() -> second.size() == 1);
+        assertTrue(first.isEmpty());
+        assertEquals(1, server.subscriberCount(CHANNEL));
+
+        client.unsubscribe(SCENE, secondTag);
+        assertEquals(0, client.getSubscriptionCount());
+        await(() -> server.subscriberCount(CHANNEL) == 0);
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import io.agora.rtm.ErrorInfo;
+import io.agora.rtm.RtmStatusCode;
+import io.agora.syncmanager.rtm.SyncManagerException;
+
+/**
+ * Rate limiting, merging and retries of {@link RtmAttributeScheduler}, over {@link RtmStandInClient}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RtmAttributeSchedulerTest {
+
+    private static final long PERIOD_MS = 200;
+
+    private final RtmStandInClient rtm = new RtmStandInClient();
+    private RtmAttributeScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void spentTokensComeBackAfterAPeriod() throws Exception {
+        scheduler = new RtmAttributeScheduler(rtm.client, new AttributeChunks(0), 2, PERIOD_MS, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        for (String channel : new String[]{"a", "b", "c"}) {
+            scheduler.put(channel, "k", "v", true, new Outcome());
+        }
+
+        assertEquals(2, rtm.getAttributeCalls().size());
+        assertEquals(1, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getThrottledCount());
+
+        await(() -> rtm.getAttributeCalls().size() == 3);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(PERIOD_MS));
+        assertEquals("c", rtm.getAttributeCalls().get(2).channel);
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(3, scheduler.getCallCount());
+    }
+
+    @Test
+    public void laterWriteReplacesTheQueuedOne() {
+        scheduler = new RtmAttributeScheduler(rtm.client, new AttributeChunks(0), 0, 0, TimeUnit.MILLISECONDS);
+        Outcome first = new Outcome();
+        Outcome second = new Outcome();
+        Outcome third = new Outcome();
+        scheduler.put("a", "k", "v1", false, first);
+        // the channel has a call in flight, so these wait and merge
+        scheduler.put("a", "k", "v2", false, second);
+        scheduler.put("a", "k", "v3", true, third);
+        assertEquals(1, rtm.getAttributeCalls().size());
+        assertEquals(1, scheduler.getQueueDepth());
+
+        rtm.getAttributeCalls().get(0).callback.onSuccess(null);
+        assertEquals("v1", first.result);
+        RtmStandInClient.AttributeCall call = rtm.getAttributeCalls().get(1);
+        assertEquals(Collections.singletonList("v3"), call.values);
+        assertTrue(call.notify);
+
+        call.callback.onSuccess(null);
+        assertEquals("v3", second.result);
+        assertEquals("v3", third.result);
+        assertEquals(1, scheduler.getMergedCount());
+    }
+
+    @Test
+    public void tooOftenIsRetriedUpToMaxAttempts() throws Exception {
+        scheduler = new RtmAttributeScheduler(rtm.client, new AttributeChunks(0), 10, PERIOD_MS, TimeUnit.MILLISECONDS);
+        Outcome outcome = new Outcome();
+        scheduler.put("a", "k", "v", false, outcome);
+
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            int calls = attempt;
+            await(() -> rtm.getAttributeCalls().size() == calls);
+            assertNull(outcome.result);
+            rtm.getAttributeCalls().get(attempt - 1).callback.onFailure(tooOften());
+        }
+
+        assertEquals("failed", outcome.result);
+        Thread.sleep(2 * PERIOD_MS);
+        assertEquals(3, rtm.getAttributeCalls().size());
+        // three refusals, and the two retries waited for a token
+        assertEquals(5, scheduler.getThrottledCount());
+    }
+
+    @Test
+    public void retriedWriteHandsItsCallersToANewerOne() throws Exception {
+        scheduler = new RtmAttributeScheduler(rtm.client, new AttributeChunks(0), 10, PERIOD_MS, TimeUnit.MILLISECONDS);
+        Outcome older = new Outcome();
+        Outcome newer = new Outcome();
+        scheduler.put("a", "k", "v1", false, older);
+        scheduler.put("a", "k", "v2", false, newer);
+
+        rtm.getAttributeCalls().get(0).callback.onFailure(tooOften());
+        assertEquals(1, scheduler.getQueueDepth());
+
+        await(() -> rtm.getAttributeCalls().size() == 2);
+        RtmStandInClient.AttributeCall retry = rtm.getAttributeCalls().get(1);
+        assertEquals(Collections.singletonList("v2"), retry.values);
+        retry.callback.onSuccess(null);
+        assertEquals("v2", older.result);
+        assertEquals("v2", newer.result);
+    }
+
+    @Test
+    public void chunkedWriteCompletesOnceEveryPartIsDone() {
+        scheduler = new RtmAttributeScheduler(rtm.client, new AttributeChunks(4), 0, 0, TimeUnit.MILLISECONDS);
+        Outcome large = new Outcome();
+        scheduler.put("a", "k", "0123456789", false, large);
+
+        RtmStandInClient.AttributeCall upsert = rtm.getAttributeCalls().get(0);
+        assertEquals(Arrays.asList("k", "k#0", "k#1", "k#2"), upsert.keys);
+        upsert.callback.onSuccess(null);
+        assertEquals("0123456789", large.result);
+        assertEquals(1, large.calls);
+
+        // a shorter value takes an upsert and a delete of the chunks it no longer needs
+        Outcome small = new Outcome();
+        scheduler.put("a", "k", "ab", false, small);
+        assertEquals(3, rtm.getAttributeCalls().size());
+        RtmStandInClient.AttributeCall shrink = rtm.getAttributeCalls().get(1);
+        RtmStandInClient.AttributeCall stale = rtm.getAttributeCalls().get(2);
+        assertEquals(Collections.singletonList("ab"), shrink.values);
+        assertEquals(Arrays.asList("k#0", "k#1", "k#2"), stale.keys);
+
+        shrink.callback.onSuccess(null);
+        assertNull(small.result);
+        stale.callback.onSuccess(null);
+        assertEquals("ab", small.result);
+        assertEquals(1, small.calls);
+    }
+
+    @Test
+    public void deleteOfAnUnseenKeyReadsItsManifestFirst() {
+        scheduler = new RtmAttributeScheduler(rtm.client, new AttributeChunks(4), 0, 0, TimeUnit.MILLISECONDS);
+        Outcome deleted = new Outcome();
+        scheduler.delete("a", "k", true, deleted);
+        assertTrue(rtm.getAttributeCalls().isEmpty());
+
+        // another client wrote k in three chunks
+        RtmStandInClient.ReadCall read = rtm.getReadCalls().get(0);
+        assertEquals(Collections.singletonList("k"), read.keys);
+        read.callback.onSuccess(new AttributeChunks(4).write("a", "k", "0123456789").puts.subList(0, 1));
+
+        RtmStandInClient.AttributeCall delete = rtm.getAttributeCalls().get(0);
+        assertEquals(Arrays.asList("k", "k#0", "k#1", "k#2"), delete.keys);
+        delete.callback.onSuccess(null);
+        assertEquals(1, deleted.calls);
+
+        // a failed read still deletes the key
+        scheduler.delete("a", "j", true, new Outcome());
+        rtm.getReadCalls().get(1).callback.onFailure(new ErrorInfo(1, "failed"));
+        assertEquals(Collections.singletonList("j"), rtm.getAttributeCalls().get(1).keys);
+    }
+
+    @Test
+    public void tooLongKeyFailsAChunkedWrite() {
+        scheduler = new RtmAttributeScheduler(rtm.client, new AttributeChunks(4), 0, 0, TimeUnit.MILLISECONDS);
+        Outcome outcome = new Outcome();
+
+        scheduler.put("a", "sceneIdmemberWithAVeryLongObjectId", "0123456789", false, outcome);
+
+        assertEquals("failed", outcome.result);
+        assertTrue(rtm.getAttributeCalls().isEmpty());
+    }
+
+    @Test
+    public void shutdownFailsQueuedWrites() {
+        scheduler = new RtmAttributeScheduler(rtm.client, new AttributeChunks(0), 1, 1, TimeUnit.HOURS);
+        Outcome sent = new Outcome();
+        Outcome queued = new Outcome();
+        scheduler.put("a", "k", "v", false, sent);
+        scheduler.put("b", "k", "v", false, queued);
+
+        scheduler.shutdown();
+
+        assertEquals("failed", queued.result);
+        assertNull(sent.result);
+        Outcome late = new Outcome();
+        scheduler.put("c", "k", "v", false, late);
+        assertEquals("failed", late.result);
+    }
+
+    private static ErrorInfo tooOften() {
+        return new ErrorInfo(RtmStatusCode.AttributeOperationError.ATTRIBUTE_OPERATION_ERR_TOO_OFTEN, "too often");
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class Outcome implements RtmAttributeScheduler.Completion {
+        volatile String result;
+        volatile int calls;
+
+        @Override
+        public void onSuccess(String value) {
+            result = value;
+            calls++;
+        }
+
+        @Override
+        public void onFailure(SyncManagerException exception) {
+            result = "failed";
+            calls++;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.agora.rtm.ErrorInfo;
+import io.agora.rtm.ResultCallback;
+import io.agora.rtm.RtmChannelListener;
+
+/**
+ * Joins and references of {@link RtmChannelManager} over {@link RtmStandInClient}.
+ */
+public class RtmChannelManagerTest {
+
+    private static final String CHANNEL = "sceneId";
+
+    private final RtmStandInClient rtm = new RtmStandInClient();
+    private final RtmChannelManager channels = new RtmChannelManager(rtm.client, name -> (RtmChannelListener) null);
+
+    @Test
+    public void concurrentAcquiresShareOneJoin() {
+        Outcome first = new Outcome();
+        Outcome second = new Outcome();
+        channels.acquire(CHANNEL, first);
+        channels.acquire(CHANNEL, second);
+        assertEquals(1, rtm.getChannels().size());
+        assertEquals(1, rtm.getChannel(CHANNEL).joins.size());
+
+        rtm.lastJoin(CHANNEL).onSuccess(null);
+        assertEquals("joined", first.result);
+        assertEquals("joined", second.result);
+        assertTrue(channels.isJoined(CHANNEL));
+
+        assertFalse(channels.release(CHANNEL));
+        assertEquals(0, rtm.getChannel(CHANNEL).leaves);
+        assertTrue(channels.release(CHANNEL));
+        assertEquals(1, rtm.getChannel(CHANNEL).leaves);
+        assertEquals(1, rtm.getChannel(CHANNEL).releases);
+    }
+
+    @Test
+    public void failedJoinIsRetriedByTheNextAcquire() {
+        Outcome first = new Outcome();
+        channels.acquire(CHANNEL, first);
+        rtm.lastJoin(CHANNEL).onFailure(new ErrorInfo(1, "refused"));
+        assertEquals("failed 1", first.result);
+
+        Outcome second = new Outcome();
+        channels.acquire(CHANNEL, second);
+        assertEquals(2, rtm.getChannel(CHANNEL).joins.size());
+        rtm.lastJoin(CHANNEL).onSuccess(null);
+        assertEquals("joined", second.result);
+        assertEquals(2, channels.getReferenceCount(CHANNEL));
+    }
+
+    @Test
+    public void whenJoinedAfterAFailedJoinFailsRightAway() {
+        channels.acquire(CHANNEL, null);
+        rtm.lastJoin(CHANNEL).onFailure(new ErrorInfo(2, "rejected"));
+
+        // e.g. a second joinScene before the first caller released its reference
+        Outcome waiter = new Outcome();
+        channels.whenJoined(CHANNEL, waiter);
+
+        assertEquals("failed 2", waiter.result);
+        assertEquals(1, rtm.getChannel(CHANNEL).joins.size());
+    }
+
+    @Test
+    public void whenJoinedWaitsForAPendingJoin() {
+        channels.acquire(CHANNEL, null);
+        Outcome waiter = new Outcome();
+        channels.whenJoined(CHANNEL, waiter);
+        assertEquals(null, waiter.result);
+
+        rtm.lastJoin(CHANNEL).onSuccess(null);
+        assertEquals("joined", waiter.result);
+    }
+
+    @Test
+    public void releaseWhileJoiningFailsTheWaiters() {
+        Outcome acquired = new Outcome();
+        Outcome waiter = new Outcome();
+        channels.acquire(CHANNEL, acquired);
+        channels.whenJoined(CHANNEL, waiter);
+
+        assertTrue(channels.release(CHANNEL));
+
+        assertTrue(acquired.result, acquired.result.startsWith("failed"));
+        assertTrue(waiter.result, waiter.result.startsWith("failed"));
+        assertEquals(1, rtm.getChannel(CHANNEL).releases);
+        // a late answer to the abandoned join changes nothing
+        rtm.lastJoin(CHANNEL).onSuccess(null);
+        assertEquals(1, acquired.calls);
+        assertEquals(0, channels.size());
+    }
+
+    @Test
+    public void releaseAllFailsTheWaiters() {
+        List<Outcome> outcomes = new ArrayList<>();
+        for (String name : new String[]{"a", "b"}) {
+            Outcome outcome = new Outcome();
+            outcomes.add(outcome);
+            channels.acquire(name, outcome);
+        }
+
+        channels.releaseAll();
+
+        for (Outcome outcome : outcomes) {
+            assertTrue(outcome.result, outcome.result.startsWith("failed"));
+        }
+        assertEquals(0, channels.size());
+    }
+
+    private static class Outcome implements ResultCallback<Void> {
+        String result;
+        int calls;
+
+        @Override
+        public void onSuccess(Void unused) {
+            result = "joined";
+            calls++;
+        }
+
+        @Override
+        public void onFailure(ErrorInfo errorInfo) {
+            result = "failed " + errorInfo.getErrorCode();
+            calls++;
+        }
+    }
+}
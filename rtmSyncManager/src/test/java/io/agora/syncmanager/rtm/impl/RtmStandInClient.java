@@ -0,0 +1,175 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.agora.rtm.ChannelAttributeOptions;
+import io.agora.rtm.ResultCallback;
+import io.agora.rtm.RtmChannel;
+import io.agora.rtm.RtmChannelAttribute;
+import io.agora.rtm.RtmClient;
+
+/**
+ * An {@link RtmClient} without the native SDK behind it, for unit tests of the RTM side.
+ *
+ * The SDK client and channel are abstract classes with many more methods than the sync manager
+ * calls, so they are mocked and only the calls that matter are recorded. Nothing completes on its
+ * own: the test answers the recorded callbacks.
+ */
+class RtmStandInClient {
+
+    static class Channel {
+        final String name;
+        final RtmChannel channel;
+        // guarded by the stand-in
+        final List<ResultCallback<Void>> joins = new ArrayList<>();
+        int leaves;
+        int releases;
+
+        Channel(String name, RtmChannel channel) {
+            this.name = name;
+            this.channel = channel;
+        }
+    }
+
+    static class AttributeCall {
+        final String channel;
+        final List<String> keys = new ArrayList<>();
+        // null for a delete
+        final List<String> values;
+        final boolean notify;
+        final ResultCallback<Void> callback;
+
+        AttributeCall(String channel, List<String> values, boolean notify, ResultCallback<Void> callback) {
+            this.channel = channel;
+            this.values = values;
+            this.notify = notify;
+            this.callback = callback;
+        }
+    }
+
+    static class ReadCall {
+        final String channel;
+        final List<String> keys;
+        final ResultCallback<List<RtmChannelAttribute>> callback;
+
+        ReadCall(String channel, List<String> keys, ResultCallback<List<RtmChannelAttribute>> callback) {
+            this.channel = channel;
+            this.keys = keys;
+            this.callback = callback;
+        }
+    }
+
+    final RtmClient client;
+
+    // guarded by this
+    private final List<Channel> channels = new ArrayList<>();
+    private final List<AttributeCall> attributeCalls = new ArrayList<>();
+    private final List<ReadCall> readCalls = new ArrayList<>();
+
+    RtmStandInClient() {
+        client = mock(RtmClient.class, invocation -> {
+            switch (invocation.getMethod().getName()) {
+                case "createChannel":
+                    return createChannel(invocation.getArgument(0));
+                case "addOrUpdateChannelAttributes":
+                    List<RtmChannelAttribute> attributes = invocation.getArgument(1);
+                    AttributeCall upsert = new AttributeCall(invocation.getArgument(0), new ArrayList<String>(),
+                            invocation.<ChannelAttributeOptions>getArgument(2).getEnableNotificationToChannelMembers(),
+                            invocation.getArgument(3));
+                    for (RtmChannelAttribute attribute : attributes) {
+                        upsert.keys.add(attribute.getKey());
+                        upsert.values.add(attribute.getValue());
+                    }
+                    record(upsert);
+                    return null;
+                case "deleteChannelAttributesByKeys":
+                    AttributeCall delete = new AttributeCall(invocation.getArgument(0), null,
+                            invocation.<ChannelAttributeOptions>getArgument(2).getEnableNotificationToChannelMembers(),
+                            invocation.getArgument(3));
+                    delete.keys.addAll(invocation.<List<String>>getArgument(1));
+                    record(delete);
+                    return null;
+                case "getChannelAttributesByKeys":
+                    synchronized (this) {
+                        readCalls.add(new ReadCall(invocation.getArgument(0),
+                                new ArrayList<>(invocation.<List<String>>getArgument(1)), invocation.getArgument(2)));
+                    }
+                    return null;
+                default:
+                    return RETURNS_DEFAULTS.answer(invocation);
+            }
+        });
+    }
+
+    synchronized List<Channel> getChannels() {
+        return Collections.unmodifiableList(new ArrayList<>(channels));
+    }
+
+    synchronized Channel getChannel(String name) {
+        for (int i = channels.size() - 1; i >= 0; i--) {
+            if (channels.get(i).name.equals(name)) {
+                return channels.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the attribute upserts and deletes sent so far, oldest first.
+     */
+    synchronized List<AttributeCall> getAttributeCalls() {
+        return Collections.unmodifiableList(new ArrayList<>(attributeCalls));
+    }
+
+    /**
+     * @return the attribute reads sent so far, oldest first.
+     */
+    synchronized List<ReadCall> getReadCalls() {
+        return Collections.unmodifiableList(new ArrayList<>(readCalls));
+    }
+
+    /**
+     * @return the callback of the latest join of {@code name}, answered by the test.
+     */
+    synchronized ResultCallback<Void> lastJoin(String name) {
+        List<ResultCallback<Void>> joins = getChannel(name).joins;
+        return joins.get(joins.size() - 1);
+    }
+
+    private synchronized void record(AttributeCall call) {
+        attributeCalls.add(call);
+    }
+
+    private RtmChannel createChannel(String name) {
+        Channel[] created = new Channel[1];
+        RtmChannel channel = mock(RtmChannel.class, invocation -> {
+            synchronized (RtmStandInClient.this) {
+                switch (invocation.getMethod().getName()) {
+                    case "join":
+                        created[0].joins.add(invocation.getArgument(0));
+                        return null;
+                    case "leave":
+                        created[0].leaves++;
+                        return null;
+                    case "release":
+                        created[0].releases++;
+                        return null;
+                    case "getId":
+                        return created[0].name;
+                    default:
+                        return RETURNS_DEFAULTS.answer(invocation);
+                }
+            }
+        });
+        synchronized (this) {
+            created[0] = new Channel(name, channel);
+            channels.add(created[0]);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,170 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.agora.syncmanager.rtm.Benchmarks;
+
+/**
+ * Write throughput and latency over 1, 2 and 4 pooled connections to {@link RethinkStandInServer},
+ * while another scene keeps running large queries.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ShardedPoolBenchmark {
+
+    private static final int SCENES = 16;
+    private static final int WRITES = 4000;
+    private static final int OUTSTANDING = 256;
+    private static final int HEAVY_MEMBERS = 2000;
+    private static final String HEAVY_CHANNEL = "heavySceneIdmember";
+
+    private final Gson gson = new Gson();
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        Collections.reverse(resources);
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    public void channelsSpreadOverConnections() {
+        RethinkSyncClientPool pool = new RethinkSyncClientPool(4);
+        resources.add(pool::release);
+        Map<RethinkSyncClient, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            RethinkSyncClient connection = pool.connectionFor("scene" + i + "member");
+            assertTrue(connection == pool.connectionFor("scene" + i + "member"));
+            Integer count = counts.get(connection);
+            counts.put(connection, count == null ? 1 : count + 1);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("unbalanced: " + counts.values(), count > 1800 && count < 3200);
+        }
+    }
+
+    @Test
+    public void writesBesideLargeQueries() throws Exception {
+        Benchmarks.assumeEnabled();
+        RethinkStandInServer server = new RethinkStandInServer(new InetSocketAddress("127.0.0.1", freePort()), 16);
+        server.start();
+        resources.add(() -> server.stop(1000));
+        for (int i = 0; i < HEAVY_MEMBERS; i++) {
+            server.put(HEAVY_CHANNEL, "member" + i, gson.toJson(member(i)));
+        }
+
+        System.out.printf("%d writes over %d scenes, %d outstanding, next to queries of %d members%n",
+                WRITES, SCENES, OUTSTANDING, HEAVY_MEMBERS);
+        for (int connections : new int[]{1, 2, 4}) {
+            long[] result = runWrites(server, connections);
+            System.out.printf("  %d connection(s): %6.0f writes/s, latency p50 %3d ms, p99 %4d ms, %d queries%n",
+                    connections, WRITES * 1e9 / result[0], result[1], result[2], result[3]);
+        }
+    }
+
+    /**
+     * @return elapsed ns, p50 and p99 write latency in ms, and queries completed meanwhile
+     */
+    private long[] runWrites(RethinkStandInServer server, int connections) throws Exception {
+        RethinkSyncClientPool pool = new RethinkSyncClientPool(connections);
+        resources.add(pool::release);
+        for (RethinkSyncClient connection : pool.getConnections()) {
+            connection.setSocketUrl("ws://127.0.0.1:" + server.getAddress().getPort());
+            connection.setHeartbeat(0, TimeUnit.MILLISECONDS, 1);
+            connection.setCompression(false, 0, 0, false);
+        }
+        CountDownLatch connected = new CountDownLatch(1);
+        pool.init("appId", "channel", ret -> connected.countDown());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger queries = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                CountDownLatch done = new CountDownLatch(1);
+                pool.query(HEAVY_CHANNEL, ret -> {
+                    queries.incrementAndGet();
+                    done.countDown();
+                }, e -> done.countDown());
+                try {
+                    done.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "heavy-query");
+        reader.start();
+
+        long[] latencies = new long[WRITES];
+        Semaphore window = new Semaphore(OUTSTANDING);
+        CountDownLatch done = new CountDownLatch(WRITES);
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < WRITES; i++) {
+            window.acquire();
+            int index = i;
+            long sent = System.nanoTime();
+            pool.add("scene" + (i % SCENES) + "member", member(i), "member" + i, ret -> {
+                latencies[index] = System.nanoTime() - sent;
+                window.release();
+                done.countDown();
+            }, e -> {
+                failed.incrementAndGet();
+                window.release();
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        writing.set(false);
+        reader.join(5000);
+        assertEquals(0, failed.get());
+
+        Arrays.sort(latencies);
+        return new long[]{elapsed,
+                TimeUnit.NANOSECONDS.toMillis(latencies[WRITES / 2]),
+                TimeUnit.NANOSECONDS.toMillis(latencies[WRITES * 99 / 100]),
+                queries.get()};
+    }
+
+    private static Map<String, Object> member(int i) {
+        Map<String, Object> member = new LinkedHashMap<>();
+        member.put("userId", String.valueOf(100000 + i));
+        member.put("userName", "User-" + i);
+        member.put("avatar", "https://download.agora.io/demo/release/app_avatar_" + (i % 14) + ".png");
+        member.put("isMuted", i % 3 == 0);
+        return member;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
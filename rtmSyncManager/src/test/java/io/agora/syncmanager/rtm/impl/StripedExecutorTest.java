@@ -0,0 +1,145 @@
+package io.agora.syncmanager.rtm.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-key ordering and back-pressure of {@link StripedExecutor}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StripedExecutorTest {
+
+    private StripedExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void keepsTheOrderOfAKeyPastTheCapacity() throws Exception {
+        executor = new StripedExecutor("TestDispatch", 2, 4);
+        List<List<Integer>> runs = new ArrayList<>();
+        for (int key = 0; key < 3; key++) {
+            runs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        for (int i = 0; i < 500; i++) {
+            for (int key = 0; key < runs.size(); key++) {
+                int value = i;
+                List<Integer> run = runs.get(key);
+                executor.execute("key" + key, () -> run.add(value));
+            }
+        }
+
+        await(() -> runs.get(0).size() == 500 && runs.get(1).size() == 500 && runs.get(2).size() == 500);
+        for (List<Integer> run : runs) {
+            for (int i = 0; i < run.size(); i++) {
+                assertEquals(i, (int) run.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void fullStripeBlocksTheProducerUntilThereIsRoom() throws Exception {
+        executor = new StripedExecutor("TestDispatch", 1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute("a", () -> {
+            started.countDown();
+            await(release);
+        });
+        // a running task takes no room
+        await(started);
+        executor.execute("a", ran::incrementAndGet);
+        executor.execute("a", ran::incrementAndGet);
+
+        AtomicBoolean submitted = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            executor.execute("a", ran::incrementAndGet);
+            submitted.set(true);
+        });
+        producer.start();
+        await(() -> executor.getBlockedCount() == 1);
+        Thread.sleep(50);
+        assertFalse(submitted.get());
+
+        release.countDown();
+        producer.join(5000);
+        assertTrue(submitted.get());
+        await(() -> ran.get() == 3);
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void taskQueuedFromItsOwnStripeDoesNotWait() throws Exception {
+        executor = new StripedExecutor("TestDispatch", 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute("a", () -> {
+            started.countDown();
+            await(release);
+            // the stripe is full, waiting here would wait for itself
+            executor.execute("a", () -> order.add("timeout"));
+            order.add("reply");
+        });
+        await(started);
+        executor.execute("a", () -> order.add("event"));
+        release.countDown();
+
+        await(() -> order.size() == 3);
+        assertEquals("[reply, event, timeout]", order.toString());
+        assertEquals(0, executor.getBlockedCount());
+    }
+
+    @Test
+    public void noThreadsRunsOnTheCaller() {
+        executor = new StripedExecutor("TestDispatch", 0, 1);
+        Thread caller = Thread.currentThread();
+        List<Thread> ranOn = new ArrayList<>();
+
+        executor.execute("a", () -> ranOn.add(Thread.currentThread()));
+        executor.execute("a", () -> {
+            throw new IllegalStateException("listener failed");
+        });
+        executor.execute("a", () -> ranOn.add(Thread.currentThread()));
+
+        assertEquals(2, ranOn.size());
+        assertTrue(ranOn.get(0) == caller && ranOn.get(1) == caller);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package io.agora.syncmanager.rtm.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import io.agora.syncmanager.rtm.Benchmarks;
+
+/**
+ * Time and allocation per id, counter based ids against the former MD5 of a random UUID.
+ */
+public class UUIDUtilBenchmark {
+
+    private static final int ROUNDS = 200000;
+
+    @Test
+    public void uniqueAndOrdered() throws InterruptedException {
+        int threads = 4;
+        int perThread = 50000;
+        Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    ids.add(UUIDUtil.uuid());
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads * perThread, ids.size());
+
+        String first = UUIDUtil.uuid();
+        String second = UUIDUtil.uuid();
+        assertTrue(first.length() <= 32);
+        assertTrue(first.matches("[0-9A-Za-z]+"));
+        assertTrue(first.compareTo(second) < 0);
+    }
+
+    @Test
+    public void generateIds() throws NoSuchAlgorithmException {
+        Benchmarks.assumeEnabled();
+        for (int i = 0; i < ROUNDS / 10; i++) {
+            legacy();
+            UUIDUtil.uuid();
+        }
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        long bytes = allocatedBytes(bean);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            legacy();
+        }
+        long legacyNanos = System.nanoTime() - start;
+        long legacyBytes = allocatedBytes(bean) - bytes;
+
+        bytes = allocatedBytes(bean);
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            UUIDUtil.uuid();
+        }
+        long counterNanos = System.nanoTime() - start;
+        long counterBytes = allocatedBytes(bean) - bytes;
+
+        System.out.printf("id generation, %d rounds%n", ROUNDS);
+        System.out.printf("  md5 of uuid: %d ns/op, %d bytes/op%n", legacyNanos / ROUNDS, legacyBytes / ROUNDS);
+        System.out.printf("  counter:     %d ns/op, %d bytes/op%n", counterNanos / ROUNDS, counterBytes / ROUNDS);
+    }
+
+    // the generator as it was before
+    private static String legacy() throws NoSuchAlgorithmException {
+        String[] hexArray = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F"};
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        md.update(UUID.randomUUID().toString().getBytes());
+        byte[] rawBit = md.digest();
+        String outputMD5 = " ";
+        for (int i = 0; i < 16; i++) {
+            outputMD5 = outputMD5 + hexArray[rawBit[i] >>> 4 & 0x0f];
+            outputMD5 = outputMD5 + hexArray[rawBit[i] & 0x0f];
+        }
+        return outputMD5.trim();
+    }
+
+    private static long allocatedBytes(ThreadMXBean bean) {
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}